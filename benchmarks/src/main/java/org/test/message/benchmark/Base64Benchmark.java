@@ -0,0 +1,55 @@
+package org.test.message.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.test.message.common.Base64;
+
+/**
+ * {@link Base64} 与 JDK {@link java.util.Base64} 的编解码性能对比
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+    @Param({"16", "1024"})
+    private int size;
+
+    @Param({"common", "jdk"})
+    private String impl;
+
+    private byte[] bytes;
+    private String encoded;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        bytes = new byte[size];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        encoded = java.util.Base64.getEncoder().encodeToString(bytes);
+    }
+
+    @Benchmark
+    public String encode() {
+        return "common".equals(impl) ? Base64.encode(bytes) : java.util.Base64.getEncoder().encodeToString(bytes);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return "common".equals(impl) ? Base64.decode(encoded) : java.util.Base64.getDecoder().decode(encoded);
+    }
+}
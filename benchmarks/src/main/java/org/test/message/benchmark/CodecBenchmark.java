@@ -0,0 +1,96 @@
+package org.test.message.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.test.message.server.config.ServerConstants;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageCommandType;
+import org.test.message.server.netty.handler.codec.MessageDecoder;
+import org.test.message.server.netty.handler.codec.MessageEncoder;
+import org.test.message.server.netty.handler.codec.MessageHeader;
+import org.test.message.server.netty.handler.codec.Messages;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * 完整消息的编解码吞吐量
+ * <br/>
+ * 消息体都不拷贝，开销主要在消息头，bodySize 的取值分别对应 1~4 字节的可变长度：
+ * encode 编码消息头并和消息体组合，decode 解析消息头并切出消息体，publish 额外包括 PUBLISH 的 protobuf 前缀。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"100", "10000", "1000000", "4000000"})
+    private int bodySize;
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    private ByteBuf body;
+    private ByteBuf frame;
+    private Message message;
+    private EmbeddedChannel channel;
+    private long messageId;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        body = alloc.directBuffer(bodySize).writeZero(bodySize);
+        frame = Frames.publish(alloc, bodySize);
+        message = new Message(new MessageHeader(MessageCommandType.PUBLISH, 0, 0, bodySize), body.retain());
+        channel = new EmbeddedChannel(new MessageDecoder(ServerConstants.DEFAULT_MAX_MESSAGE_BYTE_LENGTH));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        message.release();
+        frame.release();
+        body.release();
+    }
+
+    @Benchmark
+    public int encode() {
+        ByteBuf encoded = MessageEncoder.encode(alloc, message);
+        int length = encoded.readableBytes();
+        encoded.release();
+        return length;
+    }
+
+    @Benchmark
+    public int decode() {
+        channel.writeInbound(frame.retainedDuplicate());
+        Message decoded = channel.readInbound();
+        int length = decoded.content().readableBytes();
+        decoded.release();
+        return length;
+    }
+
+    @Benchmark
+    public int publish() {
+        Message publish = Messages.publish(alloc, ++messageId, body);
+        ByteBuf encoded = MessageEncoder.encode(alloc, publish);
+        int length = encoded.readableBytes();
+        encoded.release();
+        publish.release();
+        return length;
+    }
+}
@@ -0,0 +1,110 @@
+package org.test.message.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.test.message.server.netty.channel.MessageBroadcaster;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageEncoder;
+import org.test.message.server.netty.handler.codec.Messages;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 一条消息推送给 recipients 个连接的开销
+ * <br/>
+ * broadcast 使用 {@link MessageBroadcaster}，消息只编码一次，所有连接共享；
+ * perChannel 每个连接各自经过 {@link MessageEncoder} 编码后写出。
+ * 每个连接是一个独立 EventLoop 的 {@link EmbeddedChannel}，写出的数据在每次调用结束时取出并释放。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({"100", "1000"})
+    private int recipients;
+
+    @Param({"64", "1024"})
+    private int bodySize;
+
+    @Param({"broadcast", "perChannel"})
+    private String mode;
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    private final MessageBroadcaster broadcaster = new MessageBroadcaster();
+    private final List<EmbeddedChannel> channels = new ArrayList<>();
+    private List<Channel> targets;
+    private ByteBuf payload;
+    private long messageId;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        MessageEncoder encoder = new MessageEncoder();
+        for (int i = 0; i < recipients; i++) {
+            channels.add(new EmbeddedChannel(encoder));
+        }
+        targets = new ArrayList<>(channels);
+        payload = alloc.directBuffer(bodySize).writeZero(bodySize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+        payload.release();
+    }
+
+    @Benchmark
+    public long push() {
+        Message message = Messages.publish(alloc, ++messageId, payload);
+        try {
+            if ("broadcast".equals(mode)) {
+                broadcaster.broadcast(message, targets);
+                for (EmbeddedChannel channel : channels) {
+                    channel.runPendingTasks();
+                }
+            } else {
+                for (EmbeddedChannel channel : channels) {
+                    channel.writeAndFlush(message.retainedDuplicate(), channel.voidPromise());
+                }
+            }
+        } finally {
+            message.release();
+        }
+        return drain();
+    }
+
+    private long drain() {
+        long bytes = 0;
+        for (EmbeddedChannel channel : channels) {
+            for (Object msg = channel.readOutbound(); msg != null; msg = channel.readOutbound()) {
+                bytes += ((ByteBuf) msg).readableBytes();
+                ReferenceCountUtil.release(msg);
+            }
+        }
+        return bytes;
+    }
+}
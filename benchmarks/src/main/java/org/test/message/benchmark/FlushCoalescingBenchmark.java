@@ -0,0 +1,107 @@
+package org.test.message.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.test.message.server.netty.handler.FlushCoalescingHandler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 推送路径上每条消息对应的 flush 次数
+ * <br/>
+ * 每次调用模拟一次 EventLoop 迭代中逐条 writeAndFlush 的 messages 条推送。
+ * 到达 pipeline 头部的每次 flush 对应一次 write/writev 系统调用，
+ * 结果中 flushes / messages 即每条消息的系统调用次数：none 固定为 1，coalesced 约为 1 / min(messages, maxBatch)。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlushCoalescingBenchmark {
+    @Param({"1", "16", "128"})
+    private int messages;
+
+    @Param({"none", "coalesced"})
+    private String mode;
+
+    private ByteBuf frame;
+    private EmbeddedChannel channel;
+    private FlushCounter flushCounter;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long flushes;
+        public long messages;
+    }
+
+    /**
+     * 位于 pipeline 头部，代替传输层统计 flush 次数
+     * <br/>
+     * 不向 EmbeddedChannel 传递 write，EmbeddedChannel 每次 write 都会执行待处理的任务，会破坏合并窗口
+     */
+    private static final class FlushCounter extends ChannelOutboundHandlerAdapter {
+        private long flushes;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            ReferenceCountUtil.release(msg);
+            promise.trySuccess();
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            flushes++;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        frame = Frames.publish(PooledByteBufAllocator.DEFAULT, 64);
+        flushCounter = new FlushCounter();
+        channel = new EmbeddedChannel(flushCounter);
+        if ("coalesced".equals(mode)) {
+            channel.pipeline().addLast(new FlushCoalescingHandler(0, 64));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        frame.release();
+    }
+
+    @Benchmark
+    public void push(Counters counters) {
+        long before = flushCounter.flushes;
+        for (int i = 0; i < messages; i++) {
+            channel.writeAndFlush(frame.retainedDuplicate());
+        }
+        // 执行 EventLoop 迭代末尾的任务
+        channel.runPendingTasks();
+        counters.flushes += flushCounter.flushes - before;
+        counters.messages += messages;
+    }
+}
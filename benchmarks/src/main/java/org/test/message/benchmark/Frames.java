@@ -0,0 +1,38 @@
+package org.test.message.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.test.message.server.netty.handler.codec.MessageCommandType;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * 构造基准测试使用的消息帧
+ */
+final class Frames {
+
+    /**
+     * 按协议格式构造一条完整的 PUBLISH 消息
+     */
+    static ByteBuf publish(ByteBufAllocator alloc, int bodySize) {
+        ByteBuf frame = alloc.directBuffer(2 + 4 + bodySize);
+        frame.writeByte(MessageCommandType.PUBLISH.getValue());
+        frame.writeByte(0);
+        int num = bodySize;
+        do {
+            int digit = num % 128;
+            num /= 128;
+            if (num > 0) {
+                digit |= 0x80;
+            }
+            frame.writeByte(digit);
+        } while (num > 0);
+        byte[] body = new byte[bodySize];
+        ThreadLocalRandom.current().nextBytes(body);
+        frame.writeBytes(body);
+        return frame;
+    }
+
+    private Frames() {}
+}
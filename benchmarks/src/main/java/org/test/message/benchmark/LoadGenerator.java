@@ -0,0 +1,510 @@
+package org.test.message.benchmark;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.test.message.common.Md5Util;
+import org.test.message.server.config.ServerConstants;
+import org.test.message.server.metrics.MessageMetrics;
+import org.test.message.server.netty.NettyAcceptor;
+import org.test.message.server.netty.handler.WebSocketServerHandler;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageCommandType;
+import org.test.message.server.netty.handler.codec.MessageDecoder;
+import org.test.message.server.netty.handler.codec.MessageHeader;
+import org.test.message.server.netty.handler.codec.Messages;
+import org.test.message.server.netty.handler.codec.proto.Capability;
+import org.test.message.server.netty.handler.codec.proto.Connect;
+import org.test.message.server.netty.handler.codec.proto.ConnectAck;
+import org.test.message.server.netty.handler.codec.proto.ConnectCode;
+import org.test.message.server.netty.handler.codec.proto.Publish;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * 端到端压测工具
+ * <br/>
+ * 在本进程内用 Netty 客户端向 {@link NettyAcceptor} 的 WebSocket 端口建立 connections 个连接（子协议 {@value NettyAcceptor#SUB_PROTOCOL}），
+ * 完成 CONNECT 后按心跳间隔发送 PING；全部连接建立后按 push-rate 调用 /push，每次随机推送给一个在线用户，
+ * 消息内容的前 8 字节是发送时的 {@link System#nanoTime()}，客户端收到 PUBLISH 时计算投递延迟并回复 PUBLISH_ACK。
+ * 结束时输出建连速率、CONNECT 延迟、投递延迟的 p50/p99/p999，以及根据服务端 /metrics 估算的每个连接占用的内存。
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar org.test.message.benchmark.LoadGenerator --connections=10000 --push-rate=2000 --duration=60
+ * </pre>
+ * 参数：host、port、connections、connect-rate（每秒新建连接数）、max-pending（同时进行中的握手数）、push-rate、duration（推送阶段秒数）、
+ * heartbeat（秒）、payload（字节）、http-connections（推送使用的 HTTP 连接数，请求流水线发送）、threads、uin-prefix、secret（服务端 auth.secret）、
+ * http-secret（服务端 http.secret）。
+ */
+public final class LoadGenerator {
+    private static final int TICK_MILLIS = 10;
+    /**
+     * 每个 HTTP 连接最多未返回的推送请求数，超过后本次推送跳过
+     */
+    private static final int MAX_OUTSTANDING_PUSHES = 1024;
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int connectRate;
+    private final int maxPending;
+    private final int pushRate;
+    private final int duration;
+    private final int heartbeat;
+    private final int payloadSize;
+    private final int httpConnections;
+    private final String uinPrefix;
+    private final String secret;
+    private final String httpSecret;
+
+    private final EventLoopGroup group;
+    private final List<Channel> connected = new ArrayList<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder pushesSent = new LongAdder();
+    private final LongAdder pushesSkipped = new LongAdder();
+    private final LongAdder pushesFailed = new LongAdder();
+    private final LongAdder pushResponses = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder pongs = new LongAdder();
+    private final LatencyRecorder connectLatency = new LatencyRecorder();
+    private final LatencyRecorder deliveryLatency = new LatencyRecorder();
+
+    private LoadGenerator(Map<String, String> options) {
+        host = options.getOrDefault("host", "localhost");
+        port = Integer.parseInt(options.getOrDefault("port", "8777"));
+        connections = Integer.parseInt(options.getOrDefault("connections", "1000"));
+        connectRate = Integer.parseInt(options.getOrDefault("connect-rate", "2000"));
+        maxPending = Integer.parseInt(options.getOrDefault("max-pending", "512"));
+        pushRate = Integer.parseInt(options.getOrDefault("push-rate", "1000"));
+        duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        heartbeat = Integer.parseInt(options.getOrDefault("heartbeat", String.valueOf(ServerConstants.DEFAULT_HEARTBEAT / 1000)));
+        payloadSize = Math.max(8, Integer.parseInt(options.getOrDefault("payload", "64")));
+        httpConnections = Integer.parseInt(options.getOrDefault("http-connections", "2"));
+        uinPrefix = options.getOrDefault("uin-prefix", "load-");
+        secret = options.get("secret");
+        httpSecret = options.getOrDefault("http-secret", "");
+        int threads = Integer.parseInt(options.getOrDefault("threads", "0"));
+        group = new NioEventLoopGroup(threads);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("usage: --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        try {
+            generator.run();
+        } finally {
+            generator.group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+    }
+
+    private void run() throws Exception {
+        Map<String, Double> before = scrapeMetrics();
+        long connectStart = System.nanoTime();
+        connectAll();
+        double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+        int established = connectedCount();
+        System.out.printf("connect: %d established, %d failed in %.2fs, %.0f conn/s%n",
+                established, connectFailures.sum(), connectSeconds, established / connectSeconds);
+        System.out.println("connect latency: " + connectLatency.summary());
+
+        Map<String, Double> after = scrapeMetrics();
+        printMemory(before, after, established);
+
+        if (established > 0 && pushRate > 0 && duration > 0) {
+            pushAll();
+            System.out.printf("push: %d sent, %d responses, %d failed, %d skipped, %d received, %d pongs%n",
+                    pushesSent.sum(), pushResponses.sum(), pushesFailed.sum(), pushesSkipped.sum(), received.sum(), pongs.sum());
+            System.out.println("delivery latency: " + deliveryLatency.summary());
+        }
+        System.out.println("disconnects: " + disconnects.sum());
+        List<Channel> channels;
+        synchronized (connected) {
+            channels = new ArrayList<>(connected);
+        }
+        for (Channel channel : channels) {
+            channel.close();
+        }
+    }
+
+    /**
+     * 按 connect-rate 建立连接，同时进行中的握手不超过 max-pending，全部完成（成功或失败）后返回
+     */
+    private void connectAll() throws InterruptedException {
+        URI uri = URI.create("ws://" + host + ":" + port + "/ws");
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
+        WebSocketServerHandler.MessageToWsEncoder encoder = new WebSocketServerHandler.MessageToWsEncoder(new MessageMetrics());
+        AtomicInteger issued = new AtomicInteger();
+        double[] credit = {0};
+        ScheduledFuture<?> ticker = group.next().scheduleAtFixedRate(() -> {
+            credit[0] = Math.min(credit[0] + connectRate * TICK_MILLIS / 1000.0, maxPending);
+            while (credit[0] >= 1 && issued.get() < connections && pending.get() < maxPending) {
+                credit[0]--;
+                String uin = uinPrefix + issued.getAndIncrement();
+                pending.incrementAndGet();
+                ClientHandler handler = new ClientHandler(uin);
+                bootstrap.clone().handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpClientCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(8192));
+                        ch.pipeline().addLast(new WebSocketClientProtocolHandler(WebSocketClientHandshakerFactory.newHandshaker(
+                                uri, WebSocketVersion.V13, NettyAcceptor.SUB_PROTOCOL, false, EmptyHttpHeaders.INSTANCE, 65536)));
+                        ch.pipeline().addLast(new WebSocketServerHandler.WsToByteBufDecoder());
+                        ch.pipeline().addLast(new MessageDecoder(ServerConstants.DEFAULT_MAX_MESSAGE_BYTE_LENGTH));
+                        ch.pipeline().addLast(encoder);
+                        ch.pipeline().addLast(handler);
+                    }
+                }).connect(uri.getHost(), uri.getPort()).addListener(future -> {
+                    if (!future.isSuccess()) {
+                        handler.fail();
+                    }
+                });
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+
+        long lastReport = System.nanoTime();
+        while (issued.get() < connections || pending.get() > 0) {
+            Thread.sleep(100);
+            if (System.nanoTime() - lastReport > TimeUnit.SECONDS.toNanos(5)) {
+                lastReport = System.nanoTime();
+                System.out.printf("  connecting: %d established, %d pending, %d failed%n",
+                        connectedCount(), pending.get(), connectFailures.sum());
+            }
+        }
+        ticker.cancel(false);
+    }
+
+    /**
+     * 在 duration 秒内按 push-rate 推送，每次推送给一个随机的在线用户
+     */
+    private void pushAll() throws InterruptedException {
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpClientCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(65536));
+                        ch.pipeline().addLast(new PushResponseHandler());
+                    }
+                });
+        List<PushConnection> pushConnections = new ArrayList<>();
+        for (int i = 0; i < httpConnections; i++) {
+            pushConnections.add(new PushConnection(bootstrap.connect(host, port).sync().channel()));
+        }
+        List<String> uins = new ArrayList<>();
+        synchronized (connected) {
+            for (Channel channel : connected) {
+                uins.add(channel.pipeline().get(ClientHandler.class).uin);
+            }
+        }
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+        double[] credit = {0};
+        int[] next = {0};
+        ScheduledFuture<?> ticker = group.next().scheduleAtFixedRate(() -> {
+            credit[0] += pushRate * TICK_MILLIS / 1000.0;
+            while (credit[0] >= 1) {
+                credit[0]--;
+                PushConnection connection = pushConnections.get(next[0]++ % pushConnections.size());
+                connection.push(uins.get(ThreadLocalRandom.current().nextInt(uins.size())));
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+
+        long lastReceived = 0;
+        while (System.nanoTime() < end) {
+            Thread.sleep(5000);
+            long total = received.sum();
+            System.out.printf("  pushing: %d sent, %d received (%.0f/s), %d connected%n",
+                    pushesSent.sum(), total, (total - lastReceived) / 5.0, connectedCount());
+            lastReceived = total;
+        }
+        ticker.cancel(false);
+        // 等待最后一批消息投递完成
+        Thread.sleep(2000);
+        for (PushConnection connection : pushConnections) {
+            connection.channel.close();
+        }
+    }
+
+    private int connectedCount() {
+        synchronized (connected) {
+            return connected.size();
+        }
+    }
+
+    /**
+     * 读取服务端 /metrics 中的内存指标，读取失败时返回空
+     */
+    private Map<String, Double> scrapeMetrics() {
+        Map<String, Double> values = new HashMap<>();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://" + host + ":" + port + "/metrics").openConnection();
+            connection.setRequestProperty("Authorization", "Bearer " + httpSecret);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (line.startsWith("message_server_jvm_heap_used_bytes") || line.startsWith("message_server_allocator_used_bytes")) {
+                        int split = line.lastIndexOf(' ');
+                        values.put(line.substring(0, split), Double.parseDouble(line.substring(split + 1)));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("scrape /metrics failed: " + e);
+        }
+        return values;
+    }
+
+    private static void printMemory(Map<String, Double> before, Map<String, Double> after, int established) {
+        if (established == 0) {
+            return;
+        }
+        for (Map.Entry<String, Double> entry : after.entrySet()) {
+            Double base = before.get(entry.getKey());
+            if (base != null && base >= 0 && entry.getValue() >= 0) {
+                System.out.printf("server memory %s: %+.0f bytes/connection%n", entry.getKey(), (entry.getValue() - base) / established);
+            }
+        }
+        System.out.println("  (heap includes garbage not yet collected, run with a fixed heap and compare several runs)");
+    }
+
+    private static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        long now = System.nanoTime();
+        for (int i = 0; i < 8; i++) {
+            payload[i] = (byte) (now >>> (56 - i * 8));
+        }
+        return payload;
+    }
+
+    /**
+     * 一个压测连接：握手完成后发送 CONNECT，收到 CONNECT_ACK 后定时发送 PING，收到 PUBLISH 后记录延迟并确认
+     */
+    private final class ClientHandler extends SimpleChannelInboundHandler<Message> {
+        private final String uin;
+        private final long startTime = System.nanoTime();
+        private boolean done;
+        private boolean established;
+        private ScheduledFuture<?> pingTask;
+
+        ClientHandler(String uin) {
+            this.uin = uin;
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt == WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+                Connect connect = Connect.newBuilder()
+                        .setVersion(Messages.PROTOCOL_VERSION)
+                        .setCapabilities(Capability.CAPABILITY_PUBLISH_ACK_VALUE)
+                        .setHeartbeatSeconds(heartbeat)
+                        .setUin(uin)
+                        .setToken(secret == null ? "" : Md5Util.encode(uin + secret))
+                        .setDeviceId("load")
+                        .build();
+                ByteBuf body = Messages.serialize(ctx.alloc(), connect);
+                ctx.writeAndFlush(new Message(new MessageHeader(MessageCommandType.CONNECT, 0, 0, body.readableBytes()), body));
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Message msg) throws Exception {
+            switch (msg.getHeader().getType()) {
+                case CONNECT_ACK:
+                    ConnectAck ack = Messages.parse(msg, ConnectAck.parser());
+                    if (ack.getCode() != ConnectCode.ACCEPTED) {
+                        fail();
+                        ctx.close();
+                        return;
+                    }
+                    connectLatency.record(System.nanoTime() - startTime);
+                    established(ctx.channel(), ack.getHeartbeatSeconds());
+                    break;
+                case PUBLISH:
+                    Publish publish = Messages.parse(msg, Publish.parser());
+                    long sent = 0;
+                    for (int i = 0; i < 8; i++) {
+                        sent = sent << 8 | (publish.getPayload().byteAt(i) & 0xFF);
+                    }
+                    deliveryLatency.record(System.nanoTime() - sent);
+                    received.increment();
+                    ctx.writeAndFlush(Messages.publishAck(ctx.alloc(), publish.getMessageId()));
+                    break;
+                case PONG:
+                    pongs.increment();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void established(Channel channel, int heartbeatSeconds) {
+            done = true;
+            established = true;
+            pending.decrementAndGet();
+            synchronized (connected) {
+                connected.add(channel);
+            }
+            long interval = Math.max(1, heartbeatSeconds);
+            // 错开各个连接的心跳，避免同时到达
+            long delay = ThreadLocalRandom.current().nextLong(TimeUnit.SECONDS.toMillis(interval));
+            pingTask = channel.eventLoop().scheduleAtFixedRate(() -> channel.writeAndFlush(new Message(new MessageHeader(MessageCommandType.PING, 0, 0, 0))),
+                    delay, TimeUnit.SECONDS.toMillis(interval), TimeUnit.MILLISECONDS);
+        }
+
+        void fail() {
+            if (!done) {
+                done = true;
+                pending.decrementAndGet();
+                connectFailures.increment();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (pingTask != null) {
+                pingTask.cancel(false);
+                pingTask = null;
+            }
+            if (established) {
+                disconnects.increment();
+                synchronized (connected) {
+                    connected.remove(ctx.channel());
+                }
+            } else {
+                fail();
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * 一个推送用的 HTTP 连接，请求流水线发送，只在 EventLoop 中访问
+     */
+    private final class PushConnection {
+        private final Channel channel;
+
+        PushConnection(Channel channel) {
+            this.channel = channel;
+        }
+
+        void push(String uin) {
+            PushResponseHandler handler = channel.pipeline().get(PushResponseHandler.class);
+            if (!channel.isActive() || handler == null || handler.outstanding >= MAX_OUTSTANDING_PUSHES) {
+                pushesSkipped.increment();
+                return;
+            }
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/push?uin=" + uin,
+                    channel.alloc().buffer(payloadSize).writeBytes(payload(payloadSize)));
+            request.headers().set(HttpHeaderNames.HOST, host);
+            request.headers().set(HttpHeaderNames.AUTHORIZATION, "Bearer " + httpSecret);
+            HttpUtil.setContentLength(request, payloadSize);
+            HttpUtil.setKeepAlive(request, true);
+            handler.outstanding++;
+            pushesSent.increment();
+            channel.writeAndFlush(request, channel.voidPromise());
+        }
+    }
+
+    private final class PushResponseHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+        /**
+         * 已发送未返回的请求数，只在 EventLoop 中访问
+         */
+        private int outstanding;
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+            outstanding--;
+            pushResponses.increment();
+            if (!HttpResponseStatus.OK.equals(response.status())) {
+                pushesFailed.increment();
+            }
+        }
+    }
+
+    /**
+     * 保存所有样本，结束时排序计算精确的分位数
+     */
+    private static final class LatencyRecorder {
+        private long[] samples = new long[1024];
+        private int size;
+
+        synchronized void record(long nanos) {
+            if (size == samples.length) {
+                samples = Arrays.copyOf(samples, size * 2);
+            }
+            samples[size++] = nanos;
+        }
+
+        synchronized String summary() {
+            if (size == 0) {
+                return "no samples";
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            return String.format("n=%d p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms", size,
+                    percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999), sorted[size - 1] / 1e6);
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.test.message.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.test.message.server.config.ServerConstants;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageDecoder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * 分片输入下 {@link MessageDecoder} 与旧版 ReplayingDecoder 实现的解码性能对比
+ * <br/>
+ * 每次调用把一条完整消息按 fragmentSize 切片后逐片写入，直到解码出一条消息
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDecoderBenchmark {
+    @Param({"64", "4096", "262144"})
+    private int bodySize;
+
+    @Param({"64", "1460"})
+    private int fragmentSize;
+
+    @Param({"legacy", "current"})
+    private String decoder;
+
+    private ByteBuf frame;
+    private EmbeddedChannel channel;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        frame = Frames.publish(PooledByteBufAllocator.DEFAULT, bodySize);
+        ChannelHandler handler = "legacy".equals(decoder)
+                ? new LegacyMessageDecoder(ServerConstants.DEFAULT_MAX_MESSAGE_BYTE_LENGTH)
+                : new MessageDecoder(ServerConstants.DEFAULT_MAX_MESSAGE_BYTE_LENGTH);
+        channel = new EmbeddedChannel(handler);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        frame.release();
+    }
+
+    @Benchmark
+    public int decodeFragmented() {
+        int length = frame.readableBytes();
+        for (int offset = 0; offset < length; offset += fragmentSize) {
+            channel.writeInbound(frame.retainedSlice(offset, Math.min(fragmentSize, length - offset)));
+        }
+        Message message = channel.readInbound();
+        int bodyLength = message.content().readableBytes();
+        message.release();
+        return bodyLength;
+    }
+}
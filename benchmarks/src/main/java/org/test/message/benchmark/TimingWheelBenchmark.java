@@ -0,0 +1,93 @@
+package org.test.message.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.test.message.timewheel.TimingWheel;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+
+/**
+ * {@link TimingWheel} 与 Netty {@link HashedWheelTimer} 的添加/取消开销对比
+ * <br/>
+ * 每次调用添加一个 60 秒后到期的元素并立即取消，模拟消息在确认超时前收到 ACK 的常见情况；
+ * contended 由 4 个线程共享同一个时间轮。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimingWheelBenchmark {
+    private static final TimerTask NOOP = timeout -> {
+    };
+
+    @Param({"timingWheel", "hashedWheelTimer"})
+    private String impl;
+
+    private TimingWheel<Object> timingWheel;
+    private HashedWheelTimer hashedWheelTimer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if ("timingWheel".equals(impl)) {
+            timingWheel = TimingWheel.Builder.newBuilder()
+                    .name("benchmark-wheel")
+                    .tickDuration(100, TimeUnit.MILLISECONDS)
+                    .ticksPerWheel(512)
+                    .build();
+            timingWheel.start();
+        } else {
+            hashedWheelTimer = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 512);
+            hashedWheelTimer.start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (timingWheel != null) {
+            timingWheel.stop(false);
+        }
+        if (hashedWheelTimer != null) {
+            hashedWheelTimer.stop();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean addRemove() {
+        return addAndRemove();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean addRemoveContended() {
+        return addAndRemove();
+    }
+
+    private boolean addAndRemove() {
+        if (timingWheel != null) {
+            Object element = new Object();
+            timingWheel.add(element, 60, TimeUnit.SECONDS);
+            return timingWheel.remove(element);
+        }
+        Timeout timeout = hashedWheelTimer.newTimeout(NOOP, 60, TimeUnit.SECONDS);
+        return timeout.cancel();
+    }
+}
@@ -0,0 +1,533 @@
+package org.test.message.server.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.test.message.server.config.IConfig;
+import org.test.message.server.config.ServerConstants;
+import org.test.message.server.metrics.MessageMetrics;
+import org.test.message.server.netty.NettyTransport;
+import org.test.message.server.netty.channel.ChannelManager;
+import org.test.message.server.netty.channel.PresenceListener;
+import org.test.message.server.netty.handler.FlushCoalescingHandler;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageDecoder;
+import org.test.message.server.netty.handler.codec.MessageEncoder;
+import org.test.message.server.netty.handler.codec.Messages;
+import org.test.message.server.netty.handler.codec.proto.NodeHello;
+import org.test.message.service.processor.ProtocolProcessor;
+import org.test.message.service.processor.PushRouter;
+import org.test.message.service.storage.MessageStore;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * 集群
+ * <br/>
+ * 节点之间使用与客户端相同的消息格式（{@link MessageDecoder}、{@link MessageEncoder}），每个节点主动连接其他所有节点（{@link PeerLink}），
+ * 在这个连接上发送本节点的在线用户变化和转发的推送；其他节点发来的在线用户记录在 {@link PresenceDirectory} 中。
+ * <ul>
+ *     <li>在线用户：连接建立后先发送 NODE_HELLO 和全量快照，之后每隔 cluster.presence.interval 毫秒批量发送变化的用户，
+ *     同一个用户在一个周期内多次上下线只发送最终状态</li>
+ *     <li>推送：本节点 /push 的目标用户在其他节点上在线时，同一个节点的用户合并成一条 FORWARD，payload 不拷贝；
+ *     写出后不等待确认，多个推送的 flush 由 {@link FlushCoalescingHandler} 合并</li>
+ * </ul>
+ * 在线用户的同步是最终一致的：用户刚刚在其他节点上线时推送可能保存为本节点的离线消息，刚刚下线时保存为对方节点的离线消息。
+ * 离线消息保存在处理推送的节点上，收到用户在其他节点上线时取出本节点的离线消息转发给该节点。
+ * <br/>
+ * 集群端口默认只绑定回环地址；接受连接后先发送随机数（NODE_CHALLENGE），连接方回复的 NODE_HELLO 携带
+ * HMAC-SHA256(cluster.secret, nonce + address)，每个连接的随机数不同，截获的 NODE_HELLO 不能重放；
+ * 地址不在 cluster.nodes 中、校验失败或者超时没有回复的连接直接关闭。
+ */
+public class Cluster implements PushRouter, PresenceListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Cluster.class);
+
+    /**
+     * 每条 PRESENCE 消息最多包含的用户数
+     */
+    private static final int PRESENCE_BATCH_SIZE = 4096;
+    private static final int NONCE_LENGTH = 32;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ProtocolProcessor processor;
+    private final ChannelManager channelManager;
+    private final NettyTransport transport;
+    private final ByteBufAllocator alloc;
+    private final MessageMetrics messageMetrics;
+    private final MessageEncoder encoder;
+    private final ClusterHandler handler = new ClusterHandler(this);
+    private final String host;
+    private final int port;
+    /**
+     * 本节点的集群地址 host:port
+     */
+    private final String address;
+    private final String secret;
+    private final int maxMessageByteLength;
+    private final long presenceIntervalMillis;
+    /**
+     * 节点地址 -> 到该节点的连接，创建后不再修改
+     */
+    private final Map<String, PeerLink> links = new LinkedHashMap<>();
+    /**
+     * 清除断开节点的在线用户
+     */
+    private final ExecutorService directoryExecutor = Executors.newSingleThreadExecutor(
+            new DefaultThreadFactory("cluster-directory", true));
+    private final PresenceDirectory directory = new PresenceDirectory(directoryExecutor);
+    /**
+     * 节点地址 -> 该节点当前主动建立的连接，连接断开时清除该节点的在线用户
+     */
+    private final ConcurrentHashMap<String, Channel> nodeChannels = new ConcurrentHashMap<>();
+    /**
+     * 在线状态变化还没有发送的用户，发送时重新查询当前状态
+     */
+    private final Set<String> changedUsers = ConcurrentHashMap.newKeySet();
+    /**
+     * 发送在线用户变化的线程，同一个连接上的 NODE_HELLO、快照和增量都在这个线程中写出，保证顺序
+     */
+    private final EventExecutor presenceExecutor;
+    private ScheduledFuture<?> presenceFuture;
+    private Channel serverChannel;
+
+    private final LongAdder forwardedMessages = new LongAdder();
+    private final LongAdder receivedForwards = new LongAdder();
+    private final LongAdder presenceUpdates = new LongAdder();
+    private final LongAdder handedOverMessages = new LongAdder();
+
+    public Cluster(ProtocolProcessor processor, NettyTransport transport, IConfig props, int port) {
+        this.processor = processor;
+        this.channelManager = processor.getChannelManager();
+        this.transport = transport;
+        this.alloc = transport.getAllocator();
+        this.messageMetrics = processor.getMessageMetrics();
+        this.encoder = new MessageEncoder(messageMetrics);
+        this.host = props.getProperty(ServerConstants.CLUSTER_HOST, ServerConstants.DEFAULT_CLUSTER_HOST);
+        this.port = port;
+        this.address = host + ":" + port;
+        this.secret = props.getProperty(ServerConstants.CLUSTER_SECRET, "");
+        if (StringUtils.isEmpty(secret)) {
+            LOGGER.error("cluster secret is not configured, all cluster nodes will be rejected");
+        }
+        this.maxMessageByteLength = props.getProperty(ServerConstants.MAX_MESSAGE_BYTE_LENGTH,
+                ServerConstants.DEFAULT_MAX_MESSAGE_BYTE_LENGTH);
+        this.presenceIntervalMillis = Math.max(1,
+                props.getProperty(ServerConstants.CLUSTER_PRESENCE_INTERVAL, ServerConstants.DEFAULT_CLUSTER_PRESENCE_INTERVAL));
+        this.presenceExecutor = transport.getWorkerGroup().next();
+
+        long reconnectMillis = props.getProperty(ServerConstants.CLUSTER_RECONNECT_INTERVAL,
+                ServerConstants.DEFAULT_CLUSTER_RECONNECT_INTERVAL);
+        String nodes = props.getProperty(ServerConstants.CLUSTER_NODES, "");
+        for (String node : StringUtils.split(nodes, ',')) {
+            node = node.trim();
+            if (node.isEmpty() || node.equals(address) || links.containsKey(node)) {
+                continue;
+            }
+            links.put(node, new PeerLink(this, node, transport.newBootstrap(), reconnectMillis));
+        }
+    }
+
+    public void start() {
+        ServerBootstrap b = transport.newServerBootstrap();
+        b.childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                initPipeline(ch.pipeline());
+                ch.pipeline().addLast("cluster", handler);
+            }
+        });
+        serverChannel = b.bind(host, port).syncUninterruptibly().channel();
+
+        channelManager.setPresenceListener(this);
+        processor.setPushRouter(this);
+        presenceFuture = presenceExecutor.scheduleWithFixedDelay(this::publishPresence,
+                presenceIntervalMillis, presenceIntervalMillis, TimeUnit.MILLISECONDS);
+        for (PeerLink link : links.values()) {
+            link.connect();
+        }
+        LOGGER.info("cluster started. address={}, nodes={}", address, links.keySet());
+    }
+
+    public void close() {
+        processor.setPushRouter(null);
+        channelManager.setPresenceListener(null);
+        if (presenceFuture != null) {
+            presenceFuture.cancel(false);
+        }
+        for (PeerLink link : links.values()) {
+            link.close();
+        }
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        directoryExecutor.shutdown();
+    }
+
+    /**
+     * 节点之间连接的 pipeline，主动建立和被动接受的连接相同
+     */
+    void initPipeline(ChannelPipeline pipeline) {
+        pipeline.addLast("flushCoalescing", new FlushCoalescingHandler(0, ServerConstants.DEFAULT_FLUSH_MAX_BATCH));
+        // 与客户端使用相同的消息长度限制，超过限制的 FORWARD 不会发送
+        pipeline.addLast("decoder", new MessageDecoder(maxMessageByteLength, messageMetrics));
+        pipeline.addLast("encoder", encoder);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    PresenceDirectory getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 为接受的连接生成随机数
+     */
+    static byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * 回复对方 NODE_CHALLENGE 的 NODE_HELLO
+     */
+    Message hello(byte[] nonce) {
+        return ClusterMessages.hello(alloc, address, mac(nonce, address));
+    }
+
+    /**
+     * 校验其他节点发来的 NODE_HELLO
+     *
+     * @param nonce 发给这个连接的随机数
+     * @return cluster.nodes 中对应的节点地址，之后的在线用户记录和转发都使用这个实例；校验失败时返回 null
+     */
+    String authenticate(NodeHello hello, byte[] nonce) {
+        if (StringUtils.isEmpty(secret)) {
+            return null;
+        }
+        PeerLink link = links.get(hello.getAddress());
+        if (link == null || !MessageDigest.isEqual(mac(nonce, link.getAddress()), hello.getMac().toByteArray())) {
+            return null;
+        }
+        return link.getAddress();
+    }
+
+    private byte[] mac(byte[] nonce, String address) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM));
+            mac.update(nonce);
+            return mac.doFinal(address.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("compute cluster hello mac error", e);
+        }
+    }
+
+    @Override
+    public Set<String> forward(Collection<String> uins, ByteBuf payload) {
+        Map<PeerLink, List<String>> targets = null;
+        for (String uin : uins) {
+            PresenceDirectory.Node[] nodes = directory.nodes(uin);
+            if (nodes == null) {
+                continue;
+            }
+            for (PresenceDirectory.Node node : nodes) {
+                if (node.isRemoved()) {
+                    continue;
+                }
+                PeerLink link = links.get(node.getAddress());
+                if (link == null || !link.isActive()) {
+                    continue;
+                }
+                if (targets == null) {
+                    targets = new HashMap<>();
+                }
+                targets.computeIfAbsent(link, k -> new ArrayList<>()).add(uin);
+            }
+        }
+        if (targets == null) {
+            return Collections.emptySet();
+        }
+        Set<String> forwarded = new HashSet<>();
+        for (Map.Entry<PeerLink, List<String>> entry : targets.entrySet()) {
+            if (send(entry.getKey(), ClusterMessages.forward(alloc, entry.getValue(), null, payload))) {
+                forwardedMessages.increment();
+                forwarded.addAll(entry.getValue());
+            }
+        }
+        return forwarded;
+    }
+
+    /**
+     * 没有同步各节点订阅的主题，发布到主题的消息转发给所有节点
+     */
+    @Override
+    public int forwardTopic(String topic, ByteBuf payload) {
+        int count = 0;
+        for (PeerLink link : links.values()) {
+            if (link.isActive() && send(link, ClusterMessages.forward(alloc, Collections.emptyList(), topic, payload))) {
+                forwardedMessages.increment();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 消息体超过 message.size 时对方无法解码，不发送，目标用户按不在线处理
+     */
+    private boolean send(PeerLink link, Message message) {
+        if (message.getHeader().getRemainingLength() > maxMessageByteLength) {
+            LOGGER.warn("forward message too large, not sent to cluster node {}. length={}", link.getAddress(),
+                    message.getHeader().getRemainingLength());
+            message.release();
+            return false;
+        }
+        return link.send(message);
+    }
+
+    /**
+     * 投递其他节点转发过来的推送，不再转发
+     */
+    void deliver(List<String> uins, ByteBuf payload) {
+        receivedForwards.increment();
+        processor.push(uins, payload, false);
+    }
+
+    void deliverTopic(String topic, ByteBuf payload) {
+        receivedForwards.increment();
+        processor.publish(topic, payload, false);
+    }
+
+    /**
+     * 用户在其他节点上线，把本节点保存的离线消息按保存的顺序转发给该节点；连接不可用时重新保存
+     */
+    void handOverBacklog(String uin, PresenceDirectory.Node node) {
+        MessageStore store = processor.getMessageStore();
+        if (store.size() == 0) {
+            return;
+        }
+        store.drain(uin).whenComplete((backlog, error) -> {
+            if (error != null) {
+                LOGGER.error("drain backlog failed. uin={}", uin, error);
+                return;
+            }
+            PeerLink link = links.get(node.getAddress());
+            List<String> target = Collections.singletonList(uin);
+            for (Message message : backlog) {
+                try {
+                    if (node.isRemoved() || link == null
+                            || !send(link, ClusterMessages.forward(alloc, target, null, Messages.payload(message)))) {
+                        restore(store, uin, message);
+                    } else {
+                        handedOverMessages.increment();
+                    }
+                } finally {
+                    message.release();
+                }
+            }
+        });
+    }
+
+    private static void restore(MessageStore store, String uin, Message message) {
+        long messageId = Messages.messageId(message);
+        store.store(uin, message).whenComplete((stored, cause) -> {
+            if (cause != null || !stored) {
+                LOGGER.warn("publish message dropped. uin={}, messageId={}", uin, messageId);
+            }
+        });
+    }
+
+    @Override
+    public void presenceChanged(String uin, boolean online) {
+        changedUsers.add(uin);
+    }
+
+    /**
+     * 主动建立的连接收到了 NODE_CHALLENGE，发送 NODE_HELLO 和全量快照，之后才发送增量；NODE_HELLO 写出之前不会在这个连接上转发推送
+     */
+    void linkActive(PeerLink link, Channel channel, byte[] nonce) {
+        presenceExecutor.execute(() -> {
+            if (!channel.isActive()) {
+                return;
+            }
+            if (StringUtils.isEmpty(secret)) {
+                // 对方一定会拒绝
+                channel.close();
+                return;
+            }
+            channel.write(hello(nonce), channel.voidPromise());
+            link.helloSent(channel);
+            List<String> batch = new ArrayList<>(PRESENCE_BATCH_SIZE);
+            int[] count = new int[1];
+            channelManager.forEachUser(uin -> {
+                batch.add(uin);
+                count[0]++;
+                if (batch.size() >= PRESENCE_BATCH_SIZE) {
+                    channel.write(ClusterMessages.presence(alloc, batch, Collections.emptyList()), channel.voidPromise());
+                    batch.clear();
+                }
+            });
+            if (!batch.isEmpty()) {
+                channel.write(ClusterMessages.presence(alloc, batch, Collections.emptyList()), channel.voidPromise());
+            }
+            channel.flush();
+            link.ready(channel);
+            LOGGER.info("presence snapshot sent to cluster node {}. users={}", link.getAddress(), count[0]);
+        });
+    }
+
+    /**
+     * 批量发送在线状态变化的用户，在 presence 线程中定时执行
+     */
+    private void publishPresence() {
+        if (changedUsers.isEmpty()) {
+            return;
+        }
+        List<Channel> channels = new ArrayList<>(links.size());
+        for (PeerLink link : links.values()) {
+            Channel channel = link.readyChannel();
+            if (channel != null) {
+                channels.add(channel);
+            }
+        }
+        List<String> online = new ArrayList<>();
+        List<String> offline = new ArrayList<>();
+        for (Iterator<String> it = changedUsers.iterator(); it.hasNext(); ) {
+            String uin = it.next();
+            // 先移除再查询，查询之后的变化会重新加入，下个周期发送
+            it.remove();
+            if (channels.isEmpty()) {
+                continue;
+            }
+            (channelManager.isOnline(uin) ? online : offline).add(uin);
+            if (online.size() + offline.size() >= PRESENCE_BATCH_SIZE) {
+                sendPresence(channels, online, offline);
+                online.clear();
+                offline.clear();
+            }
+        }
+        if (!online.isEmpty() || !offline.isEmpty()) {
+            sendPresence(channels, online, offline);
+        }
+        for (Channel channel : channels) {
+            channel.flush();
+        }
+    }
+
+    private void sendPresence(List<Channel> channels, List<String> online, List<String> offline) {
+        Message message = ClusterMessages.presence(alloc, online, offline);
+        try {
+            for (Channel channel : channels) {
+                channel.write(new Message(message.getHeader(), message.content().retainedDuplicate()), channel.voidPromise());
+            }
+        } finally {
+            message.release();
+        }
+        presenceUpdates.increment();
+    }
+
+    /**
+     * 其他节点主动建立的连接发送了 NODE_HELLO，之前同步的在线用户作废，等待新的快照
+     *
+     * @return 这个连接上同步的在线用户记录在返回的节点中
+     */
+    PresenceDirectory.Node nodeConnected(String address, Channel channel) {
+        Channel old = nodeChannels.put(address, channel);
+        PresenceDirectory.Node node = directory.addNode(address);
+        if (old != null && old != channel) {
+            LOGGER.info("cluster node {} reconnected, close old channel {}", address, old);
+            old.close();
+        }
+        LOGGER.info("cluster node {} joined from {}", address, channel.remoteAddress());
+        return node;
+    }
+
+    void nodeDisconnected(PresenceDirectory.Node node, Channel channel) {
+        if (nodeChannels.remove(node.getAddress(), channel)) {
+            LOGGER.info("cluster node {} left", node.getAddress());
+        }
+        directory.removeNode(node);
+    }
+
+    /**
+     * 转发给其他节点的 FORWARD 消息数
+     */
+    public long forwardedMessageCount() {
+        return forwardedMessages.sum();
+    }
+
+    /**
+     * 收到其他节点转发的 FORWARD 消息数
+     */
+    public long receivedForwardCount() {
+        return receivedForwards.sum();
+    }
+
+    public long presenceUpdateCount() {
+        return presenceUpdates.sum();
+    }
+
+    /**
+     * 用户在其他节点上线后转发过去的离线消息数
+     */
+    public long handedOverMessageCount() {
+        return handedOverMessages.sum();
+    }
+
+    /**
+     * 在其他节点上在线的用户数
+     */
+    public long remoteUserCount() {
+        return directory.userCount();
+    }
+
+    /**
+     * 可用的主动连接数
+     */
+    public int activeLinkCount() {
+        int count = 0;
+        for (PeerLink link : links.values()) {
+            if (link.isActive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
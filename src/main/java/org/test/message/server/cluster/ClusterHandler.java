@@ -0,0 +1,140 @@
+package org.test.message.server.cluster;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageCommandType;
+import org.test.message.server.netty.handler.codec.Messages;
+import org.test.message.server.netty.handler.codec.proto.NodeHello;
+import org.test.message.server.netty.handler.codec.proto.Presence;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+
+/**
+ * 处理其他节点主动建立的连接：NODE_HELLO、PRESENCE 更新 {@link PresenceDirectory}，FORWARD 投递给本节点的连接或主题订阅者
+ * <br/>
+ * 同一个连接上的消息在同一个 EventLoop 中按顺序处理，在线状态变化不会乱序。
+ * 连接建立后先发送 NODE_CHALLENGE，对方的第一条消息必须是校验通过的 NODE_HELLO，
+ * 在此之前收到其他消息或者 {@link #HELLO_TIMEOUT_SECONDS} 秒内没有收到时关闭连接。
+ */
+@ChannelHandler.Sharable
+class ClusterHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterHandler.class);
+
+    private static final AttributeKey<PresenceDirectory.Node> ATTR_KEY_NODE = AttributeKey.valueOf("clusterNode");
+    /**
+     * 发给这个连接的随机数，收到 NODE_HELLO 后清除，只能使用一次
+     */
+    private static final AttributeKey<byte[]> ATTR_KEY_NONCE = AttributeKey.valueOf("clusterNonce");
+
+    private static final int HELLO_TIMEOUT_SECONDS = 10;
+
+    private final Cluster cluster;
+
+    ClusterHandler(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        Channel channel = ctx.channel();
+        byte[] nonce = Cluster.newNonce();
+        channel.attr(ATTR_KEY_NONCE).set(nonce);
+        channel.writeAndFlush(ClusterMessages.challenge(channel.alloc(), nonce), channel.voidPromise());
+        channel.eventLoop().schedule(() -> {
+            if (channel.isActive() && channel.attr(ATTR_KEY_NODE).get() == null) {
+                LOGGER.warn("cluster node hello timeout, close channel {}", channel);
+                channel.close();
+            }
+        }, HELLO_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof Message)) {
+            super.channelRead(ctx, msg);
+            return;
+        }
+        Message message = (Message) msg;
+        try {
+            PresenceDirectory.Node node = ctx.channel().attr(ATTR_KEY_NODE).get();
+            if (node == null) {
+                if (message.getHeader().getType() != MessageCommandType.NODE_HELLO) {
+                    LOGGER.warn("cluster message before hello, close channel {}. header={}", ctx.channel(), message.getHeader());
+                    ctx.close();
+                    return;
+                }
+                hello(ctx.channel(), Messages.parse(message, NodeHello.parser()));
+                return;
+            }
+            switch (message.getHeader().getType()) {
+                case PRESENCE:
+                    presence(node, Messages.parse(message, Presence.parser()));
+                    break;
+                case FORWARD:
+                    forward(message);
+                    break;
+                default:
+                    LOGGER.warn("unexpected cluster message, close channel {}. header={}", ctx.channel(), message.getHeader());
+                    ctx.close();
+                    break;
+            }
+        } finally {
+            message.release();
+        }
+    }
+
+    private void hello(Channel channel, NodeHello hello) {
+        // 使用 cluster.nodes 中的地址，与主动建立的连接一致
+        byte[] nonce = channel.attr(ATTR_KEY_NONCE).getAndSet(null);
+        String address = nonce == null ? null : cluster.authenticate(hello, nonce);
+        if (address == null) {
+            LOGGER.warn("cluster node hello rejected, close channel {}. address={}", channel, hello.getAddress());
+            channel.close();
+            return;
+        }
+        channel.attr(ATTR_KEY_NODE).set(cluster.nodeConnected(address, channel));
+    }
+
+    private void presence(PresenceDirectory.Node node, Presence presence) {
+        PresenceDirectory directory = cluster.getDirectory();
+        for (String uin : presence.getOnlineList()) {
+            directory.online(uin, node);
+            cluster.handOverBacklog(uin, node);
+        }
+        for (String uin : presence.getOfflineList()) {
+            directory.offline(uin, node);
+        }
+    }
+
+    private void forward(Message message) throws Exception {
+        ClusterMessages.Forwarded forwarded = ClusterMessages.forward(message);
+        if (forwarded.topic != null) {
+            cluster.deliverTopic(forwarded.topic, forwarded.payload);
+        } else {
+            cluster.deliver(forwarded.uins, forwarded.payload);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        PresenceDirectory.Node node = ctx.channel().attr(ATTR_KEY_NODE).get();
+        if (node != null) {
+            cluster.nodeDisconnected(node, ctx.channel());
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        LOGGER.warn("cluster channel {} exception, close it. msg={}", ctx.channel(), cause.getMessage());
+        ctx.close();
+    }
+}
@@ -0,0 +1,143 @@
+package org.test.message.server.cluster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageCommandType;
+import org.test.message.server.netty.handler.codec.MessageHeader;
+import org.test.message.server.netty.handler.codec.Messages;
+import org.test.message.server.netty.handler.codec.proto.NodeChallenge;
+import org.test.message.server.netty.handler.codec.proto.NodeHello;
+import org.test.message.server.netty.handler.codec.proto.Presence;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 集群节点之间消息的构造和解析，消息体格式见 message.proto
+ * <br/>
+ * FORWARD 的 payload 是最后一个字段，构造时和 {@link Messages#publish} 一样只编码前缀，解析时直接切片，都不拷贝 payload。
+ */
+final class ClusterMessages {
+    /**
+     * Forward.uins 字段：字段号 1，length-delimited
+     */
+    private static final int UINS_TAG = 1 << 3 | 2;
+    /**
+     * Forward.payload 字段：字段号 2，length-delimited
+     */
+    private static final int PAYLOAD_TAG = 2 << 3 | 2;
+    /**
+     * Forward.topic 字段：字段号 3，length-delimited
+     */
+    private static final int TOPIC_TAG = 3 << 3 | 2;
+
+    static Message challenge(ByteBufAllocator alloc, byte[] nonce) {
+        NodeChallenge challenge = NodeChallenge.newBuilder().setNonce(ByteString.copyFrom(nonce)).build();
+        return message(MessageCommandType.NODE_CHALLENGE, Messages.serialize(alloc, challenge));
+    }
+
+    static Message hello(ByteBufAllocator alloc, String address, byte[] mac) {
+        NodeHello hello = NodeHello.newBuilder().setAddress(address).setMac(ByteString.copyFrom(mac)).build();
+        return message(MessageCommandType.NODE_HELLO, Messages.serialize(alloc, hello));
+    }
+
+    static Message presence(ByteBufAllocator alloc, List<String> online, List<String> offline) {
+        Presence presence = Presence.newBuilder().addAllOnline(online).addAllOffline(offline).build();
+        return message(MessageCommandType.PRESENCE, Messages.serialize(alloc, presence));
+    }
+
+    /**
+     * 构造 FORWARD 消息，返回的消息持有 payload 的一个引用
+     *
+     * @param topic 发布到主题时不为 null，此时 uins 为空
+     */
+    static Message forward(ByteBufAllocator alloc, Collection<String> uins, String topic, ByteBuf payload) {
+        int payloadLength = payload.readableBytes();
+        int size = CodedOutputStream.computeTagSize(2) + CodedOutputStream.computeUInt32SizeNoTag(payloadLength);
+        for (String uin : uins) {
+            size += CodedOutputStream.computeStringSize(1, uin);
+        }
+        if (topic != null) {
+            size += CodedOutputStream.computeStringSize(3, topic);
+        }
+        ByteBuf prefix = alloc.buffer(size);
+        try {
+            CodedOutputStream output = CodedOutputStream.newInstance(prefix.nioBuffer(0, size));
+            for (String uin : uins) {
+                output.writeString(1, uin);
+            }
+            if (topic != null) {
+                output.writeString(3, topic);
+            }
+            output.writeUInt32NoTag(PAYLOAD_TAG);
+            output.writeUInt32NoTag(payloadLength);
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            prefix.release();
+            throw new IllegalStateException("serialize forward error", e);
+        }
+        prefix.writerIndex(size);
+        ByteBuf body = alloc.compositeBuffer(2).addComponents(true, prefix, payload.retain());
+        return message(MessageCommandType.FORWARD, body);
+    }
+
+    /**
+     * 解析 FORWARD 消息，不改变 readerIndex
+     * <br/>
+     * 返回的 payload 是切片，与消息体共享内存，只能在 message 释放之前使用
+     */
+    static Forwarded forward(Message message) throws IOException {
+        ByteBuf body = message.content();
+        CodedInputStream input = body.nioBufferCount() == 1
+                ? CodedInputStream.newInstance(body.nioBuffer())
+                : CodedInputStream.newInstance(Arrays.asList(body.nioBuffers()));
+        Forwarded forwarded = new Forwarded();
+        for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+            if (tag == UINS_TAG) {
+                forwarded.uins.add(input.readStringRequireUtf8());
+            } else if (tag == TOPIC_TAG) {
+                forwarded.topic = input.readStringRequireUtf8();
+            } else if (tag == PAYLOAD_TAG) {
+                int length = input.readRawVarint32();
+                int offset = input.getTotalBytesRead();
+                if (length < 0 || offset + length > body.readableBytes()) {
+                    throw new InvalidProtocolBufferException("truncated forward payload");
+                }
+                forwarded.payload = body.slice(body.readerIndex() + offset, length);
+                input.skipRawBytes(length);
+            } else if (!input.skipField(tag)) {
+                break;
+            }
+        }
+        return forwarded;
+    }
+
+    private static Message message(MessageCommandType type, ByteBuf body) {
+        return new Message(new MessageHeader(type, 0, 0, body.readableBytes()), body);
+    }
+
+    /**
+     * 解析后的 FORWARD 消息
+     */
+    static final class Forwarded {
+        final List<String> uins = new ArrayList<>();
+        /**
+         * 发布到主题的消息不为 null
+         */
+        String topic;
+        ByteBuf payload = Unpooled.EMPTY_BUFFER;
+    }
+
+    private ClusterMessages() {}
+}
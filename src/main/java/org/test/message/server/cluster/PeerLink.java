@@ -0,0 +1,180 @@
+package org.test.message.server.cluster;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageCommandType;
+import org.test.message.server.netty.handler.codec.Messages;
+import org.test.message.server.netty.handler.codec.proto.NodeChallenge;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 到另一个节点的长连接
+ * <br/>
+ * 每个节点主动连接其他所有节点，对方只发送一次 NODE_CHALLENGE，回复 NODE_HELLO 之后本节点的在线用户变化和转发的推送都从这个连接写出；
+ * 所有推送复用同一个连接，写出后不等待，连接断开后按固定间隔重连。
+ */
+class PeerLink {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PeerLink.class);
+
+    private final Cluster cluster;
+    private final String address;
+    private final String host;
+    private final int port;
+    private final Bootstrap bootstrap;
+    private final long reconnectMillis;
+
+    /**
+     * 已经建立的连接，还没有发送 NODE_HELLO 时不能写出其他消息
+     */
+    private volatile Channel connected;
+    /**
+     * 已经写出 NODE_HELLO 的连接，之后才能在这个连接上转发推送
+     */
+    private volatile Channel channel;
+    /**
+     * 已经发送了 NODE_HELLO 和在线用户快照的连接，之后才能在这个连接上发送增量的在线用户变化，只在 presence 线程中访问
+     */
+    private Channel readyChannel;
+    private volatile boolean closed;
+
+    PeerLink(Cluster cluster, String address, Bootstrap bootstrap, long reconnectMillis) {
+        int index = address.lastIndexOf(':');
+        if (index <= 0) {
+            throw new IllegalArgumentException("cluster node address must be host:port: " + address);
+        }
+        this.cluster = cluster;
+        this.address = address;
+        this.host = address.substring(0, index);
+        this.port = Integer.parseInt(address.substring(index + 1));
+        this.reconnectMillis = reconnectMillis;
+        this.bootstrap = bootstrap.clone().handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                cluster.initPipeline(ch.pipeline());
+                ch.pipeline().addLast("link", new LinkHandler());
+            }
+        });
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    void connect() {
+        if (closed) {
+            return;
+        }
+        bootstrap.connect(host, port).addListener((ChannelFuture future) -> {
+            if (!future.isSuccess()) {
+                LOGGER.debug("connect cluster node {} failed. msg={}", address, future.cause().getMessage());
+                scheduleReconnect();
+                return;
+            }
+            if (closed) {
+                future.channel().close();
+                return;
+            }
+            future.channel().closeFuture().addListener(f -> {
+                LOGGER.info("cluster node {} disconnected", address);
+                scheduleReconnect();
+            });
+        });
+    }
+
+    private void scheduleReconnect() {
+        if (!closed) {
+            bootstrap.config().group().schedule(this::connect, reconnectMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    boolean isActive() {
+        Channel ch = channel;
+        return ch != null && ch.isActive();
+    }
+
+    /**
+     * 可以发送增量在线用户变化的连接，没有时返回 null，只在 presence 线程中调用
+     */
+    Channel readyChannel() {
+        Channel ch = readyChannel;
+        return ch != null && ch == channel && ch.isActive() ? ch : null;
+    }
+
+    /**
+     * NODE_HELLO 已经写出，之后其他线程写出的消息都排在它后面，可以开始转发推送
+     */
+    void helloSent(Channel ch) {
+        this.channel = ch;
+    }
+
+    void ready(Channel ch) {
+        this.readyChannel = ch;
+    }
+
+    /**
+     * 写出并 flush，连接不可用时释放消息；多次 flush 由连接上的 FlushCoalescingHandler 合并
+     *
+     * @return 连接不可用时返回 false
+     */
+    boolean send(Message message) {
+        Channel ch = channel;
+        if (ch == null || !ch.isActive()) {
+            ReferenceCountUtil.release(message);
+            return false;
+        }
+        ch.writeAndFlush(message, ch.voidPromise());
+        return true;
+    }
+
+    void close() {
+        closed = true;
+        Channel ch = connected;
+        if (ch != null) {
+            ch.close();
+        }
+    }
+
+    private final class LinkHandler extends ChannelInboundHandlerAdapter {
+        private boolean challenged;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            LOGGER.info("cluster node {} connected", address);
+            connected = ctx.channel();
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            try {
+                if (challenged || !(msg instanceof Message)
+                        || ((Message) msg).getHeader().getType() != MessageCommandType.NODE_CHALLENGE) {
+                    LOGGER.warn("unexpected message from cluster node {}, close link", address);
+                    ctx.close();
+                    return;
+                }
+                challenged = true;
+                NodeChallenge challenge = Messages.parse((Message) msg, NodeChallenge.parser());
+                cluster.linkActive(PeerLink.this, ctx.channel(), challenge.getNonce().toByteArray());
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            LOGGER.warn("cluster link {} exception, close it. msg={}", address, cause.getMessage());
+            ctx.close();
+        }
+    }
+}
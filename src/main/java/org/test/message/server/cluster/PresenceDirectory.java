@@ -0,0 +1,151 @@
+package org.test.message.server.cluster;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * 其他节点上的在线用户：uin -> 节点
+ * <br/>
+ * value 是不可变的节点数组（一个用户可以同时在多个节点上有连接），修改时整体替换，转发路径上的查询不加锁。
+ * 每个节点的一次连接对应一个 {@link Node}，同时记录这次连接同步的用户；节点断开或重新连接时只处理这个节点的用户，
+ * 并且在 executor 中执行，不占用收到 NODE_HELLO 或连接断开的 EventLoop。清除完成之前旧的 {@link Node} 已经标记为移除，查询时跳过。
+ */
+class PresenceDirectory {
+    private final ConcurrentHashMap<String, Node[]> users = new ConcurrentHashMap<>();
+    /**
+     * 节点地址 -> 节点当前的连接
+     */
+    private final ConcurrentHashMap<String, Node> nodes = new ConcurrentHashMap<>();
+    /**
+     * 清除断开节点的用户
+     */
+    private final Executor executor;
+
+    PresenceDirectory(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * 节点发送了 NODE_HELLO，之前同步的在线用户作废
+     *
+     * @return 之后这个连接上同步的用户记录在返回的 Node 中
+     */
+    Node addNode(String address) {
+        Node node = new Node(address);
+        Node old = nodes.put(address, node);
+        if (old != null) {
+            retire(old);
+        }
+        return node;
+    }
+
+    /**
+     * 清除节点在这次连接上同步的所有用户，节点已经重新连接时不做处理
+     */
+    void removeNode(Node node) {
+        if (nodes.remove(node.address, node)) {
+            retire(node);
+        }
+    }
+
+    void online(String uin, Node node) {
+        if (node.removed) {
+            return;
+        }
+        node.uins.add(uin);
+        users.compute(uin, (key, current) -> {
+            if (current == null) {
+                return new Node[]{node};
+            }
+            for (Node n : current) {
+                if (n == node) {
+                    return current;
+                }
+            }
+            Node[] updated = new Node[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = node;
+            return updated;
+        });
+        if (node.removed) {
+            // 与 retire 并发执行，清除时可能没有遍历到这个用户
+            users.computeIfPresent(uin, (key, current) -> remove(current, node));
+        }
+    }
+
+    void offline(String uin, Node node) {
+        node.uins.remove(uin);
+        users.computeIfPresent(uin, (key, current) -> remove(current, node));
+    }
+
+    /**
+     * 用户所在的节点，不在其他节点上时返回 null；返回的节点可能已经移除，需要检查 {@link Node#isRemoved()}
+     */
+    Node[] nodes(String uin) {
+        return users.get(uin);
+    }
+
+    /**
+     * 在其他节点上在线的用户数，包括断开的节点上还没有清除的用户
+     */
+    long userCount() {
+        return users.mappingCount();
+    }
+
+    private void retire(Node node) {
+        node.removed = true;
+        executor.execute(() -> {
+            for (String uin : node.uins) {
+                users.computeIfPresent(uin, (key, current) -> remove(current, node));
+            }
+        });
+    }
+
+    /**
+     * @return 移除后为空时返回 null
+     */
+    private static Node[] remove(Node[] current, Node node) {
+        int index = -1;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == node) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return current;
+        }
+        if (current.length == 1) {
+            return null;
+        }
+        Node[] updated = new Node[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        return updated;
+    }
+
+    /**
+     * 节点的一次连接
+     */
+    static final class Node {
+        private final String address;
+        /**
+         * 这次连接上同步的在线用户
+         */
+        private final Set<String> uins = ConcurrentHashMap.newKeySet();
+        private volatile boolean removed;
+
+        Node(String address) {
+            this.address = address;
+        }
+
+        String getAddress() {
+            return address;
+        }
+
+        boolean isRemoved() {
+            return removed;
+        }
+    }
+}
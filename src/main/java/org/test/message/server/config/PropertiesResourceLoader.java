@@ -6,6 +6,9 @@ import java.util.Properties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * 读取 classpath 中的 {@link IConfig#DEFAULT_CONFIG}，同名的系统属性（-Dname=value）优先，便于在同一台机器上启动多个实例
+ */
 public class PropertiesResourceLoader implements IConfig {
     private static final Logger LOGGER = LoggerFactory.getLogger(PropertiesResourceLoader.class);
 
@@ -23,12 +26,13 @@ public class PropertiesResourceLoader implements IConfig {
 
     @Override
     public String getProperty(String name) {
-        return properties.getProperty(name);
+        return System.getProperty(name, properties.getProperty(name));
     }
 
     @Override
     public String getProperty(String name, String defaultValue) {
-        return properties.getProperty(name, defaultValue);
+        String value = getProperty(name);
+        return value == null ? defaultValue : value;
     }
 
     @Override
@@ -3,13 +3,201 @@ package org.test.message.server.config;
 public class ServerConstants {
     public static final String NETTY_EPOLL_PROPERTY_NAME = "netty.epoll";
     public static final String PORT = "netty.port";
+    /**
+     * 原生 TCP 端口，不配置时不启动
+     */
+    public static final String TCP_PORT = "netty.tcp.port";
     public static final String HOST = "netty.host";
+    public static final String BOSS_THREADS = "netty.boss.threads";
+    /**
+     * worker 线程数，0 表示使用 netty 默认值（CPU核数 * 2）
+     */
+    public static final String WORKER_THREADS = "netty.worker.threads";
+    public static final String SO_BACKLOG = "netty.so.backlog";
+    /**
+     * socket 接收/发送缓冲区大小，0 表示使用系统默认值
+     */
+    public static final String SO_RCVBUF = "netty.so.rcvbuf";
+    public static final String SO_SNDBUF = "netty.so.sndbuf";
+    public static final String WRITE_BUFFER_LOW_WATER_MARK = "netty.write.buffer.low";
+    public static final String WRITE_BUFFER_HIGH_WATER_MARK = "netty.write.buffer.high";
+    /**
+     * pooled 或 unpooled
+     */
+    public static final String ALLOCATOR_TYPE = "netty.allocator";
+    public static final String ALLOCATOR_PREFER_DIRECT = "netty.allocator.direct";
+    public static final String EPOLL_EDGE_TRIGGERED = "netty.epoll.edge.triggered";
+    /**
+     * 同一个端口使用 SO_REUSEPORT 绑定的 ServerChannel 数量，每个有独立的 accept 线程，只在 epoll 下生效
+     */
+    public static final String ACCEPTORS = "netty.acceptors";
+    /**
+     * 每秒允许的新连接数，0 表示不限制
+     */
+    public static final String ACCEPT_RATE = "netty.accept.rate";
+    /**
+     * 允许的突发连接数，默认等于 netty.accept.rate
+     */
+    public static final String ACCEPT_BURST = "netty.accept.burst";
+    /**
+     * 拒绝连接时建议客户端重试的最短间隔(s)
+     */
+    public static final String ACCEPT_RETRY_AFTER = "netty.accept.retry.after";
+    /**
+     * EventLoop 指标采集间隔(ms)，0 表示不采集
+     */
+    public static final String EVENT_LOOP_METRICS_INTERVAL = "netty.metrics.interval";
+    /**
+     * 连接不可写且待发送队列已满时的策略：drop_oldest、drop_newest、coalesce、disconnect
+     */
+    public static final String BACKPRESSURE_POLICY = "netty.backpressure.policy";
+    /**
+     * 每个连接不可写时最多缓存的字节数
+     */
+    public static final String BACKPRESSURE_MAX_QUEUED_BYTES = "netty.backpressure.max.bytes";
+    /**
+     * flush 合并窗口(μs)，0 表示合并同一次 EventLoop 迭代中的 flush
+     */
+    public static final String FLUSH_WINDOW_MICROS = "netty.flush.window.micros";
+    /**
+     * 最多合并的 flush 次数，小于等于 1 时不合并
+     */
+    public static final String FLUSH_MAX_BATCH = "netty.flush.max.batch";
+    /**
+     * 心跳间隔(ms)，三个心跳周期内没有收到任何消息的连接会被关闭
+     */
+    public static final String HEARTBEAT = "netty.heartbeat";
+    /**
+     * 连接存活检测的间隔(ms)
+     */
+    public static final String LIVENESS_TICK = "netty.liveness.tick";
+    /**
+     * 认证实现类，需要实现 {@link org.test.message.service.security.Authenticator}，默认使用 TokenAuthenticator
+     */
+    public static final String AUTH_CLASS_NAME = "auth.class";
+    /**
+     * TokenAuthenticator 使用的密钥，为空时拒绝所有连接
+     */
+    public static final String AUTH_SECRET = "auth.secret";
+    /**
+     * 调用 /push、/publish、/metrics 需要的密钥，请求头为 Authorization: Bearer &lt;secret&gt;，为空时拒绝这些请求
+     */
+    public static final String HTTP_SECRET = "http.secret";
+    /**
+     * 没有配置 auth.secret 时是否接受所有连接，只用于开发和压测
+     */
+    public static final String AUTH_ANONYMOUS = "auth.anonymous";
+    public static final String AUTH_THREADS = "auth.threads";
+    /**
+     * 认证线程池的队列长度，队列满时新连接返回服务不可用
+     */
+    public static final String AUTH_QUEUE_CAPACITY = "auth.queue.capacity";
+    public static final String AUTH_CACHE_SIZE = "auth.cache.size";
+    /**
+     * 认证结果的缓存时间(ms)
+     */
+    public static final String AUTH_CACHE_TTL = "auth.cache.ttl";
+    /**
+     * 离线消息存储的实现类，为空时使用 SegmentLogMessageStore
+     */
     public static final String STORAGE_CLASS_NAME = "storage.class";
+    public static final String STORAGE_DIR = "storage.dir";
+    /**
+     * 日志段文件大小(byte)，单条消息不能超过它
+     */
+    public static final String STORAGE_SEGMENT_SIZE = "storage.segment.size";
+    /**
+     * 组提交 fsync 的间隔(ms)
+     */
+    public static final String STORAGE_FLUSH_INTERVAL = "storage.flush.interval";
+    /**
+     * 回收日志段的间隔(ms)
+     */
+    public static final String STORAGE_COMPACT_INTERVAL = "storage.compact.interval";
+    /**
+     * MemoryMessageStore 每个用户最多保存的消息数，超过后丢弃最早的消息
+     */
+    public static final String STORAGE_MEMORY_USER_CAPACITY = "storage.memory.user.capacity";
+    /**
+     * MemoryMessageStore 所有消息体的字节数上限，超过后淘汰最久没有新消息的用户
+     */
+    public static final String STORAGE_MEMORY_MAX_BYTES = "storage.memory.max.bytes";
+    /**
+     * MemoryMessageStore 消息的保存时间(ms)
+     */
+    public static final String STORAGE_MEMORY_TTL = "storage.memory.ttl";
+    /**
+     * 集群端口，节点之间通过它转发推送和同步在线用户，不配置时不启用集群
+     */
+    public static final String CLUSTER_PORT = "cluster.port";
+    /**
+     * 集群端口绑定的地址，默认只绑定本机回环地址，多台机器组成集群时需要配置为内网地址；host:port 就是节点的集群地址
+     */
+    public static final String CLUSTER_HOST = "cluster.host";
+    /**
+     * 节点之间的共享密钥，NODE_HELLO 携带用它对 NODE_CHALLENGE 随机数计算的 HMAC-SHA256，密钥本身不会在网络上传输；没有配置时拒绝所有节点
+     */
+    public static final String CLUSTER_SECRET = "cluster.secret";
+    /**
+     * 集群中所有节点的地址，逗号分隔的 host:port，可以包含自身（会被忽略），所有节点可以使用同一份配置
+     */
+    public static final String CLUSTER_NODES = "cluster.nodes";
+    /**
+     * 批量发送在线用户变化的间隔(ms)
+     */
+    public static final String CLUSTER_PRESENCE_INTERVAL = "cluster.presence.interval";
+    /**
+     * 节点之间连接断开后重连的间隔(ms)
+     */
+    public static final String CLUSTER_RECONNECT_INTERVAL = "cluster.reconnect.interval";
+    /**
+     * 每个连接最多订阅的主题数
+     */
+    public static final String SUBSCRIPTION_MAX_TOPICS = "subscription.max.topics";
     public static final String MAX_MESSAGE_BYTE_LENGTH = "message.size";
+    public static final String PUBLISH_ACK_TIMEOUT = "publish.ack.timeout";
+    public static final String PUBLISH_MAX_BACKOFF = "publish.max.backoff";
     /**
      * 默认最大Message byte(256MB)
      */
     public static final int DEFAULT_MAX_MESSAGE_BYTE_LENGTH = 268435455;
 
     public static final int DEFAULT_HEARTBEAT = 30 * 1000;
+    public static final int DEFAULT_LIVENESS_TICK = 1000;
+    /**
+     * 允许客户端协商的最小心跳间隔(ms)
+     */
+    public static final int MIN_HEARTBEAT = 5 * 1000;
+    public static final boolean DEFAULT_AUTH_ANONYMOUS = false;
+    public static final int DEFAULT_AUTH_THREADS = 4;
+    public static final int DEFAULT_AUTH_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_AUTH_CACHE_SIZE = 100000;
+    public static final int DEFAULT_AUTH_CACHE_TTL = 10 * 60 * 1000;
+    public static final String DEFAULT_STORAGE_DIR = "data/store";
+    public static final int DEFAULT_STORAGE_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_STORAGE_FLUSH_INTERVAL = 10;
+    public static final int DEFAULT_STORAGE_COMPACT_INTERVAL = 60 * 1000;
+    public static final int DEFAULT_STORAGE_MEMORY_USER_CAPACITY = 128;
+    public static final long DEFAULT_STORAGE_MEMORY_MAX_BYTES = 256L * 1024 * 1024;
+    public static final int DEFAULT_STORAGE_MEMORY_TTL = 24 * 60 * 60 * 1000;
+    public static final String DEFAULT_CLUSTER_HOST = "127.0.0.1";
+    public static final int DEFAULT_CLUSTER_PRESENCE_INTERVAL = 10;
+    public static final int DEFAULT_CLUSTER_RECONNECT_INTERVAL = 1000;
+    public static final int DEFAULT_SUBSCRIPTION_MAX_TOPICS = 128;
+
+    public static final int DEFAULT_SO_BACKLOG = 128;
+    public static final int DEFAULT_ACCEPT_RETRY_AFTER = 5;
+    public static final int DEFAULT_BACKPRESSURE_MAX_QUEUED_BYTES = 256 * 1024;
+    public static final int DEFAULT_FLUSH_MAX_BATCH = 64;
+    public static final int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK = 32 * 1024;
+    public static final int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK = 64 * 1024;
+    public static final int DEFAULT_EVENT_LOOP_METRICS_INTERVAL = 10 * 1000;
+    /**
+     * 默认等待 PUBLISH_ACK 的时间(ms)，超时后重传
+     */
+    public static final int DEFAULT_PUBLISH_ACK_TIMEOUT = 5 * 1000;
+    /**
+     * 默认最大重传间隔(ms)
+     */
+    public static final int DEFAULT_PUBLISH_MAX_BACKOFF = 60 * 1000;
 }
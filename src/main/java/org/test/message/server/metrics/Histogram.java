@@ -0,0 +1,70 @@
+package org.test.message.server.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定分桶的直方图，记录时不分配内存、不加锁
+ * <br/>
+ * 第 i 个桶的上界是 2^i，最后一个桶没有上界，每个桶是一个 {@link LongAdder}，多线程并发记录时没有竞争。
+ * 相对误差不超过 2 倍，用于观察延迟分布和长尾。
+ */
+public class Histogram {
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param maxBits 有上界的最大桶为 2^maxBits，超过它的值都记录在最后一个桶
+     */
+    public Histogram(int maxBits) {
+        if (maxBits <= 0 || maxBits > 62) {
+            throw new IllegalArgumentException("maxBits must be in [1, 62]: " + maxBits);
+        }
+        buckets = new LongAdder[maxBits + 2];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        // 不小于 value 的最小的 2 的幂的指数
+        int index = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+        buckets[Math.min(index, buckets.length - 1)].increment();
+        sum.add(value);
+    }
+
+    /**
+     * 桶的数量，包括最后一个没有上界的桶
+     */
+    public int bucketCount() {
+        return buckets.length;
+    }
+
+    /**
+     * 第 index 个桶的上界，最后一个桶返回 {@link Long#MAX_VALUE}
+     */
+    public long upperBound(int index) {
+        return index == buckets.length - 1 ? Long.MAX_VALUE : 1L << index;
+    }
+
+    /**
+     * 落在第 index 个桶中的数量（不累计）
+     */
+    public long bucket(int index) {
+        return buckets[index].sum();
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,78 @@
+package org.test.message.server.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.test.message.server.netty.handler.codec.MessageCommandType;
+
+/**
+ * 按指令类型统计收发的消息数和字节数（消息头 + 消息体，不包括 WebSocket 帧头），以及解码失败次数
+ * <br/>
+ * 计数器按指令值下标存放在数组中，编解码时直接累加，不分配内存。
+ */
+public class MessageMetrics {
+    private final LongAdder[] receivedMessages;
+    private final LongAdder[] receivedBytes;
+    private final LongAdder[] sentMessages;
+    private final LongAdder[] sentBytes;
+    private final LongAdder decodeErrors = new LongAdder();
+
+    public MessageMetrics() {
+        int maxValue = 0;
+        for (MessageCommandType type : MessageCommandType.values()) {
+            maxValue = Math.max(maxValue, type.getValue());
+        }
+        receivedMessages = newAdders(maxValue + 1);
+        receivedBytes = newAdders(maxValue + 1);
+        sentMessages = newAdders(maxValue + 1);
+        sentBytes = newAdders(maxValue + 1);
+    }
+
+    private static LongAdder[] newAdders(int length) {
+        LongAdder[] adders = new LongAdder[length];
+        for (int i = 0; i < length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    public void received(MessageCommandType type, int bytes) {
+        receivedMessages[type.getValue()].increment();
+        receivedBytes[type.getValue()].add(bytes);
+    }
+
+    public void sent(MessageCommandType type, int bytes) {
+        sent(type, 1, bytes);
+    }
+
+    /**
+     * 同一条消息写给多个连接
+     */
+    public void sent(MessageCommandType type, long count, long bytes) {
+        sentMessages[type.getValue()].add(count);
+        sentBytes[type.getValue()].add(bytes);
+    }
+
+    public void decodeError() {
+        decodeErrors.increment();
+    }
+
+    public long receivedMessages(MessageCommandType type) {
+        return receivedMessages[type.getValue()].sum();
+    }
+
+    public long receivedBytes(MessageCommandType type) {
+        return receivedBytes[type.getValue()].sum();
+    }
+
+    public long sentMessages(MessageCommandType type) {
+        return sentMessages[type.getValue()].sum();
+    }
+
+    public long sentBytes(MessageCommandType type) {
+        return sentBytes[type.getValue()].sum();
+    }
+
+    public long decodeErrors() {
+        return decodeErrors.sum();
+    }
+}
@@ -0,0 +1,164 @@
+package org.test.message.server.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * 指标注册表，以 Prometheus 文本格式（0.0.4）导出
+ * <br/>
+ * 指标的值由各个组件自己的 LongAdder/计数方法提供，这里只在导出时读取，不参与热点路径；
+ * 同名的指标（标签不同）归为一组，只输出一次 HELP/TYPE。
+ */
+public class MetricsRegistry {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * 注册计数器，只增不减
+     *
+     * @param labels 标签名和值交替排列
+     */
+    public MetricsRegistry counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "counter").samples.add(new Sample(labels(labels), value::getAsLong));
+        return this;
+    }
+
+    public MetricsRegistry gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "gauge").samples.add(new Sample(labels(labels), value::getAsLong));
+        return this;
+    }
+
+    public MetricsRegistry gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "gauge").samples.add(new Sample(labels(labels), value));
+        return this;
+    }
+
+    /**
+     * 注册直方图
+     *
+     * @param scale 导出时桶上界和总和乘以的系数，例如直方图以微秒记录、以秒导出时为 1e-6
+     */
+    public MetricsRegistry histogram(String name, String help, Histogram histogram, double scale, String... labels) {
+        family(name, help, "histogram").histograms.add(new HistogramSample(labels(labels), histogram, scale));
+        return this;
+    }
+
+    private synchronized Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, k -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("metric " + name + " already registered as " + family.type);
+        }
+        return family;
+    }
+
+    public synchronized void writeTo(StringBuilder out) {
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Sample sample : family.samples) {
+                out.append(family.name).append(sample.labels.isEmpty() ? "" : "{" + sample.labels + "}").append(' ');
+                appendValue(out, sample.value.getAsDouble());
+                out.append('\n');
+            }
+            for (HistogramSample sample : family.histograms) {
+                writeHistogram(out, family.name, sample);
+            }
+        }
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, HistogramSample sample) {
+        Histogram histogram = sample.histogram;
+        String prefix = sample.labels.isEmpty() ? "" : sample.labels + ",";
+        long cumulative = 0;
+        int last = histogram.bucketCount() - 1;
+        for (int i = 0; i < last; i++) {
+            cumulative += histogram.bucket(i);
+            out.append(name).append("_bucket{").append(prefix).append("le=\"");
+            appendValue(out, histogram.upperBound(i) * sample.scale);
+            out.append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += histogram.bucket(last);
+        out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String labels = sample.labels.isEmpty() ? "" : "{" + sample.labels + "}";
+        out.append(name).append("_sum").append(labels).append(' ');
+        appendValue(out, histogram.sum() * sample.scale);
+        out.append('\n');
+        // 各个桶是分别读取的，count 取桶的累计值，保证和 +Inf 桶一致
+        out.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+    }
+
+    private static void appendValue(StringBuilder out, double value) {
+        if (value == (long) value) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+    }
+
+    private static String labels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be name/value pairs");
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    builder.append('\\').append(c);
+                } else if (c == '\n') {
+                    builder.append("\\n");
+                } else {
+                    builder.append(c);
+                }
+            }
+            builder.append('"');
+        }
+        return builder.toString();
+    }
+
+    private static final class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final List<Sample> samples = new ArrayList<>();
+        private final List<HistogramSample> histograms = new ArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final class Sample {
+        private final String labels;
+        private final DoubleSupplier value;
+
+        Sample(String labels, DoubleSupplier value) {
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+
+    private static final class HistogramSample {
+        private final String labels;
+        private final Histogram histogram;
+        private final double scale;
+
+        HistogramSample(String labels, Histogram histogram, double scale) {
+            this.labels = labels;
+            this.histogram = histogram;
+            this.scale = scale;
+        }
+    }
+}
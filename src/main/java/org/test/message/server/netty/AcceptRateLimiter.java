@@ -0,0 +1,68 @@
+package org.test.message.server.netty;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 新连接的限速器
+ * <br/>
+ * 令牌桶的 GCRA 实现：只用一个 {@link AtomicLong} 记录下一个令牌的理论到达时间，多个 EventLoop 并发调用时无锁；
+ * 超过速率的连接由调用方直接拒绝，避免在重连风暴中所有握手一起排队直到超时。
+ */
+public class AcceptRateLimiter {
+    /**
+     * 每个令牌的间隔(ns)
+     */
+    private final long emissionIntervalNanos;
+    /**
+     * 允许的突发时间(ns)
+     */
+    private final long burstToleranceNanos;
+    private final AtomicLong theoreticalArrivalTime;
+
+    private final LongAdder acceptedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    /**
+     * @param permitsPerSecond 每秒允许的新连接数，必须大于 0
+     * @param burst            允许的突发连接数，小于 1 时按 1 处理
+     */
+    public AcceptRateLimiter(int permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be greater than 0: " + permitsPerSecond);
+        }
+        this.emissionIntervalNanos = Math.max(1, TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.burstToleranceNanos = emissionIntervalNanos * Math.max(1, burst);
+        this.theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * 获取一个令牌
+     *
+     * @return 没有超过速率时返回 true
+     */
+    public boolean tryAcquire() {
+        for (; ; ) {
+            long now = System.nanoTime();
+            long tat = theoreticalArrivalTime.get();
+            long next = Math.max(tat, now) + emissionIntervalNanos;
+            if (next - now > burstToleranceNanos) {
+                rejectedCount.increment();
+                return false;
+            }
+            if (theoreticalArrivalTime.compareAndSet(tat, next)) {
+                acceptedCount.increment();
+                return true;
+            }
+        }
+    }
+
+    public long acceptedCount() {
+        return acceptedCount.sum();
+    }
+
+    public long rejectedCount() {
+        return rejectedCount.sum();
+    }
+}
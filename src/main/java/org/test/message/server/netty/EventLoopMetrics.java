@@ -0,0 +1,150 @@
+package org.test.message.server.netty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+/**
+ * 每个 worker EventLoop 的指标：待执行任务数、连接数、任务排队延迟
+ * <br/>
+ * 排队延迟通过定时向每个 EventLoop 提交一个探测任务测量，延迟持续升高说明该线程过载，心跳可能来不及处理
+ */
+public class EventLoopMetrics {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventLoopMetrics.class);
+
+    private final List<Gauge> gauges;
+    private final long intervalMillis;
+    private ScheduledFuture<?> probeFuture;
+
+    public EventLoopMetrics(EventLoopGroup group, long intervalMillis) {
+        List<Gauge> list = new ArrayList<>();
+        int index = 0;
+        for (EventExecutor executor : group) {
+            list.add(new Gauge(index++, (EventLoop) executor));
+        }
+        this.gauges = Collections.unmodifiableList(list);
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void start() {
+        if (intervalMillis <= 0 || probeFuture != null) {
+            return;
+        }
+        probeFuture = GlobalEventExecutor.INSTANCE.scheduleAtFixedRate(this::probe, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (probeFuture != null) {
+            probeFuture.cancel(false);
+            probeFuture = null;
+        }
+    }
+
+    /**
+     * 统计连接数，在 channel 注册到 EventLoop 之后调用
+     */
+    public void channelRegistered(Channel channel) {
+        Gauge gauge = gauge(channel.eventLoop());
+        if (gauge == null) {
+            return;
+        }
+        gauge.connections.increment();
+        channel.closeFuture().addListener((ChannelFutureListener) future -> gauge.connections.decrement());
+    }
+
+    public List<Gauge> getGauges() {
+        return gauges;
+    }
+
+    private Gauge gauge(EventLoop eventLoop) {
+        for (Gauge gauge : gauges) {
+            if (gauge.eventLoop == eventLoop) {
+                return gauge;
+            }
+        }
+        return null;
+    }
+
+    private void probe() {
+        for (Gauge gauge : gauges) {
+            long submitTime = System.nanoTime();
+            gauge.eventLoop.execute(() -> gauge.recordLatency(System.nanoTime() - submitTime));
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("event loop metrics: {}", gauges);
+        }
+    }
+
+    /**
+     * 一个 EventLoop 的指标
+     */
+    public static class Gauge {
+        private final int index;
+        private final EventLoop eventLoop;
+        private final LongAdder connections = new LongAdder();
+        private volatile long latencyNanos;
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        Gauge(int index, EventLoop eventLoop) {
+            this.index = index;
+            this.eventLoop = eventLoop;
+        }
+
+        private void recordLatency(long latency) {
+            latencyNanos = latency;
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * 待执行的任务数，非 SingleThreadEventExecutor 时返回 -1
+         */
+        public int getPendingTasks() {
+            return eventLoop instanceof SingleThreadEventExecutor ? ((SingleThreadEventExecutor) eventLoop).pendingTasks() : -1;
+        }
+
+        public long getConnections() {
+            return connections.sum();
+        }
+
+        /**
+         * 最近一次探测任务的排队延迟(μs)
+         */
+        public long getLatencyMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+        }
+
+        public long getMaxLatencyMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos.get());
+        }
+
+        @Override
+        public String toString() {
+            return "Gauge{" +
+                    "index=" + index +
+                    ", pendingTasks=" + getPendingTasks() +
+                    ", connections=" + getConnections() +
+                    ", latencyMicros=" + getLatencyMicros() +
+                    ", maxLatencyMicros=" + getMaxLatencyMicros() +
+                    '}';
+        }
+    }
+}
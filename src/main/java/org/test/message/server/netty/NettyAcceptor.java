@@ -1,34 +1,47 @@
 package org.test.message.server.netty;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.test.message.server.ServerAcceptor;
+import org.test.message.server.cluster.Cluster;
 import org.test.message.server.config.IConfig;
 import org.test.message.server.config.ServerConstants;
+import org.test.message.server.metrics.MessageMetrics;
+import org.test.message.server.metrics.MetricsRegistry;
+import org.test.message.server.netty.handler.FlushCoalescingHandler;
 import org.test.message.server.netty.handler.HttpServerHandler;
+import org.test.message.server.netty.handler.LivenessTracker;
 import org.test.message.server.netty.handler.NettyMqttHandler;
+import org.test.message.server.netty.handler.OverloadedHttpHandler;
+import org.test.message.server.netty.handler.SlowConsumerPolicy;
 import org.test.message.server.netty.handler.WebSocketServerHandler;
+import org.test.message.server.netty.handler.WriteBackpressure;
+import org.test.message.server.netty.handler.codec.MessageDecoder;
+import org.test.message.server.netty.handler.codec.MessageCommandType;
 import org.test.message.server.netty.handler.codec.MessageEncoder;
+import org.test.message.server.netty.handler.codec.proto.ConnectCode;
+import org.test.message.service.processor.PublishTracker;
 import org.test.message.service.processor.ProtocolProcessor;
+import org.test.message.service.security.AuthenticationService;
 import org.test.message.service.security.SslContextCreator;
+import org.test.message.service.storage.impl.MemoryMessageStore;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.epoll.EpollEventLoopGroup;
-import io.netty.channel.epoll.EpollServerSocketChannel;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.ssl.SslHandler;
@@ -40,43 +53,228 @@ public class NettyAcceptor implements ServerAcceptor {
      */
     public static final String SUB_PROTOCOL = "sub_protocol_name";
 
-    private EventLoopGroup bossGroup;
-    private EventLoopGroup workerGroup;
-    private Class<? extends ServerSocketChannel> channelClass;
+    private NettyTransport transport;
+    private EventLoopMetrics eventLoopMetrics;
     private int maxMessageByteLength;
+    /**
+     * 新连接限速，为 null 时不限制
+     */
+    private AcceptRateLimiter acceptRateLimiter;
+    private WriteBackpressure writeBackpressure;
+    private int flushWindowMicros;
+    private int flushMaxBatch;
+    private LivenessTracker livenessTracker;
+    private MessageMetrics messageMetrics;
+    private MetricsRegistry metricsRegistry;
+    /**
+     * 没有配置 cluster.port 时为 null
+     */
+    private Cluster cluster;
 
     @Override
     public void init(ProtocolProcessor processor, IConfig props, SslContextCreator sslCtxCreator) {
         maxMessageByteLength = props.getProperty(ServerConstants.MAX_MESSAGE_BYTE_LENGTH, ServerConstants.DEFAULT_MAX_MESSAGE_BYTE_LENGTH);
-        if (props.getProperty(ServerConstants.NETTY_EPOLL_PROPERTY_NAME, true)) {
-            bossGroup = new EpollEventLoopGroup();
-            workerGroup = new EpollEventLoopGroup();
-            channelClass = EpollServerSocketChannel.class;
-        } else {
-            bossGroup = new NioEventLoopGroup();
-            workerGroup = new NioEventLoopGroup();
-            channelClass = NioServerSocketChannel.class;
+        transport = new NettyTransport(props);
+        eventLoopMetrics = new EventLoopMetrics(transport.getWorkerGroup(),
+                props.getProperty(ServerConstants.EVENT_LOOP_METRICS_INTERVAL, ServerConstants.DEFAULT_EVENT_LOOP_METRICS_INTERVAL));
+        eventLoopMetrics.start();
+        int acceptRate = props.getProperty(ServerConstants.ACCEPT_RATE, 0);
+        if (acceptRate > 0) {
+            acceptRateLimiter = new AcceptRateLimiter(acceptRate, props.getProperty(ServerConstants.ACCEPT_BURST, acceptRate));
+        }
+        writeBackpressure = new WriteBackpressure(
+                SlowConsumerPolicy.of(props.getProperty(ServerConstants.BACKPRESSURE_POLICY), SlowConsumerPolicy.DROP_OLDEST),
+                props.getProperty(ServerConstants.BACKPRESSURE_MAX_QUEUED_BYTES, ServerConstants.DEFAULT_BACKPRESSURE_MAX_QUEUED_BYTES));
+        flushWindowMicros = props.getProperty(ServerConstants.FLUSH_WINDOW_MICROS, 0);
+        flushMaxBatch = props.getProperty(ServerConstants.FLUSH_MAX_BATCH, ServerConstants.DEFAULT_FLUSH_MAX_BATCH);
+        livenessTracker = new LivenessTracker(3L * props.getProperty(ServerConstants.HEARTBEAT, ServerConstants.DEFAULT_HEARTBEAT),
+                props.getProperty(ServerConstants.LIVENESS_TICK, ServerConstants.DEFAULT_LIVENESS_TICK));
+        messageMetrics = processor.getMessageMetrics();
+        int clusterPort = props.getProperty(ServerConstants.CLUSTER_PORT, 0);
+        if (clusterPort > 0) {
+            cluster = new Cluster(processor, transport, props, clusterPort);
         }
+        metricsRegistry = new MetricsRegistry();
+        registerMetrics(processor);
         final NettyMqttHandler handler = new NettyMqttHandler(processor);
 
-        initializeWSTransport(handler, props, sslCtxCreator.initSSLContext());
+        SSLContext sslContext = sslCtxCreator.initSSLContext();
+        initializeWSTransport(processor, handler, props, sslContext);
+        initializeTCPTransport(handler, props, sslContext);
+        if (cluster != null) {
+            cluster.start();
+        }
     }
 
     @Override
     public void close() {
-        workerGroup.shutdownGracefully();
-        bossGroup.shutdownGracefully();
+        if (cluster != null) {
+            cluster.close();
+        }
+        eventLoopMetrics.stop();
+        transport.close();
+    }
+
+    public EventLoopMetrics getEventLoopMetrics() {
+        return eventLoopMetrics;
+    }
+
+    public AcceptRateLimiter getAcceptRateLimiter() {
+        return acceptRateLimiter;
+    }
+
+    public LivenessTracker getLivenessTracker() {
+        return livenessTracker;
+    }
+
+    public WriteBackpressure getWriteBackpressure() {
+        return writeBackpressure;
+    }
+
+    public MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * 注册 /metrics 导出的指标，指标名以 message_server_ 开头
+     */
+    private void registerMetrics(ProtocolProcessor processor) {
+        MetricsRegistry registry = metricsRegistry;
+        for (EventLoopMetrics.Gauge gauge : eventLoopMetrics.getGauges()) {
+            String loop = String.valueOf(gauge.getIndex());
+            registry.gauge("message_server_event_loop_connections", "Connections registered on the event loop.",
+                    gauge::getConnections, "loop", loop);
+            registry.gauge("message_server_event_loop_pending_tasks", "Tasks waiting in the event loop queue.",
+                    gauge::getPendingTasks, "loop", loop);
+            registry.gauge("message_server_event_loop_latency_seconds", "Queueing delay of the last probe task.",
+                    () -> gauge.getLatencyMicros() / 1e6, "loop", loop);
+        }
+        registry.gauge("message_server_online_users", "Users with at least one connected channel.",
+                processor.getChannelManager()::onlineUserCount);
+        registry.gauge("message_server_online_channels", "Connected channels after CONNECT.",
+                processor.getChannelManager()::onlineChannelCount);
+        registry.gauge("message_server_topics", "Topics with at least one subscriber.",
+                processor.getSubscriptionManager()::topicCount);
+        registry.gauge("message_server_topic_subscriptions", "Topic subscriptions of connected channels.",
+                processor.getSubscriptionManager()::subscriptionCount);
+        if (acceptRateLimiter != null) {
+            registry.counter("message_server_accepted_connections_total", "Connections admitted by the accept rate limiter.",
+                    acceptRateLimiter::acceptedCount);
+            registry.counter("message_server_rejected_connections_total", "Connections rejected by the accept rate limiter.",
+                    acceptRateLimiter::rejectedCount);
+        }
+        for (ConnectCode code : ConnectCode.values()) {
+            if (code != ConnectCode.UNRECOGNIZED) {
+                registry.counter("message_server_connects_total", "CONNECT results by return code.",
+                        () -> processor.connectCount(code), "code", code.name().toLowerCase());
+            }
+        }
+        AuthenticationService auth = processor.getAuthenticationService();
+        registry.counter("message_server_auth_cache_hits_total", "Authentications answered from the token cache.", auth::cacheHits);
+        registry.counter("message_server_auth_cache_misses_total", "Authentications delegated to the authenticator.", auth::cacheMisses);
+        registry.counter("message_server_auth_rejected_total", "Authentications rejected because the auth pool was full.",
+                auth::rejectedCount);
+
+        for (MessageCommandType type : MessageCommandType.values()) {
+            if (type == MessageCommandType.UNKNOWN) {
+                continue;
+            }
+            String name = type.name().toLowerCase();
+            registry.counter("message_server_received_messages_total", "Messages decoded by type.",
+                    () -> messageMetrics.receivedMessages(type), "type", name);
+            registry.counter("message_server_received_bytes_total", "Message bytes decoded by type, excluding WebSocket framing.",
+                    () -> messageMetrics.receivedBytes(type), "type", name);
+            registry.counter("message_server_sent_messages_total", "Messages encoded by type.",
+                    () -> messageMetrics.sentMessages(type), "type", name);
+            registry.counter("message_server_sent_bytes_total", "Message bytes encoded by type, excluding WebSocket framing.",
+                    () -> messageMetrics.sentBytes(type), "type", name);
+        }
+        registry.counter("message_server_decode_errors_total", "Channels closed because of malformed or oversized messages.",
+                messageMetrics::decodeErrors);
+
+        PublishTracker tracker = processor.getPublishTracker();
+        registry.gauge("message_server_publish_inflight", "PUBLISH messages waiting for PUBLISH_ACK.", tracker::inflightCount);
+        registry.counter("message_server_publish_retransmits_total", "PUBLISH retransmissions.", tracker::retransmitCount);
+        registry.counter("message_server_publish_dead_letters_total", "PUBLISH messages never acknowledged.", tracker::deadLetterCount);
+        registry.histogram("message_server_publish_ack_latency_seconds", "Time from first write to PUBLISH_ACK.",
+                tracker.ackLatency(), 1e-6);
+        registry.gauge("message_server_resend_wheel_pending", "Timeouts pending in the retransmission wheel.",
+                processor.getReSendWheel()::pendingTimeouts);
+        registry.gauge("message_server_stored_messages", "Offline messages waiting in the message store.",
+                processor.getMessageStore()::size);
+        if (processor.getMessageStore() instanceof MemoryMessageStore) {
+            MemoryMessageStore store = (MemoryMessageStore) processor.getMessageStore();
+            registry.gauge("message_server_stored_bytes", "Offline message bytes held by the memory store.", store::bytes);
+            registry.counter("message_server_stored_expired_total", "Offline messages dropped after their TTL.", store::expiredCount);
+            registry.counter("message_server_stored_evicted_users_total", "Users evicted when the memory store was full.",
+                    store::evictedCount);
+            registry.counter("message_server_stored_overflow_total", "Offline messages dropped because a user queue was full.",
+                    store::overflowCount);
+            registry.gauge("message_server_storage_expiration_pending", "Messages waiting in the memory store expiration wheel.",
+                    store::pendingExpirations);
+            registry.gauge("message_server_storage_expiry_lag_avg_seconds",
+                    "Average delay between a message TTL and its expiration.", () -> store.averageExpiryLagMillis() / 1000);
+            registry.gauge("message_server_storage_expiry_lag_max_seconds",
+                    "Maximum delay between a message TTL and its expiration.", () -> store.maxExpiryLagMillis() / 1000.0);
+        }
+
+        registry.gauge("message_server_pending_write_bytes", "Bytes queued by the backpressure handlers.", writeBackpressure::queuedBytes);
+        registry.gauge("message_server_pending_write_messages", "Messages queued by the backpressure handlers.",
+                writeBackpressure::queuedMessages);
+        registry.counter("message_server_dropped_write_bytes_total", "Bytes dropped by the slow consumer policy.",
+                writeBackpressure::droppedBytes);
+        registry.counter("message_server_dropped_write_messages_total", "Messages dropped by the slow consumer policy.",
+                writeBackpressure::droppedMessages);
+        registry.counter("message_server_slow_consumer_disconnects_total", "Channels closed by the slow consumer policy.",
+                writeBackpressure::disconnects);
+        registry.counter("message_server_pings_total", "PING messages answered.", livenessTracker::pingCount);
+        registry.counter("message_server_idle_closed_total", "Channels closed by the liveness tracker.", livenessTracker::closedCount);
+
+        if (cluster != null) {
+            registry.gauge("message_server_cluster_links", "Active links to other cluster nodes.", cluster::activeLinkCount);
+            registry.gauge("message_server_cluster_remote_users", "Users online on other cluster nodes.", cluster::remoteUserCount);
+            registry.counter("message_server_cluster_forwarded_total", "FORWARD messages sent to other cluster nodes.",
+                    cluster::forwardedMessageCount);
+            registry.counter("message_server_cluster_received_forwards_total", "FORWARD messages received from other cluster nodes.",
+                    cluster::receivedForwardCount);
+            registry.counter("message_server_cluster_presence_updates_total", "PRESENCE batches sent to other cluster nodes.",
+                    cluster::presenceUpdateCount);
+            registry.counter("message_server_cluster_handed_over_total",
+                    "Offline messages forwarded to the node where the user came online.", cluster::handedOverMessageCount);
+        }
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        registry.gauge("message_server_jvm_heap_used_bytes", "Used JVM heap, including garbage not yet collected.",
+                () -> memory.getHeapMemoryUsage().getUsed());
+        ByteBufAllocator allocator = transport.getAllocator();
+        if (allocator instanceof ByteBufAllocatorMetricProvider) {
+            ByteBufAllocatorMetricProvider provider = (ByteBufAllocatorMetricProvider) allocator;
+            registry.gauge("message_server_allocator_used_bytes", "Memory reserved by the channel allocator.",
+                    () -> provider.metric().usedDirectMemory(), "type", "direct");
+            registry.gauge("message_server_allocator_used_bytes", "Memory reserved by the channel allocator.",
+                    () -> provider.metric().usedHeapMemory(), "type", "heap");
+        }
     }
 
     interface PipelineInitializer{
         void init(ChannelPipeline pipeline) throws Exception;
     }
 
-    private void initializeWSTransport(NettyMqttHandler mqttHandler, IConfig props, SSLContext sslContext) {
+    private void initializeWSTransport(ProtocolProcessor processor, NettyMqttHandler mqttHandler, IConfig props, SSLContext sslContext) {
         String host = props.getProperty(ServerConstants.HOST, "localhost");
         int sslPort = props.getProperty(ServerConstants.PORT, 8080);
+        String httpSecret = props.getProperty(ServerConstants.HTTP_SECRET);
+        if (StringUtils.isEmpty(httpSecret)) {
+            LOGGER.error("http secret is not configured, /push, /publish and /metrics will be rejected");
+        }
 
-        MessageEncoder messageEncoder = new MessageEncoder();
+        WebSocketServerHandler.MessageToWsEncoder messageEncoder = new WebSocketServerHandler.MessageToWsEncoder(messageMetrics);
+        OverloadedHttpHandler overloadedHttpHandler = new OverloadedHttpHandler(
+                props.getProperty(ServerConstants.ACCEPT_RETRY_AFTER, ServerConstants.DEFAULT_ACCEPT_RETRY_AFTER));
 
         initServer(host, sslPort, pipeline -> {
             if (null != sslContext) {
@@ -84,27 +282,80 @@ public class NettyAcceptor implements ServerAcceptor {
             }
             pipeline.addLast(new HttpServerCodec());
             pipeline.addLast("aggregator", new HttpObjectAggregator(65536));
+            // 升级之前的 HTTP 连接（包括 keep-alive 的推送调用）同样由 LivenessTracker 关闭，每个完整的请求更新一次最后读取时间
+            pipeline.addLast("liveness", livenessTracker.newHandler());
             WebSocketServerHandler.Builder builder = WebSocketServerHandler.Builder.newBuilder();
             builder.websocketPath("/ws");
             builder.subprotocol(SUB_PROTOCOL);
             builder.mqttHandler(mqttHandler);
             builder.maxMessageByteLength(maxMessageByteLength);
             builder.messageEncoder(messageEncoder);
+            builder.writeBackpressure(writeBackpressure);
+            builder.flushWindowMicros(flushWindowMicros);
+            builder.flushMaxBatch(flushMaxBatch);
+            builder.livenessTracker(livenessTracker);
+            builder.messageMetrics(messageMetrics);
 
             pipeline.addLast("webSocketServerHandler", builder.build());
-            pipeline.addLast("httpServerHandler", new HttpServerHandler(mqttHandler));
+            pipeline.addLast("httpServerHandler", new HttpServerHandler(processor, metricsRegistry, httpSecret));
+        }, pipeline -> {
+            // 超过限速的连接只解析第一个 HTTP 请求，返回 503
+            if (null != sslContext) {
+                pipeline.addLast("ssl", createSslHandler(sslContext, false));
+            }
+            pipeline.addLast(new HttpServerCodec());
+            pipeline.addLast("overloadedHandler", overloadedHttpHandler);
         });
 
     }
 
-    private void initServer(String host, int port, PipelineInitializer pipelineInitializer) {
-        ServerBootstrap b = new ServerBootstrap();
-        b.group(bossGroup, workerGroup).channel(channelClass)
-                .childHandler(new ChannelInitializer<SocketChannel>() {
+    /**
+     * 原生 TCP 连接，消息本身是自定界的，直接在 socket 上编解码，没有 HTTP 升级和 WebSocket 帧的开销
+     */
+    private void initializeTCPTransport(NettyMqttHandler mqttHandler, IConfig props, SSLContext sslContext) {
+        String host = props.getProperty(ServerConstants.HOST, "localhost");
+        int port = props.getProperty(ServerConstants.TCP_PORT, 0);
+        if (port <= 0) {
+            LOGGER.info("tcp transport disabled");
+            return;
+        }
+
+        MessageEncoder messageEncoder = new MessageEncoder(messageMetrics);
+
+        initServer(host, port, pipeline -> {
+            if (null != sslContext) {
+                pipeline.addLast("ssl", createSslHandler(sslContext, false));
+            }
+            if (flushMaxBatch > 1) {
+                pipeline.addLast("flushCoalescing", new FlushCoalescingHandler(flushWindowMicros, flushMaxBatch));
+            }
+            pipeline.addLast("decoder", new MessageDecoder(maxMessageByteLength, messageMetrics));
+            pipeline.addLast("encoder", messageEncoder);
+            pipeline.addLast("liveness", livenessTracker.newHandler());
+            pipeline.addLast("handler", mqttHandler);
+            pipeline.addLast("backpressure", writeBackpressure.newHandler());
+        }, null);
+    }
+
+    /**
+     * @param overloadedInitializer 超过连接限速时使用的 pipeline，为 null 时直接关闭连接
+     */
+    private void initServer(String host, int port, PipelineInitializer pipelineInitializer, PipelineInitializer overloadedInitializer) {
+        ServerBootstrap b = transport.newServerBootstrap();
+        b.childHandler(new ChannelInitializer<SocketChannel>() {
 
                     @Override
                     protected void initChannel(SocketChannel ch) throws Exception {
                         ChannelPipeline pipeline = ch.pipeline();
+                        if (acceptRateLimiter != null && !acceptRateLimiter.tryAcquire()) {
+                            if (overloadedInitializer == null) {
+                                ch.close();
+                            } else {
+                                overloadedInitializer.init(pipeline);
+                            }
+                            return;
+                        }
+                        eventLoopMetrics.channelRegistered(ch);
                         try {
                             pipelineInitializer.init(pipeline);
                         } catch (Throwable th) {
@@ -112,15 +363,16 @@ public class NettyAcceptor implements ServerAcceptor {
                             throw th;
                         }
                     }
-                })
-                .option(ChannelOption.SO_BACKLOG, 128)
-                .option(ChannelOption.SO_REUSEADDR, true)
-                .childOption(ChannelOption.TCP_NODELAY, true)
-                .childOption(ChannelOption.SO_KEEPALIVE, true);
+                });
 
-        ChannelFuture f = b.bind(host, port);
+        // 开启 SO_REUSEPORT 时同一个端口绑定多次，由内核在多个 accept 线程之间分配新连接
+        int acceptors = transport.getAcceptorCount();
         try {
-            f.sync().addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+            for (int i = 0; i < acceptors; i++) {
+                ChannelFuture f = b.bind(host, port);
+                f.sync().addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+            }
+            LOGGER.info("server bound. host={}, port={}, acceptors={}", host, port, acceptors);
         } catch (InterruptedException e) {
             LOGGER.error("init error. msg={}", e.getMessage(), e);
         }
@@ -0,0 +1,181 @@
+package org.test.message.server.netty;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.test.message.server.config.IConfig;
+import org.test.message.server.config.ServerConstants;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * 传输层配置
+ * <br/>
+ * 优先使用 epoll，不可用时回退到 NIO；线程数、backlog、socket 缓冲区、写水位线和内存分配器都可以配置
+ */
+public class NettyTransport {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NettyTransport.class);
+
+    private final boolean epoll;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final Class<? extends ServerSocketChannel> channelClass;
+    private final Class<? extends SocketChannel> clientChannelClass;
+    private final ByteBufAllocator allocator;
+    private final int backlog;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+    private final WriteBufferWaterMark writeBufferWaterMark;
+    private final boolean edgeTriggered;
+    private final int acceptorCount;
+
+    public NettyTransport(IConfig props) {
+        this.epoll = props.getProperty(ServerConstants.NETTY_EPOLL_PROPERTY_NAME, true) && epollAvailable();
+        int acceptors = props.getProperty(ServerConstants.ACCEPTORS, 1);
+        if (acceptors > 1 && !epoll) {
+            LOGGER.warn("SO_REUSEPORT requires epoll, ignore {}={}", ServerConstants.ACCEPTORS, acceptors);
+            acceptors = 1;
+        }
+        this.acceptorCount = Math.max(1, acceptors);
+        // 每个 ServerChannel 注册到不同的 boss 线程上
+        int bossThreads = Math.max(acceptorCount, props.getProperty(ServerConstants.BOSS_THREADS, 1));
+        int workerThreads = props.getProperty(ServerConstants.WORKER_THREADS, 0);
+        if (epoll) {
+            bossGroup = new EpollEventLoopGroup(bossThreads);
+            workerGroup = new EpollEventLoopGroup(workerThreads);
+            channelClass = EpollServerSocketChannel.class;
+            clientChannelClass = EpollSocketChannel.class;
+        } else {
+            bossGroup = new NioEventLoopGroup(bossThreads);
+            workerGroup = new NioEventLoopGroup(workerThreads);
+            channelClass = NioServerSocketChannel.class;
+            clientChannelClass = NioSocketChannel.class;
+        }
+
+        boolean preferDirect = props.getProperty(ServerConstants.ALLOCATOR_PREFER_DIRECT, true);
+        if (StringUtils.equalsIgnoreCase("unpooled", props.getProperty(ServerConstants.ALLOCATOR_TYPE, "pooled"))) {
+            allocator = new UnpooledByteBufAllocator(preferDirect);
+        } else {
+            allocator = new PooledByteBufAllocator(preferDirect);
+        }
+
+        backlog = props.getProperty(ServerConstants.SO_BACKLOG, ServerConstants.DEFAULT_SO_BACKLOG);
+        receiveBufferSize = props.getProperty(ServerConstants.SO_RCVBUF, 0);
+        sendBufferSize = props.getProperty(ServerConstants.SO_SNDBUF, 0);
+        writeBufferWaterMark = new WriteBufferWaterMark(
+                props.getProperty(ServerConstants.WRITE_BUFFER_LOW_WATER_MARK, ServerConstants.DEFAULT_WRITE_BUFFER_LOW_WATER_MARK),
+                props.getProperty(ServerConstants.WRITE_BUFFER_HIGH_WATER_MARK, ServerConstants.DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK));
+        edgeTriggered = props.getProperty(ServerConstants.EPOLL_EDGE_TRIGGERED, true);
+
+        LOGGER.info("transport={}, acceptors={}, bossThreads={}, workerThreads={}, backlog={}, rcvbuf={}, sndbuf={}, waterMark={}, allocator={}",
+                epoll ? "epoll" : "nio", acceptorCount, bossThreads, workerThreads, backlog, receiveBufferSize, sendBufferSize,
+                writeBufferWaterMark, allocator.getClass().getSimpleName());
+    }
+
+    private static boolean epollAvailable() {
+        if (Epoll.isAvailable()) {
+            return true;
+        }
+        LOGGER.info("epoll unavailable, fall back to nio. cause={}", String.valueOf(Epoll.unavailabilityCause()));
+        return false;
+    }
+
+    /**
+     * 创建已经设置好线程组、channel 类型和选项的 ServerBootstrap
+     */
+    public ServerBootstrap newServerBootstrap() {
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup).channel(channelClass)
+                .option(ChannelOption.SO_BACKLOG, backlog)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
+        if (receiveBufferSize > 0) {
+            b.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+            b.childOption(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        }
+        if (sendBufferSize > 0) {
+            b.childOption(ChannelOption.SO_SNDBUF, sendBufferSize);
+        }
+        if (epoll) {
+            EpollMode mode = edgeTriggered ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED;
+            b.option(EpollChannelOption.EPOLL_MODE, mode);
+            b.childOption(EpollChannelOption.EPOLL_MODE, mode);
+            if (acceptorCount > 1) {
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+        }
+        return b;
+    }
+
+    /**
+     * 创建主动连接使用的 Bootstrap，与服务端连接共享 worker 线程组、分配器和写水位线
+     */
+    public Bootstrap newBootstrap() {
+        Bootstrap b = new Bootstrap();
+        b.group(workerGroup).channel(clientChannelClass)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
+        if (receiveBufferSize > 0) {
+            b.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        }
+        if (sendBufferSize > 0) {
+            b.option(ChannelOption.SO_SNDBUF, sendBufferSize);
+        }
+        if (epoll) {
+            b.option(EpollChannelOption.EPOLL_MODE, edgeTriggered ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED);
+        }
+        return b;
+    }
+
+    /**
+     * 每个端口需要绑定的 ServerChannel 数量
+     */
+    public int getAcceptorCount() {
+        return acceptorCount;
+    }
+
+    public boolean isEpoll() {
+        return epoll;
+    }
+
+    public EventLoopGroup getBossGroup() {
+        return bossGroup;
+    }
+
+    public EventLoopGroup getWorkerGroup() {
+        return workerGroup;
+    }
+
+    public ByteBufAllocator getAllocator() {
+        return allocator;
+    }
+
+    public void close() {
+        workerGroup.shutdownGracefully();
+        bossGroup.shutdownGracefully();
+    }
+}
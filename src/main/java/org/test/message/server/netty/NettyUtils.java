@@ -1,12 +1,19 @@
 package org.test.message.server.netty;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.Channel;
 import io.netty.util.AttributeKey;
 
 public final class NettyUtils {
     public static final String KEY_UIN = "uin";
+    public static final String KEY_DEVICE_ID = "deviceId";
     private static final AttributeKey<String> ATTR_KEY_UIN = AttributeKey.valueOf(KEY_UIN);
+    public static final String KEY_WEBSOCKET = "websocket";
+    private static final AttributeKey<String> ATTR_KEY_DEVICE_ID = AttributeKey.valueOf(KEY_DEVICE_ID);
+    private static final AttributeKey<Boolean> ATTR_KEY_WEBSOCKET = AttributeKey.valueOf(KEY_WEBSOCKET);
+    public static final String KEY_CAPABILITIES = "capabilities";
+    private static final AttributeKey<Integer> ATTR_KEY_CAPABILITIES = AttributeKey.valueOf(KEY_CAPABILITIES);
 
     public static String uin(Channel channel) {
         channel.attr(NettyUtils.ATTR_KEY_UIN);
@@ -17,16 +24,42 @@ public final class NettyUtils {
         channel.attr(NettyUtils.ATTR_KEY_UIN).set(uin);
     }
 
+    public static String deviceId(Channel channel) {
+        return channel.attr(NettyUtils.ATTR_KEY_DEVICE_ID).get();
+    }
+
+    public static void deviceId(Channel channel, String deviceId) {
+        channel.attr(NettyUtils.ATTR_KEY_DEVICE_ID).set(deviceId);
+    }
+
+    /**
+     * 是否是 WebSocket 连接，WebSocket 连接直接写出的 ByteBuf 由编码器包装成 BinaryWebSocketFrame
+     */
+    public static boolean websocket(Channel channel) {
+        return Boolean.TRUE.equals(channel.attr(NettyUtils.ATTR_KEY_WEBSOCKET).get());
+    }
+
+    public static void websocket(Channel channel, boolean websocket) {
+        channel.attr(NettyUtils.ATTR_KEY_WEBSOCKET).set(websocket);
+    }
+
+    /**
+     * CONNECT 时协商的能力位，未连接时为 0
+     */
+    public static int capabilities(Channel channel) {
+        Integer capabilities = channel.attr(NettyUtils.ATTR_KEY_CAPABILITIES).get();
+        return capabilities == null ? 0 : capabilities;
+    }
+
+    public static void capabilities(Channel channel, int capabilities) {
+        channel.attr(NettyUtils.ATTR_KEY_CAPABILITIES).set(capabilities);
+    }
+
+    /**
+     * 拷贝可读部分的字节，不改变 readerIndex
+     */
     public static byte[] readBytes(ByteBuf buf) {
-        if (buf.hasArray()){
-            return buf.array();
-        } else {
-            byte[] payloadContent = new byte[buf.readableBytes()];
-            int mark = buf.readerIndex();
-            buf.readBytes(payloadContent);
-            buf.readerIndex(mark);
-            return payloadContent;
-        }
+        return ByteBufUtil.getBytes(buf);
     }
     private NettyUtils(){}
 }
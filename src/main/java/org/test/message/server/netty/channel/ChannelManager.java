@@ -1,4 +1,55 @@
 package org.test.message.server.netty.channel;
 
+import java.util.List;
+import java.util.function.Consumer;
+
+import io.netty.channel.Channel;
+
+/**
+ * 在线连接管理
+ * <br/>
+ * 维护 uin 到连接的映射，一个 uin 可以有多个设备同时在线，同一个设备只保留最新的连接。
+ */
 public interface ChannelManager {
+
+    /**
+     * 注册连接，同一个 uin 同一个设备已经存在的连接会被踢下线，连接关闭时自动注销
+     *
+     * @return 被替换掉的旧连接，不存在时返回 null
+     */
+    Channel register(String uin, String deviceId, Channel channel);
+
+    /**
+     * 注销连接
+     *
+     * @return 连接已注册并且被移除时返回 true
+     */
+    boolean unregister(Channel channel);
+
+    /**
+     * 获取 uin 的所有在线连接，不在线时返回空列表
+     */
+    List<Channel> getChannels(String uin);
+
+    boolean isOnline(String uin);
+
+    /**
+     * 在线用户数
+     */
+    int onlineUserCount();
+
+    /**
+     * 在线连接数
+     */
+    int onlineChannelCount();
+
+    /**
+     * 遍历所有在线用户，遍历过程中的注册、注销不一定可见
+     */
+    void forEachUser(Consumer<String> action);
+
+    /**
+     * 设置在线状态监听器，为 null 时不回调
+     */
+    void setPresenceListener(PresenceListener listener);
 }
@@ -0,0 +1,203 @@
+package org.test.message.server.netty.channel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.test.message.server.metrics.MessageMetrics;
+import org.test.message.server.netty.NettyUtils;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageEncoder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * 消息广播
+ * <br/>
+ * 消息只编码一次，所有接收方通过 retainedDuplicate 共享编码结果：原生 TCP 连接直接写出，
+ * WebSocket 连接包装成 {@link BinaryWebSocketFrame} 写出，帧头由 pipeline 中的 WebSocket 编码器写入，不拷贝消息。
+ * 接收方按 {@link EventLoop} 分组，每个 EventLoop 只提交一个任务，写完该组所有连接后每个连接只 flush 一次。
+ */
+public class MessageBroadcaster {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageBroadcaster.class);
+
+    private final ByteBufAllocator alloc;
+    private final MessageMetrics metrics;
+
+    public MessageBroadcaster() {
+        this(ByteBufAllocator.DEFAULT, new MessageMetrics());
+    }
+
+    public MessageBroadcaster(ByteBufAllocator alloc, MessageMetrics metrics) {
+        this.alloc = alloc;
+        this.metrics = metrics;
+    }
+
+    /**
+     * 向多个连接广播消息，不会改变 message 的引用计数
+     *
+     * @return 所有 EventLoop 都写完后完成
+     */
+    public Future<BroadcastResult> broadcast(Message message, Collection<Channel> channels) {
+        return broadcast(message, channels, null);
+    }
+
+    /**
+     * 向多个连接广播消息，不会改变 message 的引用计数
+     *
+     * @param listener 每写出一个连接后在该连接的 EventLoop 中回调，可以为 null
+     * @return 所有 EventLoop 都写完后完成
+     */
+    public Future<BroadcastResult> broadcast(Message message, Collection<Channel> channels, WriteListener listener) {
+        long startTime = System.nanoTime();
+        Promise<BroadcastResult> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+        if (channels.isEmpty()) {
+            return promise.setSuccess(new BroadcastResult(0, 0, System.nanoTime() - startTime));
+        }
+
+        Map<EventLoop, List<Channel>> groups = new IdentityHashMap<>();
+        for (Channel channel : channels) {
+            groups.computeIfAbsent(channel.eventLoop(), k -> new ArrayList<>()).add(channel);
+        }
+
+        ByteBuf encoded = MessageEncoder.encode(alloc, message);
+        AtomicInteger remaining = new AtomicInteger(groups.size());
+        AtomicLong written = new AtomicLong();
+        Runnable groupDone = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                BroadcastResult result = new BroadcastResult(channels.size(), written.get(), System.nanoTime() - startTime);
+                LOGGER.debug("broadcast finished. {}", result);
+                promise.setSuccess(result);
+            }
+        };
+        try {
+            for (Map.Entry<EventLoop, List<Channel>> entry : groups.entrySet()) {
+                ByteBuf groupEncoded = encoded.retainedDuplicate();
+                Message groupMessage = listener == null ? null : message.retain();
+                List<Channel> group = entry.getValue();
+                try {
+                    entry.getKey().execute(() -> {
+                        try {
+                            long count = writeGroup(group, groupEncoded, groupMessage, listener);
+                            written.addAndGet(count);
+                            metrics.sent(message.getHeader().getType(), count, count * groupEncoded.readableBytes());
+                        } finally {
+                            releaseGroup(groupEncoded, groupMessage);
+                            groupDone.run();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // EventLoop 已经关闭，这一组连接不会再写出，不影响其他组
+                    LOGGER.warn("broadcast rejected by event loop, skip {} channels. msg={}", group.size(), e.getMessage());
+                    releaseGroup(groupEncoded, groupMessage);
+                    groupDone.run();
+                }
+            }
+        } finally {
+            encoded.release();
+        }
+        return promise;
+    }
+
+    private static void releaseGroup(ByteBuf encoded, Message message) {
+        encoded.release();
+        if (message != null) {
+            message.release();
+        }
+    }
+
+    private static long writeGroup(List<Channel> group, ByteBuf encoded, Message message, WriteListener listener) {
+        long written = 0;
+        for (Channel channel : group) {
+            if (!channel.isActive()) {
+                continue;
+            }
+            // 共享 encoded 的引用计数
+            ByteBuf frame = encoded.retainedDuplicate();
+            channel.write(NettyUtils.websocket(channel) ? new BinaryWebSocketFrame(frame) : frame, channel.voidPromise());
+            written++;
+            if (listener != null) {
+                try {
+                    listener.written(channel, message);
+                } catch (Exception e) {
+                    LOGGER.error("broadcast write listener exception. channel={}", channel, e);
+                }
+            }
+        }
+        for (Channel channel : group) {
+            channel.flush();
+        }
+        return written;
+    }
+
+    /**
+     * 消息写出回调
+     */
+    public interface WriteListener {
+        void written(Channel channel, Message message);
+    }
+
+    /**
+     * 广播结果
+     */
+    public static class BroadcastResult {
+        private final int recipients;
+        private final long written;
+        private final long elapsedNanos;
+
+        public BroadcastResult(int recipients, long written, long elapsedNanos) {
+            this.recipients = recipients;
+            this.written = written;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * 接收方数量
+         */
+        public int getRecipients() {
+            return recipients;
+        }
+
+        /**
+         * 实际写出的连接数，已经断开的连接不计入
+         */
+        public long getWritten() {
+            return written;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * 每秒写出的消息数
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : written * 1_000_000_000D / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "BroadcastResult{" +
+                    "recipients=" + recipients +
+                    ", written=" + written +
+                    ", elapsedNanos=" + elapsedNanos +
+                    ", throughput=" + (long) getThroughput() + "/s" +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.test.message.server.netty.channel;
+
+/**
+ * 用户在线状态变化的监听器
+ * <br/>
+ * 只在用户的第一个连接注册、最后一个连接注销之后回调，此时变化已经对 {@link ChannelManager} 的查询可见；
+ * 同一个用户在多个线程中同时变化时回调可能乱序，需要准确状态时应该用 {@link ChannelManager#isOnline(String)} 重新查询。
+ * 回调在注册、注销的线程中执行，实现不能阻塞。
+ */
+public interface PresenceListener {
+
+    void presenceChanged(String uin, boolean online);
+}
@@ -0,0 +1,44 @@
+package org.test.message.server.netty.channel;
+
+import java.util.Collection;
+
+import io.netty.channel.Channel;
+
+/**
+ * 主题订阅管理
+ * <br/>
+ * 维护主题到订阅连接的映射，连接关闭时自动取消它的所有订阅。
+ */
+public interface SubscriptionManager {
+
+    /**
+     * 订阅主题，必须在连接的 EventLoop 中调用
+     *
+     * @return 已经订阅过、连接已经关闭或者超过每个连接的主题数上限时返回 false
+     */
+    boolean subscribe(String topic, Channel channel);
+
+    /**
+     * 取消订阅，必须在连接的 EventLoop 中调用
+     *
+     * @return 订阅存在并且被移除时返回 true
+     */
+    boolean unsubscribe(String topic, Channel channel);
+
+    /**
+     * 主题当前的订阅连接，返回的是不可修改的快照，之后的订阅变化不可见；没有订阅时返回空集合
+     */
+    Collection<Channel> getSubscribers(String topic);
+
+    int subscriberCount(String topic);
+
+    /**
+     * 至少有一个订阅的主题数
+     */
+    long topicCount();
+
+    /**
+     * 所有主题的订阅数之和
+     */
+    long subscriptionCount();
+}
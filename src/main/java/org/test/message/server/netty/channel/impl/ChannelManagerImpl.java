@@ -1,6 +1,222 @@
 package org.test.message.server.netty.channel.impl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.test.message.server.netty.NettyUtils;
 import org.test.message.server.netty.channel.ChannelManager;
+import org.test.message.server.netty.channel.PresenceListener;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.internal.MathUtil;
 
+/**
+ * 按 uin 分片的在线连接表
+ * <br/>
+ * 每个分片是一个独立的 {@link ConcurrentHashMap}，百万级连接时扩容只影响单个分片；
+ * value 是不可变的 {@link Session}，修改时整体替换，推送路径上的查询不加锁也不会和注册、注销竞争。
+ */
 public class ChannelManagerImpl implements ChannelManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChannelManagerImpl.class);
+
+    private final ConcurrentHashMap<String, Session>[] shards;
+    private final int mask;
+    private final LongAdder userCount = new LongAdder();
+    private final LongAdder channelCount = new LongAdder();
+    private final ChannelFutureListener unregisterListener = future -> unregister(future.channel());
+    private volatile PresenceListener presenceListener;
+
+    public ChannelManagerImpl() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public ChannelManagerImpl(int shardCount) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be greater than 0: " + shardCount);
+        }
+        int size = MathUtil.findNextPositivePowerOfTwo(shardCount);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentHashMap<String, Session>[] shards = new ConcurrentHashMap[size];
+        this.shards = shards;
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            shards[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    @Override
+    public Channel register(String uin, String deviceId, Channel channel) {
+        Objects.requireNonNull(uin, "uin");
+        Objects.requireNonNull(channel, "channel");
+        String device = StringUtils.defaultString(deviceId);
+        NettyUtils.uin(channel, uin);
+        NettyUtils.deviceId(channel, device);
+
+        Channel[] replaced = new Channel[1];
+        boolean[] online = new boolean[1];
+        shard(uin).compute(uin, (key, session) -> {
+            if (session == null) {
+                userCount.increment();
+                channelCount.increment();
+                online[0] = true;
+                return new Session(channel);
+            }
+            replaced[0] = session.find(device);
+            if (replaced[0] == null) {
+                channelCount.increment();
+            }
+            return session.put(channel, replaced[0]);
+        });
+
+        if (online[0]) {
+            firePresenceChanged(uin, true);
+        }
+        channel.closeFuture().addListener(unregisterListener);
+        Channel old = replaced[0];
+        if (old == null || old == channel) {
+            return null;
+        }
+        LOGGER.info("uin {} device {} reconnected, kick old channel {}", uin, device, old);
+        old.closeFuture().removeListener(unregisterListener);
+        old.close();
+        return old;
+    }
+
+    @Override
+    public boolean unregister(Channel channel) {
+        String uin = NettyUtils.uin(channel);
+        if (uin == null) {
+            return false;
+        }
+        boolean[] removed = new boolean[1];
+        boolean[] offline = new boolean[1];
+        shard(uin).computeIfPresent(uin, (key, session) -> {
+            Session updated = session.remove(channel);
+            if (updated == session) {
+                return session;
+            }
+            removed[0] = true;
+            channelCount.decrement();
+            if (updated == null) {
+                userCount.decrement();
+                offline[0] = true;
+            }
+            return updated;
+        });
+        if (offline[0]) {
+            firePresenceChanged(uin, false);
+        }
+        return removed[0];
+    }
+
+    @Override
+    public List<Channel> getChannels(String uin) {
+        if (uin == null) {
+            return Collections.emptyList();
+        }
+        Session session = shard(uin).get(uin);
+        return session == null ? Collections.emptyList() : session.channels;
+    }
+
+    @Override
+    public boolean isOnline(String uin) {
+        return uin != null && shard(uin).containsKey(uin);
+    }
+
+    @Override
+    public int onlineUserCount() {
+        return userCount.intValue();
+    }
+
+    @Override
+    public int onlineChannelCount() {
+        return channelCount.intValue();
+    }
+
+    @Override
+    public void forEachUser(Consumer<String> action) {
+        for (ConcurrentHashMap<String, Session> shard : shards) {
+            shard.keySet().forEach(action);
+        }
+    }
+
+    @Override
+    public void setPresenceListener(PresenceListener listener) {
+        this.presenceListener = listener;
+    }
+
+    private void firePresenceChanged(String uin, boolean online) {
+        PresenceListener listener = presenceListener;
+        if (listener != null) {
+            listener.presenceChanged(uin, online);
+        }
+    }
+
+    private ConcurrentHashMap<String, Session> shard(String uin) {
+        int h = uin.hashCode();
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    /**
+     * 一个 uin 的所有在线连接，不可变
+     */
+    private static final class Session {
+        private final List<Channel> channels;
+
+        Session(Channel channel) {
+            this.channels = Collections.singletonList(channel);
+        }
+
+        Session(List<Channel> channels) {
+            this.channels = Collections.unmodifiableList(channels);
+        }
+
+        Channel find(String deviceId) {
+            for (Channel channel : channels) {
+                if (deviceId.equals(NettyUtils.deviceId(channel))) {
+                    return channel;
+                }
+            }
+            return null;
+        }
+
+        Session put(Channel channel, Channel replaced) {
+            List<Channel> list = new ArrayList<>(channels.size() + (replaced == null ? 1 : 0));
+            for (Channel c : channels) {
+                if (c != replaced) {
+                    list.add(c);
+                }
+            }
+            list.add(channel);
+            return new Session(list);
+        }
+
+        /**
+         * @return 不包含 channel 时返回自身，移除后为空时返回 null
+         */
+        Session remove(Channel channel) {
+            if (!channels.contains(channel)) {
+                return this;
+            }
+            if (channels.size() == 1) {
+                return null;
+            }
+            List<Channel> list = new ArrayList<>(channels.size() - 1);
+            for (Channel c : channels) {
+                if (c != channel) {
+                    list.add(c);
+                }
+            }
+            return new Session(list);
+        }
+    }
 }
@@ -0,0 +1,281 @@
+package org.test.message.server.netty.channel.impl;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.test.message.server.config.ServerConstants;
+import org.test.message.server.netty.channel.SubscriptionManager;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
+
+/**
+ * 主题订阅表，读多写少
+ * <br/>
+ * 订阅者少的主题 value 直接是不可变的 {@code Channel[]}，每个主题除了 map 的节点只多一个数组，百万级小主题时没有额外的对象开销；
+ * 订阅者超过 {@link #STRIPE_THRESHOLD} 的主题改用 {@link StripedChannels}，按连接分成 {@link #STRIPE_COUNT} 段，
+ * 每段是写时复制的数组，订阅、取消订阅只复制一段，百万订阅者的主题每次修改也只复制几千个引用。
+ * 修改都在 {@link ConcurrentHashMap#compute} 中进行，同一个主题的修改串行；发布时读取各段数组的快照，不加锁也不复制。
+ * <br/>
+ * 每个连接订阅的主题保存在连接的属性中，只在连接的 EventLoop 中访问，连接关闭时逐个取消。
+ */
+public class SubscriptionManagerImpl implements SubscriptionManager {
+    /**
+     * 订阅者超过这个数量时分段存储
+     */
+    private static final int STRIPE_THRESHOLD = 64;
+    private static final int STRIPE_COUNT = 256;
+
+    private static final Channel[] EMPTY = new Channel[0];
+
+    private static final AttributeKey<List<String>> ATTR_KEY_TOPICS = AttributeKey.valueOf("topics");
+
+    /**
+     * 主题 -> Channel[] 或 StripedChannels
+     */
+    private final ConcurrentHashMap<String, Object> topics = new ConcurrentHashMap<>();
+    private final LongAdder subscriptionCount = new LongAdder();
+    private final int maxTopicsPerChannel;
+    private final ChannelFutureListener unsubscribeAllListener = future -> unsubscribeAll(future.channel());
+
+    public SubscriptionManagerImpl() {
+        this(ServerConstants.DEFAULT_SUBSCRIPTION_MAX_TOPICS);
+    }
+
+    public SubscriptionManagerImpl(int maxTopicsPerChannel) {
+        if (maxTopicsPerChannel <= 0) {
+            throw new IllegalArgumentException("maxTopicsPerChannel must be greater than 0: " + maxTopicsPerChannel);
+        }
+        this.maxTopicsPerChannel = maxTopicsPerChannel;
+    }
+
+    @Override
+    public boolean subscribe(String topic, Channel channel) {
+        if (!channel.isActive()) {
+            return false;
+        }
+        List<String> channelTopics = channel.attr(ATTR_KEY_TOPICS).get();
+        if (channelTopics == null) {
+            channelTopics = new ArrayList<>(4);
+            channel.attr(ATTR_KEY_TOPICS).set(channelTopics);
+            channel.closeFuture().addListener(unsubscribeAllListener);
+        } else if (channelTopics.contains(topic) || channelTopics.size() >= maxTopicsPerChannel) {
+            return false;
+        }
+        channelTopics.add(topic);
+        topics.compute(topic, (key, value) -> add(value, channel));
+        subscriptionCount.increment();
+        return true;
+    }
+
+    @Override
+    public boolean unsubscribe(String topic, Channel channel) {
+        List<String> channelTopics = channel.attr(ATTR_KEY_TOPICS).get();
+        if (channelTopics == null || !channelTopics.remove(topic)) {
+            return false;
+        }
+        remove(topic, channel);
+        return true;
+    }
+
+    private void unsubscribeAll(Channel channel) {
+        List<String> channelTopics = channel.attr(ATTR_KEY_TOPICS).getAndSet(null);
+        if (channelTopics == null) {
+            return;
+        }
+        for (String topic : channelTopics) {
+            remove(topic, channel);
+        }
+    }
+
+    private void remove(String topic, Channel channel) {
+        topics.computeIfPresent(topic, (key, value) -> remove(value, channel));
+        subscriptionCount.decrement();
+    }
+
+    @Override
+    public Collection<Channel> getSubscribers(String topic) {
+        Object value = topics.get(topic);
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        if (value instanceof StripedChannels) {
+            return ((StripedChannels) value).snapshot();
+        }
+        return Collections.unmodifiableList(Arrays.asList((Channel[]) value));
+    }
+
+    @Override
+    public int subscriberCount(String topic) {
+        Object value = topics.get(topic);
+        if (value == null) {
+            return 0;
+        }
+        return value instanceof StripedChannels ? ((StripedChannels) value).size : ((Channel[]) value).length;
+    }
+
+    @Override
+    public long topicCount() {
+        return topics.mappingCount();
+    }
+
+    @Override
+    public long subscriptionCount() {
+        return subscriptionCount.sum();
+    }
+
+    private static Object add(Object value, Channel channel) {
+        if (value == null) {
+            return new Channel[]{channel};
+        }
+        if (value instanceof StripedChannels) {
+            ((StripedChannels) value).add(channel);
+            return value;
+        }
+        Channel[] channels = (Channel[]) value;
+        if (channels.length >= STRIPE_THRESHOLD) {
+            StripedChannels striped = new StripedChannels(channels);
+            striped.add(channel);
+            return striped;
+        }
+        return append(channels, channel);
+    }
+
+    /**
+     * @return 移除后没有订阅者时返回 null
+     */
+    private static Object remove(Object value, Channel channel) {
+        if (value instanceof StripedChannels) {
+            StripedChannels striped = (StripedChannels) value;
+            striped.remove(channel);
+            return striped.size == 0 ? null : striped;
+        }
+        Channel[] channels = remove((Channel[]) value, channel);
+        return channels.length == 0 ? null : channels;
+    }
+
+    private static Channel[] append(Channel[] channels, Channel channel) {
+        Channel[] updated = Arrays.copyOf(channels, channels.length + 1);
+        updated[channels.length] = channel;
+        return updated;
+    }
+
+    private static Channel[] remove(Channel[] channels, Channel channel) {
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] == channel) {
+                if (channels.length == 1) {
+                    return EMPTY;
+                }
+                Channel[] updated = new Channel[channels.length - 1];
+                System.arraycopy(channels, 0, updated, 0, i);
+                System.arraycopy(channels, i + 1, updated, i, channels.length - i - 1);
+                return updated;
+            }
+        }
+        return channels;
+    }
+
+    /**
+     * 订阅者多的主题，按连接的 hash 分段，每段是写时复制的数组；只在 compute 中修改，读取不加锁
+     */
+    private static final class StripedChannels {
+        private final AtomicReferenceArray<Channel[]> stripes = new AtomicReferenceArray<>(STRIPE_COUNT);
+        private volatile int size;
+
+        StripedChannels(Channel[] channels) {
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                stripes.set(i, EMPTY);
+            }
+            for (Channel channel : channels) {
+                add(channel);
+            }
+        }
+
+        void add(Channel channel) {
+            int index = stripe(channel);
+            stripes.set(index, append(stripes.get(index), channel));
+            size++;
+        }
+
+        void remove(Channel channel) {
+            int index = stripe(channel);
+            Channel[] channels = stripes.get(index);
+            Channel[] updated = SubscriptionManagerImpl.remove(channels, channel);
+            if (updated != channels) {
+                stripes.set(index, updated);
+                size--;
+            }
+        }
+
+        Collection<Channel> snapshot() {
+            Channel[][] arrays = new Channel[STRIPE_COUNT][];
+            int total = 0;
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                arrays[i] = stripes.get(i);
+                total += arrays[i].length;
+            }
+            return new ChannelsView(arrays, total);
+        }
+
+        private static int stripe(Channel channel) {
+            int h = channel.hashCode();
+            return (h ^ (h >>> 16)) & (STRIPE_COUNT - 1);
+        }
+    }
+
+    /**
+     * 多个数组拼接成的只读集合
+     */
+    private static final class ChannelsView extends AbstractCollection<Channel> {
+        private final Channel[][] arrays;
+        private final int size;
+
+        ChannelsView(Channel[][] arrays, int size) {
+            this.arrays = arrays;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<Channel> iterator() {
+            return new Iterator<Channel>() {
+                private int array;
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    while (array < arrays.length) {
+                        if (index < arrays[array].length) {
+                            return true;
+                        }
+                        array++;
+                        index = 0;
+                    }
+                    return false;
+                }
+
+                @Override
+                public Channel next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return arrays[array][index++];
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.test.message.server.netty.handler;
+
+import java.util.ArrayDeque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.test.message.server.netty.NettyUtils;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 连接级别的写背压
+ * <br/>
+ * 必须位于 pipeline 的最后，这样 channel.write 写出的 {@link org.test.message.server.netty.handler.codec.Message}
+ * 和广播写出的已编码 ByteBuf 都会先经过它。连接可写时直接向下传递；超过高水位线变为不可写后，
+ * 消息进入有界队列，等连接恢复可写（低于低水位线）时按顺序写出，队列满时按 {@link SlowConsumerPolicy} 处理。
+ * 被丢弃的 PUBLISH 仍在 PublishTracker 的发送窗口中，超时后会被重传。
+ */
+public class BackpressureHandler extends ChannelDuplexHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackpressureHandler.class);
+
+    private final WriteBackpressure backpressure;
+    private final ArrayDeque<PendingWrite> queue = new ArrayDeque<>();
+    private long queuedBytes;
+
+    BackpressureHandler(WriteBackpressure backpressure) {
+        this.backpressure = backpressure;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (queue.isEmpty() && ctx.channel().isWritable()) {
+            ctx.write(msg, promise);
+            return;
+        }
+        if (!ctx.channel().isActive()) {
+            // 连接已经关闭，交给下游释放消息并设置 promise
+            ctx.write(msg, promise);
+            return;
+        }
+
+        int size = size(msg);
+        if (queuedBytes + size > backpressure.getMaxQueuedBytes()) {
+            switch (backpressure.getPolicy()) {
+                case DROP_NEWEST:
+                    drop(new PendingWrite(msg, promise, size));
+                    return;
+                case DROP_OLDEST:
+                    while (!queue.isEmpty() && queuedBytes + size > backpressure.getMaxQueuedBytes()) {
+                        drop(poll());
+                    }
+                    break;
+                case COALESCE:
+                    while (!queue.isEmpty()) {
+                        drop(poll());
+                    }
+                    break;
+                case DISCONNECT:
+                default:
+                    drop(new PendingWrite(msg, promise, size));
+                    backpressure.disconnects.increment();
+                    LOGGER.info("slow consumer disconnected. uin={}, queuedBytes={}", NettyUtils.uin(ctx.channel()), queuedBytes);
+                    ctx.close();
+                    return;
+            }
+        }
+        queue.add(new PendingWrite(msg, promise, size));
+        queuedBytes += size;
+        backpressure.queuedBytes.add(size);
+        backpressure.queuedMessages.increment();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            drain(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releaseAll();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        releaseAll();
+    }
+
+    /**
+     * 连接可写时按顺序写出队列中的消息
+     */
+    private void drain(ChannelHandlerContext ctx) {
+        boolean written = false;
+        while (!queue.isEmpty() && ctx.channel().isWritable()) {
+            PendingWrite pending = poll();
+            ctx.write(pending.msg, pending.promise);
+            written = true;
+        }
+        if (written) {
+            ctx.flush();
+        }
+    }
+
+    private PendingWrite poll() {
+        PendingWrite pending = queue.poll();
+        queuedBytes -= pending.size;
+        backpressure.queuedBytes.add(-pending.size);
+        backpressure.queuedMessages.decrement();
+        return pending;
+    }
+
+    private void drop(PendingWrite pending) {
+        backpressure.droppedBytes.add(pending.size);
+        backpressure.droppedMessages.increment();
+        pending.fail();
+    }
+
+    private void releaseAll() {
+        while (!queue.isEmpty()) {
+            drop(poll());
+        }
+    }
+
+    /**
+     * 估算消息编码后的大小，至少为 1，避免空消息无限入队
+     */
+    private static int size(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return Math.max(1, ((ByteBuf) msg).readableBytes());
+        }
+        if (msg instanceof ByteBufHolder) {
+            // 加上最小的消息头长度
+            return ((ByteBufHolder) msg).content().readableBytes() + 3;
+        }
+        return 1;
+    }
+
+    private static final class PendingWrite {
+        private final Object msg;
+        private final ChannelPromise promise;
+        private final int size;
+
+        PendingWrite(Object msg, ChannelPromise promise, int size) {
+            this.msg = msg;
+            this.promise = promise;
+            this.size = size;
+        }
+
+        void fail() {
+            ReferenceCountUtil.release(msg);
+            // voidPromise 设置失败会触发 exceptionCaught，直接忽略
+            if (!promise.isVoid()) {
+                promise.tryFailure(DroppedWriteException.INSTANCE);
+            }
+        }
+    }
+
+    /**
+     * 消息因为背压被丢弃
+     */
+    public static final class DroppedWriteException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private static final DroppedWriteException INSTANCE = new DroppedWriteException();
+
+        private DroppedWriteException() {
+            super("write dropped by backpressure", null, false, false);
+        }
+    }
+}
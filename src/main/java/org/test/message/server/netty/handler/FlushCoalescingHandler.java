@@ -0,0 +1,121 @@
+package org.test.message.server.netty.handler;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.util.concurrent.Future;
+
+/**
+ * 合并 flush
+ * <br/>
+ * 每次 flush 对应一次 write 系统调用（开启 SSL 时还对应一个 TLS record），推送时连续写出的多条消息没有必要各自 flush。
+ * 合并逻辑由 {@link FlushConsolidationHandler} 完成：读取过程中的 flush 推迟到 channelReadComplete，
+ * 其他 flush 推迟到当前 EventLoop 迭代结束，累积 maxBatch 次 flush 时立即执行。
+ * 这里只增加微秒级的合并窗口：windowMicros 大于 0 时，读取之外的 flush 推迟到 windowMicros 微秒之后。
+ * 需要放在 SslHandler 之后，合并之后的 flush 才能减少 TLS record 的数量。
+ */
+public class FlushCoalescingHandler extends FlushConsolidationHandler {
+    private final long windowNanos;
+    private final int maxBatch;
+
+    private int pendingFlushes;
+    private boolean readInProgress;
+    private Future<?> scheduledFlush;
+    private Runnable flushTask;
+
+    /**
+     * @param windowMicros 合并窗口(μs)，0 表示合并同一次 EventLoop 迭代中的 flush
+     * @param maxBatch     最多合并的 flush 次数
+     */
+    public FlushCoalescingHandler(long windowMicros, int maxBatch) {
+        super(maxBatch, true);
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, windowMicros));
+        this.maxBatch = maxBatch;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        super.handlerAdded(ctx);
+        flushTask = () -> {
+            scheduledFlush = null;
+            flushIfNeeded(ctx);
+        };
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (windowNanos == 0 || readInProgress) {
+            super.flush(ctx);
+            return;
+        }
+        if (++pendingFlushes >= maxBatch) {
+            flushIfNeeded(ctx);
+        } else if (scheduledFlush == null) {
+            scheduledFlush = ctx.executor().schedule(flushTask, windowNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        readInProgress = true;
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        readInProgress = false;
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (!ctx.channel().isWritable()) {
+            // 已经超过高水位线，尽快写出
+            flushIfNeeded(ctx);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        readInProgress = false;
+        flushIfNeeded(ctx);
+        super.exceptionCaught(ctx, cause);
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        readInProgress = false;
+        flushIfNeeded(ctx);
+        super.disconnect(ctx, promise);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        readInProgress = false;
+        flushIfNeeded(ctx);
+        super.close(ctx, promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        flushIfNeeded(ctx);
+        super.handlerRemoved(ctx);
+    }
+
+    /**
+     * 写出窗口内累积的 flush
+     */
+    private void flushIfNeeded(ChannelHandlerContext ctx) {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (pendingFlushes > 0) {
+            pendingFlushes = 0;
+            ctx.flush();
+        }
+    }
+}
@@ -1,13 +1,27 @@
 package org.test.message.server.netty.handler;
 
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.commons.lang3.StringUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.test.message.server.metrics.MetricsRegistry;
 import org.test.message.server.netty.NettyAcceptor;
+import org.test.message.service.processor.DeliveryStatus;
+import org.test.message.service.processor.ProtocolProcessor;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -19,18 +33,58 @@ import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.util.CharsetUtil;
 
 public class HttpServerHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
     private static final Logger LOGGER = LoggerFactory.getLogger(HttpServerHandler.class);
-    private final NettyMqttHandler mqttHandler;
+    /**
+     * 推送目标参数，可以重复出现，也可以用逗号分隔多个 uin
+     */
+    private static final String PARAM_UIN = "uin";
+    /**
+     * 发布目标主题参数
+     */
+    private static final String PARAM_TOPIC = "topic";
+    private static final String BEARER = "Bearer ";
+
+    private final ProtocolProcessor processor;
+    private final MetricsRegistry metricsRegistry;
+    /**
+     * http.secret，没有配置时为 null
+     */
+    private final byte[] secret;
+    /**
+     * 等待 /push 回复期间收到的请求（HTTP 流水线），按顺序在回复之后处理
+     */
+    private final ArrayDeque<FullHttpRequest> queued = new ArrayDeque<>();
+    private boolean waiting;
 
-    public HttpServerHandler(NettyMqttHandler mqttHandler) {
-        this.mqttHandler = mqttHandler;
+    public HttpServerHandler(ProtocolProcessor processor, MetricsRegistry metricsRegistry, String secret) {
+        this.processor = processor;
+        this.metricsRegistry = metricsRegistry;
+        this.secret = StringUtils.isEmpty(secret) ? null : secret.getBytes(StandardCharsets.UTF_8);
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) throws Exception {
+        if (waiting) {
+            queued.add(req.retain());
+            return;
+        }
+        handle(ctx, req);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        FullHttpRequest req;
+        while ((req = queued.poll()) != null) {
+            req.release();
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void handle(ChannelHandlerContext ctx, FullHttpRequest req) {
         if (!req.decoderResult().isSuccess()) {
             sendHttpResponse(ctx, req, new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_REQUEST));
             return;
@@ -44,15 +98,29 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<FullHttpReque
         }
 
         final String requestURI = req.uri();
+        final QueryStringDecoder queryStringDecoder = new QueryStringDecoder(requestURI);
+
+        if (requiresSecret(queryStringDecoder.path()) && !authorized(req)) {
+            FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.UNAUTHORIZED);
+            res.headers().set(HttpHeaderNames.WWW_AUTHENTICATE, "Bearer");
+            sendHttpResponse(ctx, req, res);
+            return;
+        }
 
         try {
-            switch (requestURI) {
+            switch (queryStringDecoder.path()) {
                 case "/":
                     handlerIndexURI(ctx, req);
                     break;
                 case "/push":
                     // 处理消息推送请求
-
+                    handlerPushURI(ctx, req, queryStringDecoder);
+                    break;
+                case "/publish":
+                    handlerPublishURI(ctx, req, queryStringDecoder);
+                    break;
+                case "/metrics":
+                    handlerMetricsURI(ctx, req);
                     break;
                 default:
                     handler404URI(ctx, req);
@@ -64,6 +132,31 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<FullHttpReque
         }
     }
 
+    /**
+     * 推送和监控接口与客户端使用同一个端口，必须校验调用方；/metrics 包含在线用户数和集群节点等内部信息
+     */
+    private static boolean requiresSecret(String path) {
+        switch (path) {
+            case "/push":
+            case "/publish":
+            case "/metrics":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 校验请求头 Authorization: Bearer &lt;secret&gt;，没有配置密钥时拒绝
+     */
+    private boolean authorized(FullHttpRequest req) {
+        String authorization = req.headers().get(HttpHeaderNames.AUTHORIZATION);
+        if (secret == null || authorization == null || !authorization.startsWith(BEARER)) {
+            return false;
+        }
+        return MessageDigest.isEqual(secret, authorization.substring(BEARER.length()).getBytes(StandardCharsets.UTF_8));
+    }
+
     private void handlerIndexURI(ChannelHandlerContext ctx, FullHttpRequest req) {
         ByteBuf content = Unpooled.copiedBuffer("sub protocol name: " + NettyAcceptor.SUB_PROTOCOL, CharsetUtil.US_ASCII);
         FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
@@ -74,13 +167,159 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<FullHttpReque
         sendHttpResponse(ctx, req, res);
     }
 
+    /**
+     * 推送消息
+     * <br/>
+     * POST /push?uin=1001&uin=1002 或 POST /push?uin=1001,1002，请求体就是消息内容；
+     * 返回每个 uin 的投递状态：{"results":[{"uin":"1001","status":"online"}]}
+     */
+    private void handlerPushURI(ChannelHandlerContext ctx, FullHttpRequest req, QueryStringDecoder queryStringDecoder) {
+        if (!HttpMethod.POST.equals(req.method())) {
+            sendHttpResponse(ctx, req, new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED));
+            return;
+        }
+        Set<String> uins = new LinkedHashSet<>();
+        List<String> params = queryStringDecoder.parameters().get(PARAM_UIN);
+        if (params != null) {
+            for (String param : params) {
+                for (String uin : StringUtils.split(param, ',')) {
+                    if (StringUtils.isNotBlank(uin)) {
+                        uins.add(uin.trim());
+                    }
+                }
+            }
+        }
+        if (uins.isEmpty() || !req.content().isReadable()) {
+            sendHttpResponse(ctx, req, new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_REQUEST));
+            return;
+        }
+
+        CompletableFuture<Map<String, DeliveryStatus>> future = processor.push(uins, req.content());
+        if (future.isDone()) {
+            sendPushResponse(ctx, req, future);
+            return;
+        }
+        // 离线消息落盘之后再回复，期间暂停读取，保证流水线中的请求按顺序回复
+        req.retain();
+        waiting = true;
+        ctx.channel().config().setAutoRead(false);
+        future.whenComplete((results, cause) -> ctx.executor().execute(() -> {
+            try {
+                sendPushResponse(ctx, req, future);
+            } finally {
+                req.release();
+            }
+            resume(ctx);
+        }));
+    }
+
+    private void resume(ChannelHandlerContext ctx) {
+        waiting = false;
+        FullHttpRequest next;
+        while (!waiting && (next = queued.poll()) != null) {
+            try {
+                handle(ctx, next);
+            } finally {
+                next.release();
+            }
+        }
+        if (!waiting) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    private void sendPushResponse(ChannelHandlerContext ctx, FullHttpRequest req, CompletableFuture<Map<String, DeliveryStatus>> future) {
+        Map<String, DeliveryStatus> results;
+        try {
+            results = future.join();
+        } catch (Exception e) {
+            LOGGER.error("push failed", e);
+            sendHttpResponse(ctx, req, new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.INTERNAL_SERVER_ERROR));
+            return;
+        }
+        StringBuilder builder = new StringBuilder(32 + results.size() * 40).append("{\"results\":[");
+        boolean first = true;
+        for (Map.Entry<String, DeliveryStatus> entry : results.entrySet()) {
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            builder.append("{\"uin\":\"");
+            appendJsonString(builder, entry.getKey());
+            builder.append("\",\"status\":\"").append(entry.getValue().getValue()).append("\"}");
+        }
+        builder.append("]}");
+
+        ByteBuf content = ByteBufUtil.writeUtf8(ctx.alloc(), builder);
+        FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+        res.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+        HttpUtil.setContentLength(res, content.readableBytes());
+        sendHttpResponse(ctx, req, res);
+    }
+
+    /**
+     * 发布消息到主题
+     * <br/>
+     * POST /publish?topic=news，请求体就是消息内容；返回本节点的订阅连接数：{"topic":"news","subscribers":2}
+     */
+    private void handlerPublishURI(ChannelHandlerContext ctx, FullHttpRequest req, QueryStringDecoder queryStringDecoder) {
+        if (!HttpMethod.POST.equals(req.method())) {
+            sendHttpResponse(ctx, req, new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED));
+            return;
+        }
+        List<String> params = queryStringDecoder.parameters().get(PARAM_TOPIC);
+        String topic = params == null || params.isEmpty() ? null : params.get(0);
+        if (StringUtils.isEmpty(topic) || !req.content().isReadable()) {
+            sendHttpResponse(ctx, req, new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_REQUEST));
+            return;
+        }
+
+        int subscribers = processor.publish(topic, req.content());
+
+        StringBuilder builder = new StringBuilder(48 + topic.length()).append("{\"topic\":\"");
+        appendJsonString(builder, topic);
+        builder.append("\",\"subscribers\":").append(subscribers).append('}');
+
+        ByteBuf content = ByteBufUtil.writeUtf8(ctx.alloc(), builder);
+        FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+        res.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+        HttpUtil.setContentLength(res, content.readableBytes());
+        sendHttpResponse(ctx, req, res);
+    }
+
+    /**
+     * 以 Prometheus 文本格式返回所有指标
+     */
+    private void handlerMetricsURI(ChannelHandlerContext ctx, FullHttpRequest req) {
+        StringBuilder builder = new StringBuilder(16 * 1024);
+        metricsRegistry.writeTo(builder);
+        ByteBuf content = ByteBufUtil.writeUtf8(ctx.alloc(), builder);
+        FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+        res.headers().set(HttpHeaderNames.CONTENT_TYPE, MetricsRegistry.CONTENT_TYPE);
+        HttpUtil.setContentLength(res, content.readableBytes());
+        sendHttpResponse(ctx, req, res);
+    }
+
+    private static void appendJsonString(StringBuilder builder, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\');
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+                continue;
+            }
+            builder.append(c);
+        }
+    }
+
     private void handler404URI(ChannelHandlerContext ctx, FullHttpRequest req){
         DefaultFullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
         res.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
         sendHttpResponse(ctx, req, res);
     }
     /**
-     * 发送http响应消息
+     * 发送http响应消息，请求支持 keep-alive 时保持连接，便于调用方复用连接持续推送
      */
     private void sendHttpResponse(ChannelHandlerContext ctx, FullHttpRequest req, FullHttpResponse res) {
         if (!HttpResponseStatus.OK.equals(res.status())) {
@@ -89,6 +328,11 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<FullHttpReque
             buf.release();
             HttpUtil.setContentLength(res, res.content().readableBytes());
         }
-        ctx.channel().writeAndFlush(res).addListener(ChannelFutureListener.CLOSE);
+        boolean keepAlive = req.decoderResult().isSuccess() && HttpUtil.isKeepAlive(req);
+        HttpUtil.setKeepAlive(res, keepAlive);
+        ChannelFuture future = ctx.channel().writeAndFlush(res);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
     }
 }
@@ -0,0 +1,191 @@
+package org.test.message.server.netty.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.test.message.server.netty.NettyUtils;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageCommandType;
+import org.test.message.server.netty.handler.codec.MessageEncoder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+
+/**
+ * 连接存活检测，代替每个连接一个 {@link io.netty.handler.timeout.IdleStateHandler}
+ * <br/>
+ * IdleStateHandler 给每个连接在 EventLoop 上调度一个定时任务，到期后重新调度，百万连接时定时任务队列（小顶堆）中就有上百万个任务。
+ * 这里每个 EventLoop 只有一个按 tick 执行的定时任务和一个分桶时间轮，收到消息时只更新连接的最后读取时间，
+ * 每个连接在一个超时周期内最多被检查一次：检查时未超时则按最后读取时间放回对应的桶，超时则关闭，每个 tick 最多关闭 {@link #MAX_CLOSE_PER_TICK} 个连接。
+ * 收到 PING 时直接回复预先编码好的 PONG。
+ */
+public class LivenessTracker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LivenessTracker.class);
+
+    /**
+     * 每个 tick 最多关闭的连接数，避免大量连接同时超时时长时间占用 EventLoop
+     */
+    static final int MAX_CLOSE_PER_TICK = 1024;
+
+    /**
+     * 预先编码好的 PONG，WebSocket 连接包装成 {@link BinaryWebSocketFrame} 写出，帧头由 WebSocket 编码器写入
+     */
+    private static final ByteBuf PONG = MessageEncoder.fixedFrame(MessageCommandType.PONG);
+
+    private final long idleTimeoutMillis;
+    private final long tickMillis;
+    private final int bucketCount;
+    private final Map<EventLoop, Wheel> wheels = new ConcurrentHashMap<>();
+
+    private final LongAdder pingCount = new LongAdder();
+    private final LongAdder closedCount = new LongAdder();
+
+    /**
+     * @param idleTimeoutMillis 超过该时间没有收到任何消息时关闭连接
+     * @param tickMillis        检查间隔，也是超时判断的精度
+     */
+    public LivenessTracker(long idleTimeoutMillis, long tickMillis) {
+        if (idleTimeoutMillis <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("idleTimeoutMillis and tickMillis must be greater than 0");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.tickMillis = tickMillis;
+        this.bucketCount = (int) ((idleTimeoutMillis + tickMillis - 1) / tickMillis) + 1;
+    }
+
+    public ChannelInboundHandlerAdapter newHandler() {
+        return new Handler();
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public long pingCount() {
+        return pingCount.sum();
+    }
+
+    /**
+     * 因为超时被关闭的连接数
+     */
+    public long closedCount() {
+        return closedCount.sum();
+    }
+
+    private Wheel wheel(EventLoop eventLoop) {
+        Wheel wheel = wheels.get(eventLoop);
+        if (wheel == null) {
+            wheel = wheels.computeIfAbsent(eventLoop, Wheel::new);
+        }
+        return wheel;
+    }
+
+    /**
+     * 一个 EventLoop 的分桶时间轮，只在该 EventLoop 中访问
+     */
+    private final class Wheel implements Runnable {
+        private final EventLoop eventLoop;
+        private final List<Handler>[] buckets;
+        private int cursor;
+        private boolean started;
+
+        Wheel(EventLoop eventLoop) {
+            this.eventLoop = eventLoop;
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            List<Handler>[] buckets = new List[bucketCount];
+            this.buckets = buckets;
+            for (int i = 0; i < bucketCount; i++) {
+                buckets[i] = new ArrayList<>();
+            }
+        }
+
+        void add(Handler handler, long delayMillis) {
+            if (!started) {
+                started = true;
+                eventLoop.scheduleAtFixedRate(this, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+            }
+            // 向上取整，保证不会提前检查；delayMillis 不超过 idleTimeoutMillis，不会绕回当前桶
+            long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+            buckets[(int) ((cursor + ticks) % bucketCount)].add(handler);
+        }
+
+        @Override
+        public void run() {
+            cursor = (cursor + 1) % bucketCount;
+            List<Handler> bucket = buckets[cursor];
+            if (bucket.isEmpty()) {
+                return;
+            }
+            buckets[cursor] = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            int closed = 0;
+            for (Handler handler : bucket) {
+                Channel channel = handler.channel;
+                if (channel == null || !channel.isActive()) {
+                    // 已经关闭的连接直接丢弃
+                    continue;
+                }
+                long idle = now - handler.lastReadTime;
+                if (idle < idleTimeoutMillis) {
+                    add(handler, idleTimeoutMillis - idle);
+                } else if (closed < MAX_CLOSE_PER_TICK) {
+                    closed++;
+                    LOGGER.debug("channel idle timeout, close it. uin={}, idle={}ms", NettyUtils.uin(channel), idle);
+                    channel.close();
+                } else {
+                    // 超出本次关闭上限，下一个 tick 再处理
+                    buckets[(cursor + 1) % bucketCount].add(handler);
+                }
+            }
+            if (closed > 0) {
+                closedCount.add(closed);
+                LOGGER.info("closed {} idle channels", closed);
+            }
+        }
+    }
+
+    /**
+     * 每个连接一个，只记录最后读取时间，不持有定时任务
+     */
+    private final class Handler extends ChannelInboundHandlerAdapter {
+        private Channel channel;
+        private long lastReadTime;
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            channel = ctx.channel();
+            lastReadTime = System.currentTimeMillis();
+            wheel(ctx.channel().eventLoop()).add(this, idleTimeoutMillis);
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+            // 从桶中移除推迟到下一次检查
+            channel = null;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            lastReadTime = System.currentTimeMillis();
+            if (msg instanceof Message && ((Message) msg).getHeader().getType() == MessageCommandType.PING) {
+                ((Message) msg).release();
+                pingCount.increment();
+                // 预先编码好的 ByteBuf 不经过消息编码器
+                ByteBuf pong = PONG.duplicate();
+                ctx.writeAndFlush(NettyUtils.websocket(ctx.channel()) ? new BinaryWebSocketFrame(pong) : pong, ctx.voidPromise());
+                return;
+            }
+            ctx.fireChannelRead(msg);
+        }
+    }
+}
@@ -1,25 +1,130 @@
 package org.test.message.server.netty.handler;
 
+import java.util.ArrayDeque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.test.message.server.netty.NettyUtils;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageCommandType;
 import org.test.message.service.processor.ProtocolProcessor;
 
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.codec.DecoderException;
+import io.netty.util.AttributeKey;
 
 @ChannelHandler.Sharable
 public class NettyMqttHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NettyMqttHandler.class);
+    /**
+     * 认证过程中收到的消息，认证通过后按顺序处理
+     */
+    private static final AttributeKey<ArrayDeque<Message>> ATTR_KEY_PENDING = AttributeKey.valueOf("pendingMessages");
+    /**
+     * 认证过程中最多暂存的消息数，超过时断开连接
+     */
+    private static final int MAX_PENDING_MESSAGES = 16;
+
+    private final ProtocolProcessor processor;
 
     public NettyMqttHandler(ProtocolProcessor processor) {
+        this.processor = processor;
+    }
 
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof Message)) {
+            super.channelRead(ctx, msg);
+            return;
+        }
+        Message message = (Message) msg;
+        if (message.getHeader().getType() != MessageCommandType.CONNECT && NettyUtils.uin(ctx.channel()) == null) {
+            if (processor.connectReceived(ctx.channel())) {
+                // 客户端可以不等 CONNECT_ACK 继续发送，认证完成之前先暂存
+                pending(ctx, message);
+            } else {
+                // 必须先 CONNECT
+                LOGGER.debug("message before connect, close channel {}. header={}", ctx.channel(), message.getHeader());
+                message.release();
+                ctx.channel().close();
+            }
+            return;
+        }
+        process(ctx, message);
     }
 
     @Override
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
-        // server will close channel when server don't receive any heartbeat from client util timeout.
-        if (evt instanceof IdleStateEvent) {
-            ctx.channel().close();
+        if (evt == ProtocolProcessor.CONNECTED_EVENT) {
+            ArrayDeque<Message> pending = ctx.channel().attr(ATTR_KEY_PENDING).getAndSet(null);
+            if (pending != null) {
+                Message message;
+                while ((message = pending.poll()) != null) {
+                    process(ctx, message);
+                }
+            }
         }
         super.userEventTriggered(ctx, evt);
     }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        ArrayDeque<Message> pending = ctx.channel().attr(ATTR_KEY_PENDING).getAndSet(null);
+        if (pending != null) {
+            pending.forEach(Message::release);
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void pending(ChannelHandlerContext ctx, Message message) {
+        ArrayDeque<Message> pending = ctx.channel().attr(ATTR_KEY_PENDING).get();
+        if (pending == null) {
+            pending = new ArrayDeque<>();
+            ctx.channel().attr(ATTR_KEY_PENDING).set(pending);
+        }
+        if (pending.size() >= MAX_PENDING_MESSAGES) {
+            LOGGER.debug("too many messages before connect ack, close channel {}", ctx.channel());
+            message.release();
+            ctx.channel().close();
+            return;
+        }
+        pending.add(message);
+    }
+
+    private void process(ChannelHandlerContext ctx, Message message) {
+        try {
+            switch (message.getHeader().getType()) {
+                case CONNECT:
+                    processor.processConnect(ctx.channel(), message);
+                    break;
+                case PUBLISH_ACK:
+                    processor.processPublishAck(ctx.channel(), message);
+                    break;
+                case SUBSCRIBE:
+                    processor.processSubscribe(ctx.channel(), message);
+                    break;
+                case UNSUBSCRIBE:
+                    processor.processUnsubscribe(ctx.channel(), message);
+                    break;
+                default:
+                    LOGGER.debug("unsupported message. channel={}, header={}", ctx.channel(), message.getHeader());
+                    break;
+            }
+        } finally {
+            message.release();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        // 消息流已经损坏，无法继续解析，直接断开连接
+        if (cause instanceof DecoderException) {
+            LOGGER.warn("decode message error, close channel {}. msg={}", ctx.channel(), cause.getMessage());
+            ctx.channel().close();
+            return;
+        }
+        super.exceptionCaught(ctx, cause);
+    }
 }
@@ -0,0 +1,66 @@
+package org.test.message.server.netty.handler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 连接数超过限速时使用的处理器，对第一个请求返回 503 并关闭连接
+ * <br/>
+ * Retry-After 在 [retryAfterSeconds, 2 * retryAfterSeconds) 之间随机，避免被拒绝的客户端在同一时刻再次重连。
+ */
+@ChannelHandler.Sharable
+public class OverloadedHttpHandler extends ChannelInboundHandlerAdapter {
+    /**
+     * 客户端迟迟不发送请求时，最多等待的时间
+     */
+    private static final long REQUEST_TIMEOUT_SECONDS = 5;
+
+    private final int retryAfterSeconds;
+
+    public OverloadedHttpHandler(int retryAfterSeconds) {
+        this.retryAfterSeconds = Math.max(1, retryAfterSeconds);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        ctx.executor().schedule((Runnable) ctx::close, REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        try {
+            if (msg instanceof HttpRequest) {
+                FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE,
+                        Unpooled.copiedBuffer(HttpResponseStatus.SERVICE_UNAVAILABLE.toString(), StandardCharsets.UTF_8));
+                int retryAfter = retryAfterSeconds + ThreadLocalRandom.current().nextInt(retryAfterSeconds);
+                res.headers().set(HttpHeaderNames.RETRY_AFTER, retryAfter);
+                res.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                HttpUtil.setContentLength(res, res.content().readableBytes());
+                ctx.writeAndFlush(res).addListener(ChannelFutureListener.CLOSE);
+            }
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        ctx.close();
+    }
+}
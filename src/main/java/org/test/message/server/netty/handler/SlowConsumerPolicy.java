@@ -0,0 +1,32 @@
+package org.test.message.server.netty.handler;
+
+/**
+ * 连接不可写、待发送队列已满时的处理策略
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * 丢弃队列中最早的消息，直到新消息可以入队
+     */
+    DROP_OLDEST,
+    /**
+     * 丢弃新消息
+     */
+    DROP_NEWEST,
+    /**
+     * 丢弃队列中所有消息，只保留最新的一条
+     */
+    COALESCE,
+    /**
+     * 断开连接
+     */
+    DISCONNECT;
+
+    public static SlowConsumerPolicy of(String name, SlowConsumerPolicy defaultValue) {
+        for (SlowConsumerPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -3,26 +3,33 @@ package org.test.message.server.netty.handler;
 import java.util.List;
 
 import org.apache.commons.lang3.StringUtils;
-import org.test.message.server.config.ServerConstants;
+import org.test.message.server.metrics.MessageMetrics;
+import org.test.message.server.netty.NettyUtils;
+import org.test.message.server.netty.handler.codec.Message;
 import org.test.message.server.netty.handler.codec.MessageDecoder;
 import org.test.message.server.netty.handler.codec.MessageEncoder;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.MessageToMessageDecoder;
 import io.netty.handler.codec.MessageToMessageEncoder;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
-import io.netty.handler.timeout.IdleStateHandler;
-
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class WebSocketServerHandler extends WebSocketServerProtocolHandler {
     private String subprotocol;
     private int maxMessageByteLength;
     private NettyMqttHandler mqttHandler;
-    private MessageEncoder messageEncoder;
+    private MessageToWsEncoder messageEncoder;
+    private WriteBackpressure writeBackpressure;
+    private long flushWindowMicros;
+    private int flushMaxBatch;
+    private LivenessTracker livenessTracker;
+    private MessageMetrics messageMetrics;
     private WebSocketServerHandler(String websocketPath, String subprotocol) {
         super(websocketPath, subprotocol);
     }
@@ -34,37 +41,99 @@ public class WebSocketServerHandler extends WebSocketServerProtocolHandler {
             if (!StringUtils.equals(subprotocol, handshakeComplete.selectedSubprotocol())) {
                 ctx.channel().close();
             } else {
+                NettyUtils.websocket(ctx.channel(), true);
                 ChannelPipeline pipeline = ctx.channel().pipeline();
                 // 移除http消息处理
                 pipeline.remove("httpServerHandler");
+                // 升级前的存活检测位于 WebSocket 解码之前，看不到 PING，移到解码器之后重新添加
+                pipeline.remove("liveness");
+                if (flushMaxBatch > 1) {
+                    // 紧挨着 SslHandler（没有 SSL 时位于最前面），所有 flush 都要经过它
+                    FlushCoalescingHandler flushHandler = new FlushCoalescingHandler(flushWindowMicros, flushMaxBatch);
+                    if (pipeline.get("ssl") != null) {
+                        pipeline.addAfter("ssl", "flushCoalescing", flushHandler);
+                    } else {
+                        pipeline.addFirst("flushCoalescing", flushHandler);
+                    }
+                }
                 // 添加 WebSocket 消息处理
                 pipeline.addLast("ws2bytebufDecoder", new WsToByteBufDecoder());
-                pipeline.addLast("bytebuf2wsEncoder", new ByteBufToWsEncoder());
-                pipeline.addLast("decoder", new MessageDecoder(maxMessageByteLength));
+                pipeline.addLast("decoder", new MessageDecoder(maxMessageByteLength, messageMetrics));
+                // Message 直接编码为 BinaryWebSocketFrame，直接写出的 ByteBuf 视为已经编码好的消息，同样包装成 BinaryWebSocketFrame
                 pipeline.addLast("encoder", messageEncoder);
-                // 三个心跳周期内连接依然是空闲状态，则触发 IdleStateEvent 事件
-                pipeline.addLast("server-idle-handler", new IdleStateHandler(0, 0, 3 * ServerConstants.DEFAULT_HEARTBEAT, MILLISECONDS));
+                // 更新最后读取时间，回复 PING，超时未收到消息的连接由 LivenessTracker 批量关闭
+                pipeline.addLast("liveness", livenessTracker.newHandler());
                 pipeline.addLast("handler", mqttHandler);
+                // 位于最后，channel.write 写出的消息都要先经过背压处理
+                pipeline.addLast("backpressure", writeBackpressure.newHandler());
             }
         }
         super.userEventTriggered(ctx, evt);
     }
 
-    public static class WsToByteBufDecoder extends MessageToMessageDecoder<BinaryWebSocketFrame> {
+    /**
+     * 取出二进制帧的内容交给 {@link MessageDecoder}
+     * <br/>
+     * 消息本身是自定界的，分片的二进制帧（BinaryWebSocketFrame + ContinuationWebSocketFrame）按顺序直接传递，
+     * 由 MessageDecoder 的累积缓冲区拼接，不需要额外再聚合一次；文本帧及其后续分片直接丢弃。
+     */
+    public static class WsToByteBufDecoder extends MessageToMessageDecoder<WebSocketFrame> {
+        /**
+         * 是否处于一个分片的二进制消息中
+         */
+        private boolean binaryFragment;
+
         @Override
-        protected void decode(ChannelHandlerContext chc, BinaryWebSocketFrame frame, List<Object> out) throws Exception {
+        protected void decode(ChannelHandlerContext chc, WebSocketFrame frame, List<Object> out) throws Exception {
+            if (frame instanceof BinaryWebSocketFrame) {
+                binaryFragment = !frame.isFinalFragment();
+                addContent(frame, out);
+            } else if (frame instanceof ContinuationWebSocketFrame) {
+                if (binaryFragment) {
+                    binaryFragment = !frame.isFinalFragment();
+                    addContent(frame, out);
+                }
+            } else {
+                binaryFragment = false;
+            }
+        }
+
+        private static void addContent(WebSocketFrame frame, List<Object> out) {
             ByteBuf bb = frame.content();
-            bb.retain();
-            out.add(bb);
+            if (bb.isReadable()) {
+                out.add(bb.retain());
+            }
         }
     }
 
-    public static class ByteBufToWsEncoder extends MessageToMessageEncoder<ByteBuf> {
+    /**
+     * 把 {@link Message} 直接编码成 {@link BinaryWebSocketFrame}，帧内容就是编码后的 ByteBuf，不再拷贝；
+     * 直接写出的 ByteBuf（已经编码好的消息）同样包装成 BinaryWebSocketFrame，帧头都由后面的 WebSocket 编码器写入
+     */
+    @ChannelHandler.Sharable
+    public static class MessageToWsEncoder extends MessageToMessageEncoder<Object> {
+        private final MessageMetrics metrics;
+
+        public MessageToWsEncoder(MessageMetrics metrics) {
+            this.metrics = metrics;
+        }
+
         @Override
-        protected void encode(ChannelHandlerContext chc, ByteBuf bb, List<Object> out) throws Exception {
-            BinaryWebSocketFrame result = new BinaryWebSocketFrame();
-            result.content().writeBytes(bb);
-            out.add(result);
+        public boolean acceptOutboundMessage(Object msg) throws Exception {
+            return msg instanceof Message || msg instanceof ByteBuf;
+        }
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, Object msg, List<Object> out) throws Exception {
+            if (msg instanceof ByteBuf) {
+                // 写出后 msg 会被释放一次
+                out.add(new BinaryWebSocketFrame(((ByteBuf) msg).retain()));
+                return;
+            }
+            Message message = (Message) msg;
+            ByteBuf encoded = MessageEncoder.encode(ctx.alloc(), message);
+            metrics.sent(message.getHeader().getType(), encoded.readableBytes());
+            out.add(new BinaryWebSocketFrame(encoded));
         }
     }
 
@@ -73,7 +142,12 @@ public class WebSocketServerHandler extends WebSocketServerProtocolHandler {
         private String subprotocol;
         private int maxMessageByteLength;
         private NettyMqttHandler mqttHandler;
-        private MessageEncoder messageEncoder;
+        private MessageToWsEncoder messageEncoder;
+        private WriteBackpressure writeBackpressure;
+        private long flushWindowMicros;
+        private int flushMaxBatch;
+        private LivenessTracker livenessTracker;
+        private MessageMetrics messageMetrics;
         public static Builder newBuilder() {
             return new Builder();
         }
@@ -98,16 +172,46 @@ public class WebSocketServerHandler extends WebSocketServerProtocolHandler {
             return this;
         }
 
-        public Builder messageEncoder(MessageEncoder messageEncoder) {
+        public Builder messageEncoder(MessageToWsEncoder messageEncoder) {
             this.messageEncoder = messageEncoder;
             return this;
         }
+
+        public Builder writeBackpressure(WriteBackpressure writeBackpressure) {
+            this.writeBackpressure = writeBackpressure;
+            return this;
+        }
+
+        public Builder flushWindowMicros(long flushWindowMicros) {
+            this.flushWindowMicros = flushWindowMicros;
+            return this;
+        }
+
+        public Builder flushMaxBatch(int flushMaxBatch) {
+            this.flushMaxBatch = flushMaxBatch;
+            return this;
+        }
+
+        public Builder livenessTracker(LivenessTracker livenessTracker) {
+            this.livenessTracker = livenessTracker;
+            return this;
+        }
+
+        public Builder messageMetrics(MessageMetrics messageMetrics) {
+            this.messageMetrics = messageMetrics;
+            return this;
+        }
         public WebSocketServerHandler build(){
             WebSocketServerHandler handler = new WebSocketServerHandler(websocketPath, subprotocol);
             handler.subprotocol = subprotocol;
             handler.maxMessageByteLength = maxMessageByteLength;
             handler.mqttHandler = mqttHandler;
             handler.messageEncoder = messageEncoder;
+            handler.writeBackpressure = writeBackpressure;
+            handler.flushWindowMicros = flushWindowMicros;
+            handler.flushMaxBatch = flushMaxBatch;
+            handler.livenessTracker = livenessTracker;
+            handler.messageMetrics = messageMetrics;
             return handler;
         }
         private Builder() {
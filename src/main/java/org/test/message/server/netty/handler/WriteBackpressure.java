@@ -0,0 +1,79 @@
+package org.test.message.server.netty.handler;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 写背压配置和统计，所有连接共享，每个连接通过 {@link #newHandler()} 创建自己的 {@link BackpressureHandler}
+ */
+public class WriteBackpressure {
+    private final SlowConsumerPolicy policy;
+    private final int maxQueuedBytes;
+
+    final LongAdder queuedBytes = new LongAdder();
+    final LongAdder queuedMessages = new LongAdder();
+    final LongAdder droppedBytes = new LongAdder();
+    final LongAdder droppedMessages = new LongAdder();
+    final LongAdder disconnects = new LongAdder();
+
+    /**
+     * @param maxQueuedBytes 每个连接在不可写时最多缓存的字节数
+     */
+    public WriteBackpressure(SlowConsumerPolicy policy, int maxQueuedBytes) {
+        if (maxQueuedBytes <= 0) {
+            throw new IllegalArgumentException("maxQueuedBytes must be greater than 0: " + maxQueuedBytes);
+        }
+        this.policy = policy;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    public BackpressureHandler newHandler() {
+        return new BackpressureHandler(this);
+    }
+
+    public SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * 所有连接当前缓存的字节数
+     */
+    public long queuedBytes() {
+        return queuedBytes.sum();
+    }
+
+    public long queuedMessages() {
+        return queuedMessages.sum();
+    }
+
+    public long droppedBytes() {
+        return droppedBytes.sum();
+    }
+
+    public long droppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    /**
+     * 因为 {@link SlowConsumerPolicy#DISCONNECT} 被断开的连接数
+     */
+    public long disconnects() {
+        return disconnects.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "WriteBackpressure{" +
+                "policy=" + policy +
+                ", maxQueuedBytes=" + maxQueuedBytes +
+                ", queuedBytes=" + queuedBytes() +
+                ", queuedMessages=" + queuedMessages() +
+                ", droppedBytes=" + droppedBytes() +
+                ", droppedMessages=" + droppedMessages() +
+                ", disconnects=" + disconnects() +
+                '}';
+    }
+}
@@ -1,23 +1,84 @@
 package org.test.message.server.netty.handler.codec;
 
-public class Message {
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 消息
+ * <br/>
+ * 消息体以引用计数的 {@link ByteBuf} 保存，解码时直接引用入站缓冲区的切片，不会拷贝到堆上。
+ * 转发给多个接收方时，每个接收方使用 {@link #retainedDuplicate()}，写出后由编码器负责释放。
+ */
+public class Message extends DefaultByteBufHolder {
     private final MessageHeader header;
-    private final byte[] body;
 
     public Message(MessageHeader header) {
-        this(header, null);
+        this(header, Unpooled.EMPTY_BUFFER);
     }
 
     public Message(MessageHeader header, byte[] body) {
+        this(header, body == null ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(body));
+    }
+
+    public Message(MessageHeader header, ByteBuf body) {
+        super(body == null ? Unpooled.EMPTY_BUFFER : body);
         this.header = header;
-        this.body = body;
     }
 
     public MessageHeader getHeader() {
         return header;
     }
 
-    public byte[] getBody() {
-        return body;
+    @Override
+    public Message copy() {
+        return (Message) super.copy();
+    }
+
+    @Override
+    public Message duplicate() {
+        return (Message) super.duplicate();
+    }
+
+    @Override
+    public Message retainedDuplicate() {
+        return (Message) super.retainedDuplicate();
+    }
+
+    @Override
+    public Message replace(ByteBuf content) {
+        return new Message(header, content);
+    }
+
+    @Override
+    public Message retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public Message retain(int increment) {
+        super.retain(increment);
+        return this;
+    }
+
+    @Override
+    public Message touch() {
+        super.touch();
+        return this;
+    }
+
+    @Override
+    public Message touch(Object hint) {
+        super.touch(hint);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "Message{" +
+                "header=" + header +
+                ", body=" + contentToString() +
+                '}';
     }
 }
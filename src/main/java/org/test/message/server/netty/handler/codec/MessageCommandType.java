@@ -14,6 +14,15 @@ public enum MessageCommandType {
     PING(5),
     PONG(6),
     DISCONNECT(7),
+    SUBSCRIBE(8),
+    UNSUBSCRIBE(9),
+    /**
+     * 集群节点之间的消息，只在集群端口上使用
+     */
+    NODE_HELLO(16),
+    PRESENCE(17),
+    FORWARD(18),
+    NODE_CHALLENGE(19),
     UNKNOWN(-1);
 
     private final int value;
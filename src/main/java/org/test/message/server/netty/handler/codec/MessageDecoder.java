@@ -2,88 +2,161 @@ package org.test.message.server.netty.handler.codec;
 
 import java.util.List;
 
-import org.test.message.server.netty.NettyUtils;
+import org.test.message.server.metrics.MessageMetrics;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.DecoderException;
-import io.netty.handler.codec.ReplayingDecoder;
-
-public class MessageDecoder extends ReplayingDecoder<MessageDecoder.DecoderState> {
-    enum DecoderState {
-        HEAD,
-        BODY,
-        BAD_MESSAGE,
-    }
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+
+/**
+ * 消息解码器
+ * <br/>
+ * 消息格式：1字节指令 + 4位重传次数 + 4位保留位 + 可变长度(1~4字节) + body。
+ * 先只读（get）方式探测头部，数据不完整时直接返回等待下一次读取，不会像 ReplayingDecoder 那样重复解析；
+ * 头部中的长度超过限制时立即拒绝，不会缓存消息体。
+ * <br/>
+ * 头部解析完成后记录下来，消息体接收完整之前每次读取只比较一次长度，接收完整时也不再重新解析头部；
+ * 已知消息长度后由 {@link #cumulate} 按消息长度扩容：不超过 {@link #PREALLOCATE_LIMIT} 的消息一次分配完整的缓冲区，
+ * 更大的消息每次扩容到已收到数据的 4 倍（不超过消息长度），比默认的翻倍扩容少拷贝一半，占用的内存仍与实际收到的数据成正比。
+ */
+public class MessageDecoder extends ByteToMessageDecoder {
+    /**
+     * 可变长度最多占用的字节数
+     */
+    static final int MAX_VARIABLE_LENGTH_BYTES = 4;
+    /**
+     * 只收到头部时最多按消息长度预先分配的字节数，限制每个连接只发送头部就能占用的内存
+     */
+    static final int PREALLOCATE_LIMIT = 64 * 1024;
 
     private final int maxMessageByteLength;
+    private final MessageMetrics metrics;
 
-    private MessageHeader header;
-    private int remainingLength;
+    private boolean badMessage;
+    /**
+     * 当前消息的完整长度（头部 + body），头部还未解析完成时为 -1
+     */
+    private int frameLength = -1;
+    /**
+     * 当前消息已经解析的头部，frameLength 为 -1 时无效
+     */
+    private MessageCommandType type;
+    private short flags;
+    private int headerLength;
 
     public MessageDecoder(int maxMessageByteLength) {
-        super(DecoderState.HEAD);
+        this(maxMessageByteLength, new MessageMetrics());
+    }
+
+    public MessageDecoder(int maxMessageByteLength, MessageMetrics metrics) {
         this.maxMessageByteLength = maxMessageByteLength;
+        this.metrics = metrics;
+        setCumulator(this::cumulate);
     }
 
     @Override
-    protected void decode(ChannelHandlerContext channelHandlerContext, ByteBuf in, List<Object> out) throws Exception {
-        switch (state()) {
-            case HEAD:
-                try {
-                    header = decodeHeader(in);
-                    remainingLength = header.getRemainingLength();
-                    checkpoint(DecoderState.BODY);
-                } catch (Exception e) {
-                    checkpoint(DecoderState.BAD_MESSAGE);
-                    return;
-                }
-            case BODY:
-                try {
-                    if (remainingLength > maxMessageByteLength) {
-                        throw new DecoderException("too large message: " + remainingLength + " bytes");
-                    }
-                    byte[] messageBody = NettyUtils.readBytes(in.readRetainedSlice(remainingLength));
-                    checkpoint(DecoderState.HEAD);
-                    out.add(new Message(header, messageBody));
-                    header = null;
-                    remainingLength = 0;
-                } catch (Exception e) {
-                    checkpoint(DecoderState.BAD_MESSAGE);
-                    return;
-                }
-            case BAD_MESSAGE:
-                in.skipBytes(actualReadableBytes());
-                break;
-            default:
-                break;
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        if (badMessage) {
+            in.skipBytes(in.readableBytes());
+            return;
+        }
+        if (frameLength < 0 && !decodeHeader(in)) {
+            return;
         }
+        if (frameLength > in.readableBytes()) {
+            // 消息体还没有接收完整
+            return;
+        }
+
+        int remainingLength = frameLength - headerLength;
+        MessageHeader header = new MessageHeader(type, flags >>> 4, flags & 0x0F, remainingLength);
+        metrics.received(type, frameLength);
+        frameLength = -1;
+        in.skipBytes(headerLength);
+        // 消息体直接引用入站缓冲区的切片，由下游负责释放
+        out.add(new Message(header, in.readRetainedSlice(remainingLength)));
     }
 
-    private MessageHeader decodeHeader(ByteBuf byteBuf) {
-        MessageCommandType type = MessageCommandType.valueOf(byteBuf.readUnsignedByte());
+    /**
+     * 只读方式解析头部，成功时记录到 type、flags、headerLength、frameLength
+     *
+     * @return 头部还没有接收完整时返回 false
+     */
+    private boolean decodeHeader(ByteBuf in) throws Exception {
+        int readableBytes = in.readableBytes();
+        // 至少需要 指令 + 标志位 + 1字节可变长度
+        if (readableBytes < 3) {
+            return false;
+        }
+        int readerIndex = in.readerIndex();
+        MessageCommandType type = MessageCommandType.valueOf(in.getUnsignedByte(readerIndex));
         if (type == MessageCommandType.UNKNOWN) {
-            throw new DecoderException("unexpected command type");
+            fail(in, new CorruptedFrameException("unexpected command type"));
         }
 
-        short b2 = byteBuf.readUnsignedByte();
-        byte retryCount = (byte) (b2 >>> 4);
-        byte reversed = (byte) (b2 & 0x0F);
-
         int remainingLength = 0;
         int multiplier = 1;
-        short digit;
         int loops = 0;
+        short digit;
         do {
-            digit = byteBuf.readUnsignedByte();
+            if (2 + loops >= readableBytes) {
+                // 可变长度还没有接收完整
+                return false;
+            }
+            digit = in.getUnsignedByte(readerIndex + 2 + loops);
             remainingLength += (digit & 127) * multiplier;
             multiplier *= 128;
             loops++;
-        } while ((digit & 128) != 0 && loops < 4);
+        } while ((digit & 128) != 0 && loops < MAX_VARIABLE_LENGTH_BYTES);
 
-        if (loops == 4 && (digit & 128) != 0) {
-            throw new DecoderException("remaining length exceeds 4 digits ");
+        if ((digit & 128) != 0) {
+            fail(in, new CorruptedFrameException("remaining length exceeds " + MAX_VARIABLE_LENGTH_BYTES + " digits"));
+        }
+        if (remainingLength > maxMessageByteLength) {
+            fail(in, new TooLongFrameException("too large message: " + remainingLength + " bytes"));
         }
-        return new MessageHeader(type, retryCount, reversed, remainingLength);
+
+        this.type = type;
+        this.flags = in.getUnsignedByte(readerIndex + 1);
+        this.headerLength = 2 + loops;
+        this.frameLength = headerLength + remainingLength;
+        return true;
+    }
+
+    /**
+     * 累积入站数据，消息长度未知或缓冲区足够时与默认的 {@link #MERGE_CUMULATOR} 相同
+     */
+    private ByteBuf cumulate(ByteBufAllocator alloc, ByteBuf cumulation, ByteBuf in) {
+        // frameLength 有效时 cumulation 从当前消息的第一个字节开始
+        int required = cumulation.readableBytes() + in.readableBytes();
+        if (frameLength < 0 || frameLength <= cumulation.readableBytes() || in.readableBytes() <= cumulation.writableBytes()) {
+            return MERGE_CUMULATOR.cumulate(alloc, cumulation, in);
+        }
+        // 可变长度最多 4 字节，消息长度不超过 2^28，乘 4 不会溢出
+        int capacity = Math.max(required, Math.min(frameLength, Math.max(PREALLOCATE_LIMIT, required << 2)));
+        ByteBuf buffer = alloc.buffer(capacity);
+        try {
+            buffer.writeBytes(cumulation).writeBytes(in);
+        } catch (Throwable cause) {
+            buffer.release();
+            throw cause;
+        } finally {
+            in.release();
+        }
+        cumulation.release();
+        return buffer;
+    }
+
+    /**
+     * 丢弃当前以及之后收到的所有数据，并将异常向后传递
+     */
+    private void fail(ByteBuf in, Exception cause) throws Exception {
+        badMessage = true;
+        metrics.decodeError();
+        in.skipBytes(in.readableBytes());
+        throw cause;
     }
 }
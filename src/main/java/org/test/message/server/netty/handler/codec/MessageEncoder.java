@@ -2,35 +2,108 @@ package org.test.message.server.netty.handler.codec;
 
 import java.util.List;
 
-import org.apache.commons.lang3.ArrayUtils;
+import org.test.message.server.metrics.MessageMetrics;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageEncoder;
 
+/**
+ * 消息编码器
+ * <br/>
+ * 头部写入一个按实际长度分配的小缓冲区，和消息体组合成 {@link io.netty.buffer.CompositeByteBuf} 输出，消息体不会被拷贝；
+ * 没有消息体、重传次数和保留位都为 0 的消息（如 PING、PONG）直接使用预先编码好的帧。
+ */
 @ChannelHandler.Sharable
 public class MessageEncoder extends MessageToMessageEncoder<Message> {
+    /**
+     * 预先编码好的固定消息，下标为指令值
+     */
+    private static final ByteBuf[] FIXED_FRAMES;
+
+    static {
+        int maxValue = 0;
+        for (MessageCommandType type : MessageCommandType.values()) {
+            maxValue = Math.max(maxValue, type.getValue());
+        }
+        FIXED_FRAMES = new ByteBuf[maxValue + 1];
+        for (MessageCommandType type : MessageCommandType.values()) {
+            if (type == MessageCommandType.UNKNOWN) {
+                continue;
+            }
+            ByteBuf frame = Unpooled.directBuffer(3);
+            writeHeader(frame, type, 0, 0, 0);
+            FIXED_FRAMES[type.getValue()] = Unpooled.unreleasableBuffer(frame).asReadOnly();
+        }
+    }
+
+    private final MessageMetrics metrics;
+
+    public MessageEncoder() {
+        this(new MessageMetrics());
+    }
+
+    public MessageEncoder(MessageMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     @Override
     protected void encode(ChannelHandlerContext ctx, Message msg, List<Object> out) throws Exception {
+        ByteBuf encoded = encode(ctx.alloc(), msg);
+        metrics.sent(msg.getHeader().getType(), encoded.readableBytes());
+        out.add(encoded);
+    }
+
+    /**
+     * 编码消息，不会改变 msg 的引用计数，remainingLength 以消息体的实际长度为准
+     */
+    public static ByteBuf encode(ByteBufAllocator alloc, Message msg) {
         MessageHeader header = msg.getHeader();
-        int variableLength = getVariableLengthInt(header.getRemainingLength());
-        byte[] body = msg.getBody();
-        int bodyLength = ArrayUtils.getLength(body);
-        // 1字节指令 + 4位重传次数 + 4位保留位 + 可变长度 + variableLength + body长度
-        ByteBuf byteBuf = ctx.alloc().buffer(2 + variableLength + bodyLength);
-
-        byteBuf.writeByte(header.getType().getValue());
-        byteBuf.writeByte(header.getRetryCount() << 4 & header.getReserved());
-        writeVariableLengthInt(byteBuf, header.getRemainingLength());
-        if (bodyLength > 0) {
-            byteBuf.writeBytes(msg.getBody());
+        ByteBuf body = msg.content();
+        int bodyLength = body.readableBytes();
+        if (bodyLength == 0 && header.getRetryCount() == 0 && header.getReserved() == 0) {
+            return fixedFrame(header.getType());
+        }
+
+        // 1字节指令 + 4位重传次数 + 4位保留位 + 可变长度
+        ByteBuf headerBuf = alloc.buffer(2 + getVariableLengthInt(bodyLength));
+        writeHeader(headerBuf, header.getType(), header.getRetryCount(), header.getReserved(), bodyLength);
+        if (bodyLength == 0) {
+            return headerBuf;
         }
-        out.add(byteBuf);
+        return alloc.compositeBuffer(2).addComponents(true, headerBuf, body.retain());
+    }
+
+    /**
+     * 预先编码好的、没有消息体的消息帧，返回值可以直接写出
+     */
+    public static ByteBuf fixedFrame(MessageCommandType type) {
+        return FIXED_FRAMES[type.getValue()].duplicate();
     }
 
-    private int getVariableLengthInt(int remainingLength) {
-        return 0;
+    private static void writeHeader(ByteBuf byteBuf, MessageCommandType type, int retryCount, int reserved, int remainingLength) {
+        byteBuf.writeByte(type.getValue());
+        byteBuf.writeByte(retryCount << 4 | reserved & 0x0F);
+        writeVariableLengthInt(byteBuf, remainingLength);
+    }
+
+    /**
+     * 可变长度int编码后占用的字节数
+     */
+    public static int getVariableLengthInt(int remainingLength) {
+        if (remainingLength < 0x80) {
+            return 1;
+        }
+        if (remainingLength < 0x4000) {
+            return 2;
+        }
+        if (remainingLength < 0x200000) {
+            return 3;
+        }
+        return 4;
     }
 
     /**
@@ -0,0 +1,198 @@
+package org.test.message.server.netty.handler.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.test.message.server.netty.handler.codec.proto.Capability;
+import org.test.message.server.netty.handler.codec.proto.Connect;
+import org.test.message.server.netty.handler.codec.proto.ConnectAck;
+import org.test.message.server.netty.handler.codec.proto.ConnectCode;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 常用消息的构造和解析，消息体格式见 message.proto
+ * <br/>
+ * 消息体只在需要时才解析：{@link #parse(Message, Parser)} 通过 {@link CodedInputStream} 直接读取 ByteBuf 底层的 NIO 缓冲区，
+ * 不会先拷贝到 byte[]；PUBLISH 的 message_id 总是第一个字段，按固定偏移读取，转发路径上不会解析 payload。
+ */
+public final class Messages {
+    public static final int PROTOCOL_VERSION = 1;
+    /**
+     * 服务端支持的能力位
+     */
+    public static final int SUPPORTED_CAPABILITIES = Capability.CAPABILITY_PUBLISH_ACK_VALUE;
+
+    /**
+     * message_id 字段：字段号 1，fixed64
+     */
+    private static final int MESSAGE_ID_TAG = 1 << 3 | 1;
+    /**
+     * payload 字段：字段号 2，length-delimited
+     */
+    private static final int PAYLOAD_TAG = 2 << 3 | 2;
+    /**
+     * message_id 字段编码后的长度：1字节 tag + 8字节小端序 id
+     */
+    private static final int MESSAGE_ID_FIELD_LENGTH = 9;
+
+    /**
+     * 构造 PUBLISH 消息，只编码 message_id 和 payload 的长度前缀，payload 不会被拷贝，返回的消息持有 payload 的一个引用
+     */
+    public static Message publish(ByteBufAllocator alloc, long messageId, ByteBuf payload) {
+        int payloadLength = payload.readableBytes();
+        ByteBuf prefix = alloc.buffer(MESSAGE_ID_FIELD_LENGTH + 1 + CodedOutputStream.computeUInt32SizeNoTag(payloadLength));
+        prefix.writeByte(MESSAGE_ID_TAG);
+        prefix.writeLongLE(messageId);
+        if (payloadLength == 0) {
+            // proto3 中空的 bytes 字段不需要编码
+            return new Message(new MessageHeader(MessageCommandType.PUBLISH, 0, 0, prefix.readableBytes()), prefix);
+        }
+        prefix.writeByte(PAYLOAD_TAG);
+        writeVarint(prefix, payloadLength);
+        ByteBuf body = alloc.compositeBuffer(2).addComponents(true, prefix, payload.retain());
+        return new Message(new MessageHeader(MessageCommandType.PUBLISH, 0, 0, body.readableBytes()), body);
+    }
+
+    public static Message publishAck(ByteBufAllocator alloc, long messageId) {
+        ByteBuf body = alloc.buffer(MESSAGE_ID_FIELD_LENGTH);
+        body.writeByte(MESSAGE_ID_TAG);
+        body.writeLongLE(messageId);
+        return new Message(new MessageHeader(MessageCommandType.PUBLISH_ACK, 0, 0, MESSAGE_ID_FIELD_LENGTH), body);
+    }
+
+    public static Message connectAck(ByteBufAllocator alloc, ConnectCode code, int heartbeatSeconds, int capabilities) {
+        ConnectAck ack = ConnectAck.newBuilder()
+                .setCode(code)
+                .setHeartbeatSeconds(heartbeatSeconds)
+                .setCapabilities(capabilities)
+                .build();
+        ByteBuf body = serialize(alloc, ack);
+        return new Message(new MessageHeader(MessageCommandType.CONNECT_ACK, 0, 0, body.readableBytes()), body);
+    }
+
+    /**
+     * 解析 CONNECT 消息体
+     */
+    public static Connect connect(Message message) throws InvalidProtocolBufferException {
+        return parse(message, Connect.parser());
+    }
+
+    /**
+     * 直接从消息体的 NIO 缓冲区解析，不改变 readerIndex
+     * <br/>
+     * bytes 字段与消息体共享内存，只能在 message 释放之前使用
+     */
+    public static <T> T parse(Message message, Parser<T> parser) throws InvalidProtocolBufferException {
+        ByteBuf body = message.content();
+        CodedInputStream input = body.nioBufferCount() == 1
+                ? CodedInputStream.newInstance(body.nioBuffer())
+                : CodedInputStream.newInstance(Arrays.asList(body.nioBuffers()));
+        input.enableAliasing(true);
+        return parser.parseFrom(input);
+    }
+
+    /**
+     * 序列化到一个按实际长度分配的 ByteBuf 中
+     */
+    public static ByteBuf serialize(ByteBufAllocator alloc, MessageLite message) {
+        int size = message.getSerializedSize();
+        ByteBuf buf = alloc.buffer(size);
+        try {
+            // nioBuffer 与 buf 共享内存，直接写入不需要中间数组
+            CodedOutputStream output = CodedOutputStream.newInstance(buf.nioBuffer(buf.writerIndex(), size));
+            message.writeTo(output);
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            buf.release();
+            throw new IllegalStateException("serialize " + message.getClass().getSimpleName() + " error", e);
+        }
+        return buf.writerIndex(buf.writerIndex() + size);
+    }
+
+    /**
+     * 读取 PUBLISH / PUBLISH_ACK 消息的 message_id，不改变 readerIndex
+     * <br/>
+     * message_id 在第一个字段时按固定偏移读取，否则逐个跳过其他字段
+     *
+     * @return 没有 message_id 或格式错误时返回 -1
+     */
+    public static long messageId(Message message) {
+        ByteBuf body = message.content();
+        int index = body.readerIndex();
+        if (body.readableBytes() >= MESSAGE_ID_FIELD_LENGTH && body.getByte(index) == MESSAGE_ID_TAG) {
+            return body.getLongLE(index + 1);
+        }
+        try {
+            CodedInputStream input = CodedInputStream.newInstance(body.nioBuffer());
+            for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+                if (tag == MESSAGE_ID_TAG) {
+                    return input.readFixed64();
+                }
+                if (!input.skipField(tag)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // 格式错误
+        }
+        return -1;
+    }
+
+    /**
+     * 读取 PUBLISH 消息的 payload，不改变 readerIndex
+     * <br/>
+     * 返回的是切片，与消息体共享内存和引用计数，没有 payload 或格式错误时返回空的 ByteBuf
+     */
+    public static ByteBuf payload(Message message) {
+        ByteBuf body = message.content();
+        try {
+            CodedInputStream input = body.nioBufferCount() == 1
+                    ? CodedInputStream.newInstance(body.nioBuffer())
+                    : CodedInputStream.newInstance(Arrays.asList(body.nioBuffers()));
+            for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+                if (tag == PAYLOAD_TAG) {
+                    int length = input.readRawVarint32();
+                    int offset = input.getTotalBytesRead();
+                    if (length < 0 || offset + length > body.readableBytes()) {
+                        break;
+                    }
+                    return body.slice(body.readerIndex() + offset, length);
+                }
+                if (!input.skipField(tag)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // 格式错误
+        }
+        return Unpooled.EMPTY_BUFFER;
+    }
+
+    /**
+     * 复制一条重传次数不同的消息，共享消息体
+     */
+    public static Message withRetryCount(Message message, int retryCount) {
+        MessageHeader header = message.getHeader();
+        return new Message(new MessageHeader(header.getType(), retryCount, header.getReserved(), header.getRemainingLength()),
+                message.content().retainedDuplicate());
+    }
+
+    private static void writeVarint(ByteBuf buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.writeByte(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    private Messages() {}
+}
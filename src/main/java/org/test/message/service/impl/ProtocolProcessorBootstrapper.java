@@ -3,8 +3,11 @@ package org.test.message.service.impl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.test.message.server.config.IConfig;
+import org.test.message.server.config.ServerConstants;
 import org.test.message.server.netty.channel.ChannelManager;
+import org.test.message.server.netty.channel.SubscriptionManager;
 import org.test.message.server.netty.channel.impl.ChannelManagerImpl;
+import org.test.message.server.netty.channel.impl.SubscriptionManagerImpl;
 import org.test.message.service.processor.ProtocolProcessor;
 
 public class ProtocolProcessorBootstrapper {
@@ -19,8 +22,10 @@ public class ProtocolProcessorBootstrapper {
 
     public ProtocolProcessor init(IConfig config) {
         ChannelManager channelManager = new ChannelManagerImpl();
+        SubscriptionManager subscriptionManager = new SubscriptionManagerImpl(
+                config.getProperty(ServerConstants.SUBSCRIPTION_MAX_TOPICS, ServerConstants.DEFAULT_SUBSCRIPTION_MAX_TOPICS));
 
-        processor.init(channelManager);
+        processor.init(channelManager, subscriptionManager, config);
         return processor;
     }
 
@@ -0,0 +1,16 @@
+package org.test.message.service.processor;
+
+import org.test.message.server.netty.handler.codec.Message;
+
+import io.netty.channel.Channel;
+
+/**
+ * 无法投递的消息：重传次数用完或者连接关闭时仍未收到确认
+ */
+public interface DeadLetterListener {
+
+    /**
+     * 在连接的 EventLoop 中调用，方法返回后 message 会被释放，需要保存时自行 retain
+     */
+    void deadLetter(Channel channel, Message message);
+}
@@ -0,0 +1,33 @@
+package org.test.message.service.processor;
+
+/**
+ * 推送消息的投递状态
+ */
+public enum DeliveryStatus {
+    /**
+     * 用户在线，消息已经写入连接
+     */
+    ONLINE("online"),
+    /**
+     * 用户不在线，消息被丢弃
+     */
+    OFFLINE("offline"),
+    /**
+     * 用户不在线，消息已保存，等待用户上线后投递
+     */
+    QUEUED("queued"),
+    /**
+     * 用户在集群中的其他节点上在线，消息已经转发给该节点
+     */
+    FORWARDED("forwarded");
+
+    private final String value;
+
+    DeliveryStatus(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+}
@@ -1,30 +1,516 @@
 package org.test.message.service.processor;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.test.message.server.config.IConfig;
+import org.test.message.server.config.ServerConstants;
+import org.test.message.server.metrics.MessageMetrics;
+import org.test.message.server.netty.NettyUtils;
 import org.test.message.server.netty.channel.ChannelManager;
+import org.test.message.server.netty.channel.MessageBroadcaster;
+import org.test.message.server.netty.channel.SubscriptionManager;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.Messages;
+import org.test.message.server.netty.handler.codec.proto.Capability;
+import org.test.message.server.netty.handler.codec.proto.Connect;
+import org.test.message.server.netty.handler.codec.proto.ConnectCode;
+import org.test.message.server.netty.handler.codec.proto.Subscribe;
+import org.test.message.service.security.AuthenticationService;
+import org.test.message.service.security.Authenticator;
+import org.test.message.service.security.TokenAuthenticator;
+import org.test.message.service.security.TokenCache;
+import org.test.message.service.storage.MessageStore;
+import org.test.message.service.storage.impl.SegmentLogMessageStore;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
 import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.Future;
 
 public class ProtocolProcessor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProtocolProcessor.class);
+
+    private static final AttributeKey<Boolean> ATTR_KEY_CONNECTING = AttributeKey.valueOf("connecting");
+    /**
+     * CONNECT 认证通过并回复 CONNECT_ACK 之后，在连接的 pipeline 中触发的用户事件
+     */
+    public static final Object CONNECTED_EVENT = ConnectedEvent.INSTANCE;
 
     private ChannelManager channelManager;
 
+    private SubscriptionManager subscriptionManager;
+
     /**
      * 用于重新发送超时的消息
      */
     private HashedWheelTimer reSendWheel;
 
-    public void init(ChannelManager channelManager) {
+    private MessageBroadcaster broadcaster;
+
+    private PublishTracker publishTracker;
+
+    private AuthenticationService authenticationService;
+
+    /**
+     * 离线消息存储
+     */
+    private MessageStore messageStore;
+
+    /**
+     * 集群推送路由，没有启用集群时为 null
+     */
+    private volatile PushRouter pushRouter;
+
+    private final MessageMetrics messageMetrics = new MessageMetrics();
+
+    /**
+     * 按 CONNECT_ACK 返回码统计的 CONNECT 结果，下标为返回码
+     */
+    private final LongAdder[] connectResults = new LongAdder[ConnectCode.values().length];
+
+    /**
+     * 服务端心跳间隔(ms)，客户端协商的心跳间隔不能超过它
+     */
+    private int heartbeat;
+
+    /**
+     * 消息id，以启动时间为基数，避免重启后和客户端缓存的消息id重复
+     */
+    private final AtomicLong messageIdGenerator = new AtomicLong(System.currentTimeMillis() << 20);
+
+    public void init(ChannelManager channelManager, SubscriptionManager subscriptionManager, IConfig config) {
         this.channelManager = channelManager;
+        this.subscriptionManager = subscriptionManager;
+        for (int i = 0; i < connectResults.length; i++) {
+            connectResults[i] = new LongAdder();
+        }
+        this.broadcaster = new MessageBroadcaster(ByteBufAllocator.DEFAULT, messageMetrics);
         this.reSendWheel = new HashedWheelTimer(1, TimeUnit.SECONDS, 60);
+        this.publishTracker = new PublishTracker(reSendWheel,
+                config.getProperty(ServerConstants.PUBLISH_ACK_TIMEOUT, ServerConstants.DEFAULT_PUBLISH_ACK_TIMEOUT),
+                config.getProperty(ServerConstants.PUBLISH_MAX_BACKOFF, ServerConstants.DEFAULT_PUBLISH_MAX_BACKOFF),
+                this::deadLetter);
+        this.heartbeat = config.getProperty(ServerConstants.HEARTBEAT, ServerConstants.DEFAULT_HEARTBEAT);
+        this.authenticationService = new AuthenticationService(createAuthenticator(config),
+                new TokenCache(config.getProperty(ServerConstants.AUTH_CACHE_SIZE, ServerConstants.DEFAULT_AUTH_CACHE_SIZE),
+                        config.getProperty(ServerConstants.AUTH_CACHE_TTL, ServerConstants.DEFAULT_AUTH_CACHE_TTL)),
+                config.getProperty(ServerConstants.AUTH_THREADS, ServerConstants.DEFAULT_AUTH_THREADS),
+                config.getProperty(ServerConstants.AUTH_QUEUE_CAPACITY, ServerConstants.DEFAULT_AUTH_QUEUE_CAPACITY));
+        this.messageStore = createMessageStore(config);
+    }
+
+    private static Authenticator createAuthenticator(IConfig config) {
+        String className = config.getProperty(ServerConstants.AUTH_CLASS_NAME);
+        if (StringUtils.isEmpty(className)) {
+            return new TokenAuthenticator(config.getProperty(ServerConstants.AUTH_SECRET),
+                    config.getProperty(ServerConstants.AUTH_ANONYMOUS, ServerConstants.DEFAULT_AUTH_ANONYMOUS));
+        }
+        try {
+            return (Authenticator) Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("can not create authenticator: " + className, e);
+        }
+    }
+
+    private static MessageStore createMessageStore(IConfig config) {
+        String className = config.getProperty(ServerConstants.STORAGE_CLASS_NAME);
+        MessageStore store;
+        try {
+            store = StringUtils.isEmpty(className) ? new SegmentLogMessageStore()
+                    : (MessageStore) Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("can not create message store: " + className, e);
+        }
+        try {
+            store.init(config);
+        } catch (Exception e) {
+            throw new IllegalStateException("init message store failed: " + store.getClass().getName(), e);
+        }
+        return store;
     }
 
     public void close() {
         reSendWheel.stop();
+        authenticationService.close();
+        messageStore.close();
     }
 
     public ChannelManager getChannelManager() {
         return channelManager;
     }
+
+    public SubscriptionManager getSubscriptionManager() {
+        return subscriptionManager;
+    }
+
+    public PublishTracker getPublishTracker() {
+        return publishTracker;
+    }
+
+    public AuthenticationService getAuthenticationService() {
+        return authenticationService;
+    }
+
+    public MessageStore getMessageStore() {
+        return messageStore;
+    }
+
+    public void setPushRouter(PushRouter pushRouter) {
+        this.pushRouter = pushRouter;
+    }
+
+    public MessageMetrics getMessageMetrics() {
+        return messageMetrics;
+    }
+
+    public HashedWheelTimer getReSendWheel() {
+        return reSendWheel;
+    }
+
+    /**
+     * 返回 code 的 CONNECT 次数
+     */
+    public long connectCount(ConnectCode code) {
+        return connectResults[code.getNumber()].sum();
+    }
+
+    public long nextMessageId() {
+        return messageIdGenerator.incrementAndGet();
+    }
+
+    /**
+     * 已经收到 CONNECT（认证可能还没有完成）时返回 true
+     */
+    public boolean connectReceived(Channel channel) {
+        return channel.attr(ATTR_KEY_CONNECTING).get() != null;
+    }
+
+    /**
+     * 处理客户端的 CONNECT，在连接的 EventLoop 中调用
+     * <br/>
+     * 认证在认证线程池中异步执行，完成后回到连接的 EventLoop 注册连接并回复 CONNECT_ACK
+     */
+    public void processConnect(Channel channel, Message message) {
+        if (channel.attr(ATTR_KEY_CONNECTING).setIfAbsent(Boolean.TRUE) != null) {
+            LOGGER.warn("duplicate connect, close channel {}. uin={}", channel, NettyUtils.uin(channel));
+            channel.close();
+            return;
+        }
+        Connect connect;
+        try {
+            connect = Messages.connect(message);
+        } catch (InvalidProtocolBufferException e) {
+            LOGGER.debug("bad connect from channel {}. msg={}", channel, e.getMessage());
+            rejectConnect(channel, ConnectCode.BAD_REQUEST);
+            return;
+        }
+        if (connect.getVersion() != Messages.PROTOCOL_VERSION) {
+            rejectConnect(channel, ConnectCode.UNSUPPORTED_VERSION);
+            return;
+        }
+        if (StringUtils.isEmpty(connect.getUin())) {
+            rejectConnect(channel, ConnectCode.BAD_REQUEST);
+            return;
+        }
+        authenticationService.authenticate(connect.getUin(), connect.getDeviceId(), connect.getToken())
+                .whenComplete((success, cause) -> {
+                    if (channel.eventLoop().inEventLoop()) {
+                        completeConnect(channel, connect, success, cause);
+                    } else {
+                        channel.eventLoop().execute(() -> completeConnect(channel, connect, success, cause));
+                    }
+                });
+    }
+
+    private void completeConnect(Channel channel, Connect connect, Boolean success, Throwable cause) {
+        if (!channel.isActive()) {
+            return;
+        }
+        if (cause != null) {
+            rejectConnect(channel, ConnectCode.SERVER_UNAVAILABLE);
+            return;
+        }
+        if (!Boolean.TRUE.equals(success)) {
+            LOGGER.info("authenticate failed. uin={}, deviceId={}", connect.getUin(), connect.getDeviceId());
+            rejectConnect(channel, ConnectCode.NOT_AUTHORIZED);
+            return;
+        }
+        int capabilities = connect.getCapabilities() & Messages.SUPPORTED_CAPABILITIES;
+        NettyUtils.capabilities(channel, capabilities);
+        channelManager.register(connect.getUin(), connect.getDeviceId(), channel);
+        connectResults[ConnectCode.ACCEPTED_VALUE].increment();
+        int heartbeatSeconds = negotiateHeartbeat(connect.getHeartbeatSeconds());
+        channel.write(Messages.connectAck(channel.alloc(), ConnectCode.ACCEPTED, heartbeatSeconds, capabilities),
+                channel.voidPromise());
+        channel.flush();
+        channel.pipeline().fireUserEventTriggered(CONNECTED_EVENT);
+        LOGGER.debug("connected. uin={}, deviceId={}, heartbeat={}s", connect.getUin(), connect.getDeviceId(), heartbeatSeconds);
+        messageStore.drain(connect.getUin()).whenComplete((backlog, error) -> {
+            if (error != null) {
+                LOGGER.error("drain backlog failed. uin={}", connect.getUin(), error);
+            } else if (!backlog.isEmpty()) {
+                channel.eventLoop().execute(() -> deliverBacklog(channel, connect.getUin(), backlog));
+            }
+        });
+    }
+
+    /**
+     * 在连接的 EventLoop 中投递用户的离线消息，消息体是存储中的切片，直接写出不拷贝；
+     * 取出期间连接已经断开时重新保存
+     */
+    private void deliverBacklog(Channel channel, String uin, List<Message> backlog) {
+        if (!channel.isActive()) {
+            for (Message message : backlog) {
+                try {
+                    deadLetter(uin, message);
+                } finally {
+                    message.release();
+                }
+            }
+            return;
+        }
+        boolean track = (NettyUtils.capabilities(channel) & Capability.CAPABILITY_PUBLISH_ACK_VALUE) != 0;
+        for (Message message : backlog) {
+            try {
+                if (track) {
+                    publishTracker.track(channel, Messages.messageId(message), message);
+                }
+                channel.write(message.retain(), channel.voidPromise());
+            } finally {
+                message.release();
+            }
+        }
+        channel.flush();
+        LOGGER.debug("backlog delivered. uin={}, messages={}", uin, backlog.size());
+    }
+
+    private void rejectConnect(Channel channel, ConnectCode code) {
+        connectResults[code.getNumber()].increment();
+        channel.writeAndFlush(Messages.connectAck(channel.alloc(), code, 0, 0)).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * 客户端期望的心跳间隔限制在 [MIN_HEARTBEAT, heartbeat] 之间，为 0 时使用服务端的心跳间隔
+     */
+    private int negotiateHeartbeat(int requestedSeconds) {
+        int max = heartbeat / 1000;
+        if (requestedSeconds <= 0) {
+            return max;
+        }
+        return Math.max(Math.min(requestedSeconds, max), Math.min(ServerConstants.MIN_HEARTBEAT / 1000, max));
+    }
+
+    /**
+     * 处理客户端的 PUBLISH_ACK，在连接的 EventLoop 中调用
+     */
+    public void processPublishAck(Channel channel, Message message) {
+        long messageId = Messages.messageId(message);
+        if (!publishTracker.ack(channel, messageId)) {
+            LOGGER.debug("unknown publish ack. uin={}, messageId={}", NettyUtils.uin(channel), messageId);
+        }
+    }
+
+    /**
+     * 处理客户端的 SUBSCRIBE，在连接的 EventLoop 中调用
+     */
+    public void processSubscribe(Channel channel, Message message) {
+        Subscribe subscribe = parseSubscribe(channel, message);
+        if (subscribe == null) {
+            return;
+        }
+        for (String topic : subscribe.getTopicsList()) {
+            if (StringUtils.isEmpty(topic) || !subscriptionManager.subscribe(topic, channel)) {
+                LOGGER.debug("subscribe ignored. uin={}, topic={}", NettyUtils.uin(channel), topic);
+            }
+        }
+    }
+
+    /**
+     * 处理客户端的 UNSUBSCRIBE，在连接的 EventLoop 中调用
+     */
+    public void processUnsubscribe(Channel channel, Message message) {
+        Subscribe subscribe = parseSubscribe(channel, message);
+        if (subscribe == null) {
+            return;
+        }
+        for (String topic : subscribe.getTopicsList()) {
+            subscriptionManager.unsubscribe(topic, channel);
+        }
+    }
+
+    private static Subscribe parseSubscribe(Channel channel, Message message) {
+        try {
+            return Messages.parse(message, Subscribe.parser());
+        } catch (InvalidProtocolBufferException e) {
+            LOGGER.debug("bad subscribe, close channel {}. msg={}", channel, e.getMessage());
+            channel.close();
+            return null;
+        }
+    }
+
+    /**
+     * 重传次数用完或连接断开时仍未确认的消息，保存为离线消息，用户下次 CONNECT 时重新投递
+     */
+    private void deadLetter(Channel channel, Message message) {
+        deadLetter(NettyUtils.uin(channel), message);
+    }
+
+    private void deadLetter(String uin, Message message) {
+        long messageId = Messages.messageId(message);
+        if (uin == null) {
+            LOGGER.warn("publish message dropped. uin={}, messageId={}", uin, messageId);
+            return;
+        }
+        messageStore.store(uin, message).whenComplete((stored, cause) -> {
+            if (cause != null || !stored) {
+                LOGGER.warn("publish message dropped. uin={}, messageId={}", uin, messageId);
+            }
+        });
+    }
+
+    /**
+     * 向多个连接广播消息，消息只编码一次，不会改变 message 的引用计数
+     */
+    public Future<MessageBroadcaster.BroadcastResult> broadcast(Message message, Collection<Channel> channels) {
+        return broadcaster.broadcast(message, channels);
+    }
+
+    /**
+     * 向多个用户推送同一条消息，payload 只编码一次，所有连接共享同一个编码结果；
+     * 消息写出后进入连接的发送窗口，直到收到 PUBLISH_ACK，超时未确认会重传；
+     * 启用集群时同时转发给其他节点上在线的用户，本节点和其他节点都不在线的用户保存为离线消息
+     *
+     * @param uins    目标用户
+     * @param payload 消息内容，不会改变其引用计数
+     * @return 每个用户的投递状态，顺序与 uins 一致；有离线用户时在离线消息落盘之后完成
+     */
+    public CompletableFuture<Map<String, DeliveryStatus>> push(Collection<String> uins, ByteBuf payload) {
+        return push(uins, payload, true);
+    }
+
+    /**
+     * @param route 是否转发给集群中的其他节点，处理其他节点转发过来的消息时为 false，避免再次转发
+     */
+    public CompletableFuture<Map<String, DeliveryStatus>> push(Collection<String> uins, ByteBuf payload, boolean route) {
+        Map<String, DeliveryStatus> result = new LinkedHashMap<>(uins.size() * 2);
+        List<Channel> targets = new ArrayList<>(uins.size());
+        List<String> offline = new ArrayList<>();
+        for (String uin : uins) {
+            List<Channel> channels = channelManager.getChannels(uin);
+            if (channels.isEmpty()) {
+                offline.add(uin);
+                result.put(uin, DeliveryStatus.OFFLINE);
+                continue;
+            }
+            targets.addAll(channels);
+            result.put(uin, DeliveryStatus.ONLINE);
+        }
+        PushRouter router = pushRouter;
+        if (route && router != null) {
+            // 同一个用户可能同时在多个节点上有连接，所有用户都需要路由
+            Set<String> forwarded = router.forward(uins, payload);
+            if (!forwarded.isEmpty()) {
+                for (Iterator<String> it = offline.iterator(); it.hasNext(); ) {
+                    String uin = it.next();
+                    if (forwarded.contains(uin)) {
+                        result.put(uin, DeliveryStatus.FORWARDED);
+                        it.remove();
+                    }
+                }
+            }
+        }
+        if (targets.isEmpty() && offline.isEmpty()) {
+            return CompletableFuture.completedFuture(result);
+        }
+        long messageId = nextMessageId();
+        Message message = Messages.publish(ByteBufAllocator.DEFAULT, messageId, payload);
+        List<CompletableFuture<Boolean>> stores = new ArrayList<>(offline.size());
+        try {
+            for (String uin : offline) {
+                stores.add(messageStore.store(uin, message));
+            }
+            if (!targets.isEmpty()) {
+                broadcaster.broadcast(message, targets, tracker(messageId));
+            }
+        } finally {
+            message.release();
+        }
+        if (stores.isEmpty()) {
+            return CompletableFuture.completedFuture(result);
+        }
+        return CompletableFuture.allOf(stores.toArray(new CompletableFuture<?>[0])).handle((v, cause) -> {
+            for (int i = 0; i < stores.size(); i++) {
+                CompletableFuture<Boolean> store = stores.get(i);
+                if (!store.isCompletedExceptionally() && store.join()) {
+                    result.put(offline.get(i), DeliveryStatus.QUEUED);
+                }
+            }
+            return result;
+        });
+    }
+
+    /**
+     * 向订阅了主题的所有连接发布消息，与 {@link #push} 一样只编码一次、跟踪确认；启用集群时同时转发给其他节点
+     *
+     * @param payload 消息内容，不会改变其引用计数
+     * @return 本节点的订阅连接数
+     */
+    public int publish(String topic, ByteBuf payload) {
+        return publish(topic, payload, true);
+    }
+
+    /**
+     * @param route 是否转发给集群中的其他节点，处理其他节点转发过来的消息时为 false
+     */
+    public int publish(String topic, ByteBuf payload, boolean route) {
+        PushRouter router = pushRouter;
+        if (route && router != null) {
+            router.forwardTopic(topic, payload);
+        }
+        Collection<Channel> subscribers = subscriptionManager.getSubscribers(topic);
+        if (subscribers.isEmpty()) {
+            return 0;
+        }
+        long messageId = nextMessageId();
+        Message message = Messages.publish(ByteBufAllocator.DEFAULT, messageId, payload);
+        try {
+            broadcaster.broadcast(message, subscribers, tracker(messageId));
+        } finally {
+            message.release();
+        }
+        return subscribers.size();
+    }
+
+    /**
+     * 写出后进入连接的发送窗口，不回复 PUBLISH_ACK 的客户端不跟踪，最多投递一次
+     */
+    private MessageBroadcaster.WriteListener tracker(long messageId) {
+        return (channel, msg) -> {
+            if ((NettyUtils.capabilities(channel) & Capability.CAPABILITY_PUBLISH_ACK_VALUE) != 0) {
+                publishTracker.track(channel, messageId, msg);
+            }
+        };
+    }
+
+    private enum ConnectedEvent {
+        INSTANCE
+    }
 }
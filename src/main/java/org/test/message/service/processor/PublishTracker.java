@@ -0,0 +1,242 @@
+package org.test.message.service.processor;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.test.message.server.metrics.Histogram;
+import org.test.message.server.netty.NettyUtils;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.Messages;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+
+/**
+ * PUBLISH 消息确认跟踪
+ * <br/>
+ * 每个连接一个发送窗口（以消息id为key的 {@link LongObjectHashMap}），只在连接的 EventLoop 中访问，不需要加锁；
+ * 每个连接最多只有一个 {@link Timeout}，到期后扫描窗口，重传超时未确认的消息，重传间隔按指数退避，
+ * 重传 {@link #MAX_RETRY_COUNT} 次后仍未确认的消息交给 {@link DeadLetterListener}。
+ */
+public class PublishTracker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PublishTracker.class);
+
+    /**
+     * 最大重传次数，消息头中重传次数只有4位
+     */
+    public static final int MAX_RETRY_COUNT = 15;
+
+    private static final AttributeKey<InflightWindow> ATTR_KEY_INFLIGHT = AttributeKey.valueOf("inflight");
+
+    private final Timer timer;
+    private final long ackTimeoutMillis;
+    private final long maxBackoffMillis;
+    private final DeadLetterListener deadLetterListener;
+
+    private final LongAdder inflightCount = new LongAdder();
+    private final LongAdder retransmitCount = new LongAdder();
+    private final LongAdder deadLetterCount = new LongAdder();
+    /**
+     * 从第一次写出到收到确认的时间(μs)，包括重传的等待时间
+     */
+    private final Histogram ackLatency = new Histogram(26);
+
+    public PublishTracker(Timer timer, long ackTimeoutMillis, long maxBackoffMillis, DeadLetterListener deadLetterListener) {
+        if (ackTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("ackTimeoutMillis must be greater than 0: " + ackTimeoutMillis);
+        }
+        this.timer = timer;
+        this.ackTimeoutMillis = ackTimeoutMillis;
+        this.maxBackoffMillis = Math.max(ackTimeoutMillis, maxBackoffMillis);
+        this.deadLetterListener = deadLetterListener;
+    }
+
+    /**
+     * 开始跟踪已经写出的消息，必须在连接的 EventLoop 中调用，会 retain 一次 message
+     */
+    public void track(Channel channel, long messageId, Message message) {
+        InflightWindow window = channel.attr(ATTR_KEY_INFLIGHT).get();
+        if (window == null) {
+            window = new InflightWindow(channel);
+            channel.attr(ATTR_KEY_INFLIGHT).set(window);
+            InflightWindow w = window;
+            channel.closeFuture().addListener(future -> w.close());
+        }
+        window.add(messageId, message);
+    }
+
+    /**
+     * 收到确认，必须在连接的 EventLoop 中调用
+     *
+     * @return 消息在发送窗口中时返回 true
+     */
+    public boolean ack(Channel channel, long messageId) {
+        InflightWindow window = channel.attr(ATTR_KEY_INFLIGHT).get();
+        return window != null && window.ack(messageId);
+    }
+
+    /**
+     * 所有连接中等待确认的消息数
+     */
+    public long inflightCount() {
+        return inflightCount.sum();
+    }
+
+    public long retransmitCount() {
+        return retransmitCount.sum();
+    }
+
+    public long deadLetterCount() {
+        return deadLetterCount.sum();
+    }
+
+    public Histogram ackLatency() {
+        return ackLatency;
+    }
+
+    /**
+     * 第 retryCount 次重传之后等待确认的时间
+     */
+    private long backoff(int retryCount) {
+        long delay = ackTimeoutMillis << Math.min(retryCount, 20);
+        return Math.min(delay, maxBackoffMillis);
+    }
+
+    private void deadLetter(Channel channel, Inflight inflight) {
+        deadLetterCount.increment();
+        try {
+            if (deadLetterListener != null) {
+                deadLetterListener.deadLetter(channel, inflight.message);
+            }
+        } catch (Exception e) {
+            LOGGER.error("dead letter listener exception. uin={}", NettyUtils.uin(channel), e);
+        } finally {
+            inflight.message.release();
+        }
+    }
+
+    /**
+     * 等待确认的消息，多个连接共享同一个 message 对象
+     */
+    private static final class Inflight {
+        private final Message message;
+        private final long sentNanos = System.nanoTime();
+        private long deadline;
+        private int retryCount;
+
+        Inflight(Message message, long deadline) {
+            this.message = message;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * 一个连接的发送窗口，只在连接的 EventLoop 中访问
+     */
+    private final class InflightWindow {
+        private final Channel channel;
+        private final LongObjectMap<Inflight> messages = new LongObjectHashMap<>();
+        private Timeout timeout;
+        private boolean closed;
+
+        InflightWindow(Channel channel) {
+            this.channel = channel;
+        }
+
+        void add(long messageId, Message message) {
+            if (closed) {
+                return;
+            }
+            Inflight old = messages.put(messageId, new Inflight(message.retain(), System.currentTimeMillis() + ackTimeoutMillis));
+            if (old != null) {
+                old.message.release();
+            } else {
+                inflightCount.increment();
+            }
+            if (timeout == null) {
+                schedule(ackTimeoutMillis);
+            }
+        }
+
+        boolean ack(long messageId) {
+            Inflight inflight = messages.remove(messageId);
+            if (inflight == null) {
+                return false;
+            }
+            inflightCount.decrement();
+            ackLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - inflight.sentNanos));
+            inflight.message.release();
+            if (messages.isEmpty() && timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+            return true;
+        }
+
+        private void schedule(long delayMillis) {
+            timeout = timer.newTimeout(t -> channel.eventLoop().execute(() -> expire(t)), Math.max(delayMillis, 1), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 重传超时的消息，并按最早的超时时间重新调度
+         */
+        private void expire(Timeout expired) {
+            if (expired != timeout) {
+                // 已经被取消并重新调度过
+                return;
+            }
+            timeout = null;
+            if (closed || messages.isEmpty()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long nextDeadline = Long.MAX_VALUE;
+            boolean written = false;
+            for (Iterator<LongObjectMap.PrimitiveEntry<Inflight>> it = messages.entries().iterator(); it.hasNext(); ) {
+                Inflight inflight = it.next().value();
+                if (inflight.deadline > now) {
+                    nextDeadline = Math.min(nextDeadline, inflight.deadline);
+                    continue;
+                }
+                if (inflight.retryCount >= MAX_RETRY_COUNT) {
+                    it.remove();
+                    inflightCount.decrement();
+                    deadLetter(channel, inflight);
+                    continue;
+                }
+                inflight.retryCount++;
+                inflight.deadline = now + backoff(inflight.retryCount);
+                nextDeadline = Math.min(nextDeadline, inflight.deadline);
+                retransmitCount.increment();
+                channel.write(Messages.withRetryCount(inflight.message, inflight.retryCount), channel.voidPromise());
+                written = true;
+            }
+            if (written) {
+                channel.flush();
+            }
+            if (!messages.isEmpty()) {
+                schedule(nextDeadline - now);
+            }
+        }
+
+        void close() {
+            closed = true;
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+            for (Inflight inflight : messages.values()) {
+                inflightCount.decrement();
+                deadLetter(channel, inflight);
+            }
+            messages.clear();
+        }
+    }
+}
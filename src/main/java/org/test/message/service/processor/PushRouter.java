@@ -0,0 +1,28 @@
+package org.test.message.service.processor;
+
+import java.util.Collection;
+import java.util.Set;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 集群推送路由，把消息转发给持有用户连接的其他节点
+ */
+public interface PushRouter {
+
+    /**
+     * 转发给 uins 中在其他节点上在线的用户，同一个节点上的用户合并成一条消息，只写出不等待对方确认
+     *
+     * @param payload 消息内容，不会改变其引用计数
+     * @return 已经转发的用户，没有时返回空集合
+     */
+    Set<String> forward(Collection<String> uins, ByteBuf payload);
+
+    /**
+     * 把发布到主题的消息转发给其他所有节点，由各节点投递给自己的订阅者
+     *
+     * @param payload 消息内容，不会改变其引用计数
+     * @return 转发的节点数
+     */
+    int forwardTopic(String topic, ByteBuf payload);
+}
@@ -0,0 +1,91 @@
+package org.test.message.service.security;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * 异步认证
+ * <br/>
+ * 缓存命中时直接返回已完成的 future，不切换线程；未命中时提交到独立的认证线程池，不会阻塞 EventLoop。
+ * 线程池的队列是有界的，队列满时返回失败的 future，由调用方回复服务不可用，避免重连风暴压垮认证后端。
+ */
+public class AuthenticationService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuthenticationService.class);
+
+    private final Authenticator authenticator;
+    private final TokenCache cache;
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public AuthenticationService(Authenticator authenticator, TokenCache cache, int threads, int queueCapacity) {
+        this.authenticator = authenticator;
+        this.cache = cache;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new DefaultThreadFactory("auth", true), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * @return 认证结果，认证线程池已满或 authenticator 抛出异常时异常完成
+     */
+    public CompletableFuture<Boolean> authenticate(String uin, String deviceId, String token) {
+        if (cache.contains(uin, deviceId, token)) {
+            cacheHits.increment();
+            return CompletableFuture.completedFuture(Boolean.TRUE);
+        }
+        cacheMisses.increment();
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    boolean success = authenticator.authenticate(uin, deviceId, token);
+                    if (success) {
+                        cache.put(uin, deviceId, token);
+                    }
+                    future.complete(success);
+                } catch (Throwable e) {
+                    LOGGER.error("authenticate exception. uin={}, deviceId={}", uin, deviceId, e);
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public TokenCache getCache() {
+        return cache;
+    }
+
+    public long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long cacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * 认证线程池已满被拒绝的次数
+     */
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,13 @@
+package org.test.message.service.security;
+
+/**
+ * 连接认证，实现类通过配置项 auth.class 指定，需要有无参构造方法
+ * <br/>
+ * 在独立的认证线程池中调用，可以阻塞（如访问数据库、远程认证服务）；认证通过的结果会被缓存一段时间。
+ */
+public interface Authenticator {
+    /**
+     * @return token 有效时返回 true
+     */
+    boolean authenticate(String uin, String deviceId, String token) throws Exception;
+}
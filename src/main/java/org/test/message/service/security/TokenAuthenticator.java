@@ -0,0 +1,46 @@
+package org.test.message.service.security;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.test.message.common.Md5Util;
+
+/**
+ * 默认的认证实现：token = md5(uin + secret)
+ * <br/>
+ * 没有配置 secret 时拒绝所有连接，除非显式开启 anonymous，这时不做认证，所有连接都认为合法。
+ */
+public class TokenAuthenticator implements Authenticator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TokenAuthenticator.class);
+
+    private final String secret;
+    private final boolean anonymous;
+
+    public TokenAuthenticator(String secret) {
+        this(secret, false);
+    }
+
+    /**
+     * @param secret    密钥
+     * @param anonymous 没有配置密钥时是否接受所有连接
+     */
+    public TokenAuthenticator(String secret, boolean anonymous) {
+        this.secret = secret;
+        this.anonymous = anonymous;
+        if (StringUtils.isEmpty(secret)) {
+            if (anonymous) {
+                LOGGER.warn("auth secret is not configured and anonymous is enabled, all connections will be accepted");
+            } else {
+                LOGGER.error("auth secret is not configured, all connections will be rejected");
+            }
+        }
+    }
+
+    @Override
+    public boolean authenticate(String uin, String deviceId, String token) {
+        if (StringUtils.isEmpty(secret)) {
+            return anonymous;
+        }
+        return StringUtils.equals(Md5Util.encode(uin + secret), token);
+    }
+}
@@ -0,0 +1,121 @@
+package org.test.message.service.security;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import io.netty.util.internal.MathUtil;
+
+/**
+ * 认证通过的 token 缓存，按 LRU 淘汰，超过 ttl 后失效
+ * <br/>
+ * 分成多个段，每个段是一个按访问顺序排序的 {@link LinkedHashMap}，只锁单个段，重连风暴时多个 EventLoop 并发查询的竞争较小。
+ * 每个 uin + deviceId 只缓存最近一次认证通过的 token。
+ */
+public class TokenCache {
+    private final Segment[] segments;
+    private final int mask;
+    private final long ttlMillis;
+
+    /**
+     * @param capacity  最多缓存的条目数
+     * @param ttlMillis 缓存有效期(ms)
+     */
+    public TokenCache(int capacity, long ttlMillis) {
+        this(capacity, ttlMillis, MathUtil.findNextPositivePowerOfTwo(Math.max(1, Runtime.getRuntime().availableProcessors() * 2)));
+    }
+
+    /**
+     * @param segmentCount 段数，必须是 2 的幂
+     */
+    TokenCache(int capacity, long ttlMillis, int segmentCount) {
+        this.segments = new Segment[segmentCount];
+        this.mask = segmentCount - 1;
+        this.ttlMillis = ttlMillis;
+        int segmentCapacity = Math.max(1, capacity / segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * token 在缓存中且没有过期时返回 true
+     */
+    public boolean contains(String uin, String deviceId, String token) {
+        String key = key(uin, deviceId);
+        Segment segment = segment(key);
+        synchronized (segment) {
+            CachedToken entry = segment.get(key);
+            if (entry == null) {
+                return false;
+            }
+            if (entry.expireTime <= System.currentTimeMillis()) {
+                segment.remove(key);
+                return false;
+            }
+            return Objects.equals(entry.token, token);
+        }
+    }
+
+    public void put(String uin, String deviceId, String token) {
+        String key = key(uin, deviceId);
+        Segment segment = segment(key);
+        CachedToken entry = new CachedToken(token, System.currentTimeMillis() + ttlMillis);
+        synchronized (segment) {
+            segment.put(key, entry);
+        }
+    }
+
+    public void invalidate(String uin, String deviceId) {
+        String key = key(uin, deviceId);
+        Segment segment = segment(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private static String key(String uin, String deviceId) {
+        return uin + '\u0000' + (deviceId == null ? "" : deviceId);
+    }
+
+    private Segment segment(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & mask];
+    }
+
+    private static final class CachedToken {
+        private final String token;
+        private final long expireTime;
+
+        CachedToken(String token, long expireTime) {
+            this.token = token;
+            this.expireTime = expireTime;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<String, CachedToken> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedToken> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.test.message.service.storage;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.test.message.server.config.IConfig;
+import org.test.message.server.netty.handler.codec.Message;
+
+/**
+ * 离线消息存储，实现类通过配置项 storage.class 指定，需要有无参构造方法
+ * <br/>
+ * 用户不在线时推送的消息、以及投递后最终没有确认的消息会被保存，用户 CONNECT 后一次性取出投递。
+ * 所有方法都可能被多个线程并发调用，store 和 drain 会在 EventLoop 中调用，涉及磁盘 IO 的实现需要异步执行。
+ */
+public interface MessageStore {
+    void init(IConfig config) throws Exception;
+
+    /**
+     * 保存一条 PUBLISH 消息，返回时不改变 message 的引用计数，需要异步保存时实现自行持有消息体
+     *
+     * @return 消息持久化之后完成，保存成功时为 true
+     */
+    CompletableFuture<Boolean> store(String uin, Message message);
+
+    /**
+     * 取出并移除用户的所有离线消息，按保存的顺序返回，调用方负责释放返回的消息
+     * <br/>
+     * 在此之前调用的 store 保存的消息都会被取出
+     */
+    CompletableFuture<List<Message>> drain(String uin);
+
+    /**
+     * 所有用户的离线消息总数
+     */
+    long size();
+
+    void close();
+}
@@ -0,0 +1,369 @@
+package org.test.message.service.storage.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.test.message.server.config.IConfig;
+import org.test.message.server.config.ServerConstants;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageCommandType;
+import org.test.message.server.netty.handler.codec.MessageHeader;
+import org.test.message.service.storage.MessageStore;
+import org.test.message.timewheel.ExpirationListener;
+import org.test.message.timewheel.TimingWheel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * 内存中的离线消息存储，不落盘，重启后丢失
+ * <br/>
+ * 每个用户一个定长的环形队列，满了丢弃最早的消息；每条消息按 {@link ServerConstants#STORAGE_MEMORY_TTL} 在 {@link TimingWheel} 中过期；
+ * 所有消息体的总字节数超过 {@link ServerConstants#STORAGE_MEMORY_MAX_BYTES} 时，按最近保存时间淘汰最久没有新消息的用户的全部消息。
+ * 消息体拷贝到池化的堆外缓冲区，大量积压的消息不会增加 GC 的负担。
+ */
+public class MemoryMessageStore implements MessageStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemoryMessageStore.class);
+
+    /**
+     * 按最近保存时间排序
+     */
+    private final LinkedHashMap<String, UserQueue> queues = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int userCapacity;
+    private long maxBytes;
+    private long ttl;
+    private long bytes;
+    private long count;
+    private TimingWheel<Pending> expirationWheel;
+
+    private final LongAdder expiredCount = new LongAdder();
+    private final LongAdder evictedCount = new LongAdder();
+    private final LongAdder overflowCount = new LongAdder();
+
+    @Override
+    public void init(IConfig config) {
+        userCapacity = config.getProperty(ServerConstants.STORAGE_MEMORY_USER_CAPACITY, ServerConstants.DEFAULT_STORAGE_MEMORY_USER_CAPACITY);
+        maxBytes = Long.parseLong(config.getProperty(ServerConstants.STORAGE_MEMORY_MAX_BYTES,
+                String.valueOf(ServerConstants.DEFAULT_STORAGE_MEMORY_MAX_BYTES)));
+        ttl = config.getProperty(ServerConstants.STORAGE_MEMORY_TTL, ServerConstants.DEFAULT_STORAGE_MEMORY_TTL);
+        if (userCapacity <= 0) {
+            throw new IllegalArgumentException("userCapacity must be greater than 0: " + userCapacity);
+        }
+        expirationWheel = TimingWheel.Builder.<Pending>newBuilder()
+                .name("storage-expiration")
+                .tickDuration(1, TimeUnit.SECONDS)
+                .expirationListeners(new ExpirationListener<Pending>() {
+                    @Override
+                    public void expired(Pending pending) {
+                        expired(Collections.singletonList(pending));
+                    }
+
+                    @Override
+                    public void expired(Collection<Pending> expired) {
+                        expire(expired);
+                    }
+                })
+                .build();
+        expirationWheel.start();
+        LOGGER.info("memory message store opened. userCapacity={}, maxBytes={}, ttl={}ms", userCapacity, maxBytes, ttl);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> store(String uin, Message message) {
+        ByteBuf content = message.content();
+        int length = content.readableBytes();
+        if (length > maxBytes) {
+            return CompletableFuture.completedFuture(false);
+        }
+        ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer(length, length);
+        body.writeBytes(content, content.readerIndex(), length);
+        List<Pending> removed = new ArrayList<>();
+        Pending pending;
+        synchronized (this) {
+            UserQueue queue = queues.computeIfAbsent(uin, UserQueue::new);
+            pending = new Pending(queue, body);
+            Pending dropped = queue.offer(pending);
+            if (dropped != null) {
+                overflowCount.increment();
+                removed.add(dropped);
+                release(dropped);
+            }
+            bytes += length;
+            count++;
+            // 最新保存的用户在最后，不会被淘汰
+            for (Iterator<UserQueue> it = queues.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+                UserQueue eldest = it.next();
+                if (eldest == queue) {
+                    break;
+                }
+                it.remove();
+                evictedCount.increment();
+                removed.addAll(eldest.clear());
+            }
+            // 在锁内加入时间轮，否则并发的 drain 或淘汰可能先执行 remove，留下一个到期前都不会被清理的条目
+            expirationWheel.add(pending, ttl, TimeUnit.MILLISECONDS);
+        }
+        for (Pending p : removed) {
+            expirationWheel.remove(p);
+        }
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> drain(String uin) {
+        List<Pending> drained;
+        List<Message> result;
+        synchronized (this) {
+            UserQueue queue = queues.remove(uin);
+            if (queue == null) {
+                return CompletableFuture.completedFuture(Collections.emptyList());
+            }
+            drained = queue.drain();
+            result = new ArrayList<>(drained.size());
+            for (Pending pending : drained) {
+                ByteBuf body = pending.body;
+                // 消息体交给调用方，之后的过期通知直接忽略
+                pending.body = null;
+                bytes -= body.readableBytes();
+                count--;
+                result.add(new Message(new MessageHeader(MessageCommandType.PUBLISH, 0, 0, body.readableBytes()), body));
+            }
+        }
+        for (Pending pending : drained) {
+            expirationWheel.remove(pending);
+        }
+        return CompletableFuture.completedFuture(result);
+    }
+
+    @Override
+    public synchronized long size() {
+        return count;
+    }
+
+    /**
+     * 所有消息体占用的字节数
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public long expiredCount() {
+        return expiredCount.sum();
+    }
+
+    /**
+     * 因为内存超过上限被淘汰的用户数
+     */
+    public long evictedCount() {
+        return evictedCount.sum();
+    }
+
+    /**
+     * 因为用户队列满被丢弃的消息数
+     */
+    public long overflowCount() {
+        return overflowCount.sum();
+    }
+
+    /**
+     * 等待过期的消息数
+     */
+    public int pendingExpirations() {
+        return expirationWheel.size();
+    }
+
+    /**
+     * 消息从过期时间到被时间轮发现的平均延迟(ms)
+     */
+    public double averageExpiryLagMillis() {
+        return expirationWheel.getAverageExpiryLagMillis();
+    }
+
+    public long maxExpiryLagMillis() {
+        return expirationWheel.getMaxExpiryLagMillis();
+    }
+
+    @Override
+    public void close() {
+        if (expirationWheel != null) {
+            expirationWheel.stop(false);
+        }
+        synchronized (this) {
+            for (UserQueue queue : queues.values()) {
+                queue.clear();
+            }
+            queues.clear();
+        }
+    }
+
+    /**
+     * 用户队列中没有过期的消息，按保存顺序排列
+     */
+    synchronized List<Pending> pending(String uin) {
+        // 遍历查找，get 会改变用户的淘汰顺序
+        for (UserQueue queue : queues.values()) {
+            if (queue.uin.equals(uin)) {
+                return queue.live();
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    void expire(Collection<Pending> expired) {
+        synchronized (this) {
+            for (Pending pending : expired) {
+                if (pending.body == null) {
+                    continue;
+                }
+                UserQueue queue = pending.queue;
+                queue.remove(pending);
+                release(pending);
+                expiredCount.increment();
+                // 用 remove(key, value) 比较，get 会把用户移到最近保存的位置
+                if (queue.isEmpty()) {
+                    queues.remove(queue.uin, queue);
+                }
+            }
+        }
+    }
+
+    /**
+     * 释放消息体，必须持有锁
+     */
+    private void release(Pending pending) {
+        bytes -= pending.body.readableBytes();
+        count--;
+        pending.body.release();
+        pending.body = null;
+    }
+
+    /**
+     * 一条离线消息，消息体被取出或释放后为 null
+     */
+    static final class Pending {
+        private final UserQueue queue;
+        private ByteBuf body;
+
+        Pending(UserQueue queue, ByteBuf body) {
+            this.queue = queue;
+            this.body = body;
+        }
+    }
+
+    /**
+     * 一个用户的环形队列，只在持有锁时访问；过期的消息在队列中间时先留空，到达队头时再移出
+     */
+    private final class UserQueue {
+        private final String uin;
+        private final Pending[] ring = new Pending[userCapacity];
+        private int head;
+        private int size;
+        private int live;
+
+        UserQueue(String uin) {
+            this.uin = uin;
+        }
+
+        /**
+         * @return 队列满时被挤出的最早的消息，队列中有过期的空位时先回收空位，不挤出有效消息
+         */
+        Pending offer(Pending pending) {
+            Pending dropped = null;
+            if (size == ring.length) {
+                if (live < size) {
+                    compact();
+                } else {
+                    dropped = poll();
+                }
+            }
+            ring[(head + size) % ring.length] = pending;
+            size++;
+            live++;
+            return dropped;
+        }
+
+        /**
+         * 移出队头的第一条有效消息，同时跳过已经过期的空位
+         */
+        private Pending poll() {
+            while (size > 0) {
+                Pending pending = ring[head];
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                size--;
+                if (pending.body != null) {
+                    live--;
+                    return pending;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 把有效消息按顺序移到队头，去掉中间过期的空位
+         */
+        private void compact() {
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % ring.length;
+                Pending pending = ring[index];
+                ring[index] = null;
+                if (pending.body != null) {
+                    ring[(head + count) % ring.length] = pending;
+                    count++;
+                }
+            }
+            size = count;
+        }
+
+        void remove(Pending pending) {
+            live--;
+            while (size > 0 && (ring[head] == pending || ring[head].body == null)) {
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                size--;
+            }
+        }
+
+        boolean isEmpty() {
+            return live == 0;
+        }
+
+        List<Pending> live() {
+            List<Pending> result = new ArrayList<>(live);
+            for (int i = 0; i < size; i++) {
+                Pending pending = ring[(head + i) % ring.length];
+                if (pending.body != null) {
+                    result.add(pending);
+                }
+            }
+            return result;
+        }
+
+        List<Pending> drain() {
+            List<Pending> result = new ArrayList<>(live);
+            for (Pending pending = poll(); pending != null; pending = poll()) {
+                result.add(pending);
+            }
+            return result;
+        }
+
+        List<Pending> clear() {
+            List<Pending> result = drain();
+            for (Pending pending : result) {
+                release(pending);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.test.message.service.storage.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 一个内存映射的日志段文件，只追加
+ * <br/>
+ * 记录格式：4字节长度（不含长度和校验和本身） + 4字节 CRC32 + 1字节类型 + 8字节消息id + 2字节 uin 长度 + uin + 消息体。
+ * 文件创建时按段大小预分配，长度为 0 的位置表示后面没有数据；恢复时遇到校验失败的记录（写入一半时宕机）即停止。
+ * 只在 {@link SegmentLogMessageStore} 的存储线程中写入，fsync 在单独的线程中执行。
+ */
+final class Segment {
+    static final byte TYPE_APPEND = 1;
+    /**
+     * 用户在此之前保存的消息都已经取出
+     */
+    static final byte TYPE_DRAIN = 2;
+
+    /**
+     * 长度 + 校验和
+     */
+    static final int RECORD_HEADER_LENGTH = 8;
+    /**
+     * 类型 + 消息id + uin 长度
+     */
+    static final int RECORD_FIXED_LENGTH = 1 + 8 + 2;
+
+    private static final String SUFFIX = ".log";
+
+    private final long id;
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+    /**
+     * 还没有被取出的 APPEND 记录数
+     */
+    int liveCount;
+    /**
+     * 写入过的 APPEND 记录数
+     */
+    int appendCount;
+
+    private Segment(long id, File file, FileChannel channel, MappedByteBuffer buffer) {
+        this.id = id;
+        this.file = file;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    static Segment create(File dir, long id, int size) throws IOException {
+        return open(new File(dir, String.format("%020d%s", id, SUFFIX)), id, size);
+    }
+
+    static Segment open(File file, long id, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            return new Segment(id, file, channel, buffer);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 从文件名解析段id，不是段文件时返回 -1
+     */
+    static long parseId(File file) {
+        String name = file.getName();
+        if (!name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static int recordLength(byte[] uin, int bodyLength) {
+        return RECORD_HEADER_LENGTH + RECORD_FIXED_LENGTH + uin.length + bodyLength;
+    }
+
+    long id() {
+        return id;
+    }
+
+    int writePosition() {
+        return writePosition;
+    }
+
+    boolean hasRoom(int recordLength) {
+        // 末尾至少保留 4 字节的 0 作为结束标记
+        return writePosition + recordLength + 4 <= buffer.capacity();
+    }
+
+    /**
+     * 追加一条记录
+     *
+     * @return 消息体在文件中的位置
+     */
+    int append(byte type, long messageId, byte[] uin, ByteBuf body) {
+        int bodyLength = body == null ? 0 : body.readableBytes();
+        int length = RECORD_FIXED_LENGTH + uin.length + bodyLength;
+        int start = writePosition;
+        ByteBuffer out = buffer.duplicate();
+        out.position(start + RECORD_HEADER_LENGTH);
+        out.put(type);
+        out.putLong(messageId);
+        out.putShort((short) uin.length);
+        out.put(uin);
+        int bodyPosition = out.position();
+        if (bodyLength > 0) {
+            out.limit(bodyPosition + bodyLength);
+            body.getBytes(body.readerIndex(), out);
+        }
+        out.position(start + RECORD_HEADER_LENGTH).limit(start + RECORD_HEADER_LENGTH + length);
+        CRC32 crc = new CRC32();
+        crc.update(out);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        // 长度最后写入，保证读到非 0 长度时记录内容已经完整
+        buffer.putInt(start, length);
+        writePosition = start + RECORD_HEADER_LENGTH + length;
+        return bodyPosition;
+    }
+
+    /**
+     * 消息体的只读视图，与文件映射共享内存，不拷贝
+     * <br/>
+     * 段文件被删除后映射会在所有视图都不可达之后由 GC 回收，已经写出但还没有发送完成的视图依然有效
+     */
+    ByteBuf slice(int position, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(position).limit(position + length);
+        return Unpooled.wrappedBuffer(view.slice());
+    }
+
+    /**
+     * 恢复时依次读取记录
+     */
+    void replay(RecordVisitor visitor) {
+        int position = 0;
+        ByteBuffer in = buffer.duplicate();
+        while (position + RECORD_HEADER_LENGTH <= in.capacity()) {
+            int length = in.getInt(position);
+            if (length < RECORD_FIXED_LENGTH || position + RECORD_HEADER_LENGTH + length > in.capacity()) {
+                break;
+            }
+            int checksum = in.getInt(position + 4);
+            in.limit(position + RECORD_HEADER_LENGTH + length).position(position + RECORD_HEADER_LENGTH);
+            CRC32 crc = new CRC32();
+            crc.update(in);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            in.limit(in.capacity()).position(position + RECORD_HEADER_LENGTH);
+            byte type = in.get();
+            long messageId = in.getLong();
+            byte[] uin = new byte[in.getShort() & 0xFFFF];
+            in.get(uin);
+            int bodyPosition = in.position();
+            int bodyLength = position + RECORD_HEADER_LENGTH + length - bodyPosition;
+            visitor.visit(type, messageId, uin, bodyPosition, bodyLength);
+            position += RECORD_HEADER_LENGTH + length;
+        }
+        writePosition = position;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    boolean delete() {
+        close();
+        return file.delete();
+    }
+
+    @Override
+    public String toString() {
+        return file.getName();
+    }
+
+    interface RecordVisitor {
+        void visit(byte type, long messageId, byte[] uin, int bodyPosition, int bodyLength);
+    }
+}
@@ -0,0 +1,426 @@
+package org.test.message.service.storage.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.test.message.server.config.IConfig;
+import org.test.message.server.config.ServerConstants;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageCommandType;
+import org.test.message.server.netty.handler.codec.MessageHeader;
+import org.test.message.server.netty.handler.codec.Messages;
+import org.test.message.service.storage.MessageStore;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * 默认的离线消息存储，保存在本地内存映射的日志段文件中
+ * <br/>
+ * 消息体追加到当前日志段，内存中按 uin 维护未取出消息在日志段中的位置；取出时追加一条 DRAIN 记录，
+ * 返回的消息体直接是文件映射的切片，写出时不会拷贝到堆上。
+ * 所有读写都在单独的存储线程中按提交顺序执行，索引和日志段不需要加锁，调用方（EventLoop）不会被磁盘 IO 阻塞。
+ * 存储线程按 {@link ServerConstants#STORAGE_FLUSH_INTERVAL} 把上次 fsync 以来的日志段交给 fsync 线程批量落盘（组提交），
+ * 落盘之后 store 返回的 future 才完成；DRAIN 记录不等待落盘，宕机时最多重复投递。
+ * 存储线程同时回收最早的日志段：没有未取出的消息时直接删除，剩余消息不超过 1/{@value #COMPACT_RATIO} 时，
+ * 按快照分批搬到当前日志段，搬迁的记录落盘之后再删除。
+ * 日志段只按从旧到新的顺序删除，保证 DRAIN 记录不会早于它覆盖的消息被删除，重启后按顺序重放即可恢复索引。
+ */
+public class SegmentLogMessageStore implements MessageStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentLogMessageStore.class);
+
+    private static final int COMPACT_RATIO = 4;
+    /**
+     * 每个任务最多搬迁的消息数，搬迁期间穿插执行保存和取出
+     */
+    private static final int COMPACT_BATCH = 1024;
+
+    // 以下字段只在存储线程中访问（init 和 close 时存储线程没有运行）
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    /**
+     * 已经写满、还没有 fsync 的日志段
+     */
+    private final List<Segment> unflushed = new ArrayList<>();
+    private final Map<String, Map<Long, Ref>> index = new HashMap<>();
+    /**
+     * 已经追加、等待下一次 fsync 的保存请求
+     */
+    private List<CompletableFuture<Boolean>> unflushedStores = new ArrayList<>();
+    private Segment active;
+    private boolean dirty;
+    private boolean compacting;
+
+    /**
+     * 只在存储线程中修改
+     */
+    private volatile long liveCount;
+
+    private File dir;
+    private int segmentSize;
+    private ScheduledExecutorService executor;
+    private ExecutorService flusher;
+
+    @Override
+    public void init(IConfig config) throws IOException {
+        dir = new File(config.getProperty(ServerConstants.STORAGE_DIR, ServerConstants.DEFAULT_STORAGE_DIR));
+        segmentSize = config.getProperty(ServerConstants.STORAGE_SEGMENT_SIZE, ServerConstants.DEFAULT_STORAGE_SEGMENT_SIZE);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create storage directory: " + dir.getAbsolutePath());
+        }
+        recover();
+
+        int flushInterval = config.getProperty(ServerConstants.STORAGE_FLUSH_INTERVAL, ServerConstants.DEFAULT_STORAGE_FLUSH_INTERVAL);
+        int compactInterval = config.getProperty(ServerConstants.STORAGE_COMPACT_INTERVAL, ServerConstants.DEFAULT_STORAGE_COMPACT_INTERVAL);
+        executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("storage", true));
+        flusher = Executors.newSingleThreadExecutor(new DefaultThreadFactory("storage-flush", true));
+        executor.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::compact, compactInterval, compactInterval, TimeUnit.MILLISECONDS);
+        LOGGER.info("message store opened. dir={}, segments={}, messages={}", dir.getAbsolutePath(), segments.size(), liveCount);
+    }
+
+    /**
+     * 按日志段id顺序重放所有记录，重建索引
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles(file -> Segment.parseId(file) >= 0);
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                Segment segment = Segment.open(file, Segment.parseId(file), segmentSize);
+                segment.replay((type, messageId, uin, bodyPosition, bodyLength) -> {
+                    String key = new String(uin, StandardCharsets.UTF_8);
+                    if (type == Segment.TYPE_APPEND) {
+                        addRef(key, messageId, new Ref(segment, bodyPosition, bodyLength));
+                    } else if (type == Segment.TYPE_DRAIN) {
+                        removeRefs(key);
+                    }
+                });
+                segments.addLast(segment);
+            }
+        }
+        active = segments.peekLast();
+        if (active == null) {
+            roll();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> store(String uin, Message message) {
+        long messageId = Messages.messageId(message);
+        byte[] key = uin.getBytes(StandardCharsets.UTF_8);
+        int recordLength = Segment.recordLength(key, message.content().readableBytes());
+        if (key.length > 0xFFFF || recordLength + 4 > segmentSize) {
+            LOGGER.warn("message too large to store. uin={}, messageId={}, bytes={}", uin, messageId,
+                    message.content().readableBytes());
+            return CompletableFuture.completedFuture(false);
+        }
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        ByteBuf body = message.content().retainedDuplicate();
+        boolean submitted = execute(() -> {
+            try {
+                append(uin, key, messageId, body, recordLength, future);
+            } finally {
+                body.release();
+            }
+        }, future);
+        if (!submitted) {
+            body.release();
+        }
+        return future;
+    }
+
+    private void append(String uin, byte[] key, long messageId, ByteBuf body, int recordLength, CompletableFuture<Boolean> future) {
+        try {
+            ensureRoom(recordLength);
+        } catch (IOException e) {
+            LOGGER.error("store message failed. uin={}, messageId={}", uin, messageId, e);
+            future.complete(false);
+            return;
+        }
+        int position = active.append(Segment.TYPE_APPEND, messageId, key, body);
+        addRef(uin, messageId, new Ref(active, position, body.readableBytes()));
+        dirty = true;
+        unflushedStores.add(future);
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> drain(String uin) {
+        CompletableFuture<List<Message>> future = new CompletableFuture<>();
+        execute(() -> future.complete(drainNow(uin)), future);
+        return future;
+    }
+
+    private List<Message> drainNow(String uin) {
+        Map<Long, Ref> messages = index.get(uin);
+        if (messages == null) {
+            return Collections.emptyList();
+        }
+        List<Ref> refs = new ArrayList<>(messages.values());
+        removeRefs(uin);
+        byte[] key = uin.getBytes(StandardCharsets.UTF_8);
+        try {
+            ensureRoom(Segment.recordLength(key, 0));
+            active.append(Segment.TYPE_DRAIN, 0, key, null);
+            dirty = true;
+        } catch (IOException e) {
+            // 消息已经从索引中移除，DRAIN 记录写失败只会导致重启后重复投递
+            LOGGER.error("write drain record failed. uin={}", uin, e);
+        }
+        // 消息id随时间递增，按id排序即为推送顺序，搬迁过的消息也不会乱序
+        refs.sort((a, b) -> Long.compare(a.messageId, b.messageId));
+        List<Message> result = new ArrayList<>(refs.size());
+        for (Ref ref : refs) {
+            ByteBuf body = ref.segment.slice(ref.position, ref.length);
+            result.add(new Message(new MessageHeader(MessageCommandType.PUBLISH, 0, 0, ref.length), body));
+        }
+        return result;
+    }
+
+    @Override
+    public long size() {
+        return liveCount;
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+            flusher.shutdown();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+                flusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Segment segment : segments) {
+            segment.force();
+            segment.close();
+        }
+        for (CompletableFuture<Boolean> future : unflushedStores) {
+            future.complete(true);
+        }
+        unflushedStores.clear();
+        segments.clear();
+        unflushed.clear();
+        index.clear();
+    }
+
+    /**
+     * 提交到存储线程执行，存储已经关闭时 future 以异常结束
+     *
+     * @return 是否提交成功
+     */
+    private boolean execute(Runnable task, CompletableFuture<?> future) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    LOGGER.error("storage task failed", t);
+                    future.completeExceptionally(t);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+            return false;
+        }
+    }
+
+    private void addRef(String uin, long messageId, Ref ref) {
+        ref.messageId = messageId;
+        Ref old = index.computeIfAbsent(uin, k -> new LinkedHashMap<>()).put(messageId, ref);
+        if (old != null) {
+            old.segment.liveCount--;
+        } else {
+            liveCount++;
+        }
+        ref.segment.liveCount++;
+        ref.segment.appendCount++;
+    }
+
+    private void removeRefs(String uin) {
+        Map<Long, Ref> messages = index.remove(uin);
+        if (messages == null) {
+            return;
+        }
+        for (Ref ref : messages.values()) {
+            ref.segment.liveCount--;
+        }
+        liveCount -= messages.size();
+    }
+
+    private void ensureRoom(int recordLength) throws IOException {
+        if (!active.hasRoom(recordLength)) {
+            unflushed.add(active);
+            roll();
+        }
+    }
+
+    private void roll() throws IOException {
+        long id = active == null ? 0 : active.id() + 1;
+        active = Segment.create(dir, id, segmentSize);
+        segments.addLast(active);
+    }
+
+    /**
+     * 组提交：把上次 fsync 以来追加的所有记录交给 fsync 线程一次写到磁盘，完成后通知这期间的保存请求
+     *
+     * @return fsync 完成后结束，值表示是否全部成功
+     */
+    private CompletableFuture<Boolean> flush() {
+        if (!dirty) {
+            return CompletableFuture.completedFuture(true);
+        }
+        dirty = false;
+        List<Segment> pending = new ArrayList<>(unflushed);
+        pending.add(active);
+        unflushed.clear();
+        List<CompletableFuture<Boolean>> stores = unflushedStores;
+        unflushedStores = new ArrayList<>();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                boolean success = true;
+                for (Segment segment : pending) {
+                    try {
+                        segment.force();
+                    } catch (Exception e) {
+                        LOGGER.error("flush segment {} failed", segment, e);
+                        success = false;
+                    }
+                }
+                for (CompletableFuture<Boolean> store : stores) {
+                    store.complete(success);
+                }
+                return success;
+            }, flusher);
+        } catch (RejectedExecutionException e) {
+            // 正在关闭，close 中会 fsync 所有日志段
+            unflushed.addAll(pending);
+            unflushedStores.addAll(stores);
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * 回收最早的日志段：先对其中剩余的消息做快照，再分批搬迁
+     */
+    private void compact() {
+        deleteHead();
+        Segment head = segments.peekFirst();
+        if (compacting || head == active || head.liveCount * COMPACT_RATIO > head.appendCount) {
+            return;
+        }
+        List<Map.Entry<String, Ref>> snapshot = new ArrayList<>(head.liveCount);
+        for (Map.Entry<String, Map<Long, Ref>> entry : index.entrySet()) {
+            for (Ref ref : entry.getValue().values()) {
+                if (ref.segment == head) {
+                    snapshot.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), ref));
+                }
+            }
+        }
+        compacting = true;
+        move(head, snapshot, 0);
+    }
+
+    private void move(Segment head, List<Map.Entry<String, Ref>> snapshot, int from) {
+        int to = Math.min(snapshot.size(), from + COMPACT_BATCH);
+        try {
+            for (int i = from; i < to; i++) {
+                String uin = snapshot.get(i).getKey();
+                Ref ref = snapshot.get(i).getValue();
+                Map<Long, Ref> messages = index.get(uin);
+                // 快照之后已经被取出的消息不需要搬迁
+                if (messages == null || messages.get(ref.messageId) != ref) {
+                    continue;
+                }
+                byte[] key = uin.getBytes(StandardCharsets.UTF_8);
+                ensureRoom(Segment.recordLength(key, ref.length));
+                int position = active.append(Segment.TYPE_APPEND, ref.messageId, key, head.slice(ref.position, ref.length));
+                messages.put(ref.messageId, new Ref(active, position, ref.length, ref.messageId));
+                head.liveCount--;
+                active.liveCount++;
+                active.appendCount++;
+                dirty = true;
+            }
+        } catch (IOException e) {
+            LOGGER.error("compact segment {} failed", head, e);
+            compacting = false;
+            return;
+        }
+        if (to < snapshot.size()) {
+            try {
+                executor.execute(() -> move(head, snapshot, to));
+            } catch (RejectedExecutionException e) {
+                compacting = false;
+            }
+            return;
+        }
+        // 搬迁的消息落盘之后才能删除原日志段
+        flush().whenCompleteAsync((success, cause) -> {
+            compacting = false;
+            if (Boolean.TRUE.equals(success)) {
+                deleteHead();
+                LOGGER.info("compacted segment {}, {} messages in snapshot", head, snapshot.size());
+            }
+        }, executor);
+    }
+
+    /**
+     * 从最早的日志段开始，删除已经没有未取出消息的日志段
+     */
+    private void deleteHead() {
+        for (Iterator<Segment> it = segments.iterator(); it.hasNext(); ) {
+            Segment segment = it.next();
+            if (segment == active || segment.liveCount > 0) {
+                return;
+            }
+            it.remove();
+            unflushed.remove(segment);
+            if (!segment.delete()) {
+                LOGGER.warn("delete segment {} failed", segment);
+            }
+        }
+    }
+
+    /**
+     * 一条未取出的消息在日志段中的位置
+     */
+    private static final class Ref {
+        private final Segment segment;
+        private final int position;
+        private final int length;
+        private long messageId;
+
+        Ref(Segment segment, int position, int length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+
+        Ref(Segment segment, int position, int length, long messageId) {
+            this(segment, position, length);
+            this.messageId = messageId;
+        }
+    }
+}
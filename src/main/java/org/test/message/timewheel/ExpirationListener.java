@@ -1,6 +1,18 @@
 package org.test.message.timewheel;
 
+import java.util.Collection;
+
 public interface ExpirationListener<E> {
 
     void expired(E expiredObject);
+
+    /**
+     * 批量通知同一个 tick 中过期的元素，默认逐个调用 {@link #expired(Object)}，
+     * 需要批量处理（例如批量关闭连接）时覆盖此方法
+     */
+    default void expired(Collection<E> expiredObjects) {
+        for (E e : expiredObjects) {
+            expired(e);
+        }
+    }
 }
@@ -2,72 +2,154 @@ package org.test.message.timewheel;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.MathUtil;
+import io.netty.util.internal.PlatformDependent;
 
 /**
  * 定时轮
  * <br/>
- * 能够用一个线程管理多个带超时的对象
+ * 能够用一个线程管理多个带超时的对象，每个对象可以有不同的超时时间。
+ * <ul>
+ *     <li>分层时间轮：每层 ticksPerWheel 个槽，第 n 层一个槽的跨度是 tickDuration * ticksPerWheel^n，
+ *     上层的槽到期时把其中的元素重新分配到下层</li>
+ *     <li>add/remove 只操作 {@link ConcurrentHashMap} 和 MPSC 队列，由 tick 线程放入/移出时间轮，不加锁</li>
+ *     <li>touch 只更新截止时间，元素到达原来的槽时发现截止时间已经延后，再重新放入时间轮</li>
+ *     <li>同一个 tick 中过期的元素按 expirationBatchSize 分批通知，在有界线程池中执行，队列满时由 tick 线程执行</li>
+ * </ul>
+ * 同一个元素的 add/touch/remove 各自是原子的，但只有存在 happens-before 关系时（例如在同一个线程中调用）顺序才确定：
+ * 不同线程同时 add 和 remove 同一个元素时，结果等同于两者按某个顺序执行，元素要么在时间轮中、要么不在，不会残留已取消的条目；
+ * add/touch 与过期同时发生时，延后的截止时间不会丢失，元素不会在 add/touch 返回 true 之后按旧的截止时间过期。
  */
 public class TimingWheel<E> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimingWheel.class);
+
+    /**
+     * 最大时间轮层数，ticksPerWheel = 64 时可以覆盖 2^36 个 tick
+     */
+    private static final int MAX_LEVELS = 6;
+
     private final long tickDuration;
-    private final int ticksPerWheel;
-    private volatile int currentTickIndex = 0;
-    private final ArrayList<Slot<E>> wheel;
-    private final Map<E, Slot<E>> indicator = new ConcurrentHashMap<>();
+    private final long defaultTimeout;
+    private final int wheelBits;
+    private final int wheelMask;
+    private final int levels;
+    private final Slot<E>[][] wheels;
+    private final Map<E, Entry<E>> indicator = new ConcurrentHashMap<>();
+    private final Queue<Entry<E>> pendingEntries = PlatformDependent.newMpscQueue();
+    private final Queue<Entry<E>> cancelledEntries = PlatformDependent.newMpscQueue();
 
     private final AtomicBoolean shutdown = new AtomicBoolean(false);
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
     private final Thread workerThread;
-    private final ExecutorService expirationExecutor;
-    private ExpirationListener<E>[] expirationListeners;
+    private final Executor expirationExecutor;
+    /**
+     * 内部创建的线程池，stop 时关闭
+     */
+    private final ExecutorService ownedExecutor;
+    private final int expirationBatchSize;
+    private volatile ExpirationListener<E>[] expirationListeners;
+
+    private final LongAdder expiredCount = new LongAdder();
+    private final LongAdder expiryLagNanos = new LongAdder();
+    private final AtomicLong maxExpiryLagNanos = new AtomicLong();
+    private final LongAdder dispatchLagNanos = new LongAdder();
+    private final LongAdder dispatchedBatches = new LongAdder();
     private final String name;
+    private final long startTime;
+    private final AtomicBoolean started = new AtomicBoolean(false);
 
+    /**
+     * @param tickDuration  时间精度
+     * @param ticksPerWheel 每层的槽数，会向上取整为2的幂；{@link #add(Object)} 的默认超时时间为 tickDuration * ticksPerWheel
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
     public TimingWheel(String name, int tickDuration, int ticksPerWheel, TimeUnit timeUnit, ExpirationListener<E>... expirationListeners) {
-        Objects.requireNonNull(timeUnit, "timeUnit");
+        this(Builder.<E>newBuilder()
+                .name(name)
+                .tickDuration(tickDuration, timeUnit)
+                .ticksPerWheel(ticksPerWheel)
+                .expirationListeners(expirationListeners));
+    }
 
-        if (tickDuration <= 0) {
-            throw new IllegalArgumentException("tickDuration must be greater than 0: " + tickDuration);
+    private TimingWheel(Builder<E> builder) {
+        if (builder.tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be greater than 0: " + builder.tickDuration);
         }
-        if (ticksPerWheel <= 0) {
-            throw new IllegalArgumentException("ticksPerWheel must be greater than 0: " + ticksPerWheel);
+        if (builder.ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("ticksPerWheel must be greater than 0: " + builder.ticksPerWheel);
         }
-
-        this.wheel = new ArrayList<>();
-        this.tickDuration = TimeUnit.MILLISECONDS.convert(tickDuration, timeUnit);
-        this.ticksPerWheel = ticksPerWheel + 1;
-
-        for (int i = 0; i < this.ticksPerWheel; i++) {
-            wheel.add(new Slot<>(i));
+        if (builder.expirationBatchSize <= 0) {
+            throw new IllegalArgumentException("expirationBatchSize must be greater than 0: " + builder.expirationBatchSize);
         }
-        wheel.trimToSize();
 
+        this.tickDuration = builder.tickDuration;
+        this.defaultTimeout = this.tickDuration * builder.ticksPerWheel;
+        int wheelSize = MathUtil.findNextPositivePowerOfTwo(Math.max(builder.ticksPerWheel, 2));
+        this.wheelBits = Integer.numberOfTrailingZeros(wheelSize);
+        this.wheelMask = wheelSize - 1;
+        // 保证 tick 数的位移不会溢出
+        this.levels = Math.max(1, Math.min(MAX_LEVELS, 62 / wheelBits));
+        this.wheels = createWheels(levels, wheelSize);
+        this.startTime = System.nanoTime();
+
+        String name = builder.name;
         if (StringUtils.isBlank(name)) {
             name = "Timing-Wheel";
         }
         workerThread = new Thread(new TickWorker(), name);
+        workerThread.setDaemon(true);
         this.name = name;
 
-        this.expirationExecutor = Executors.newCachedThreadPool();
-        if (expirationListeners != null && expirationListeners.length > 0) {
-            this.expirationListeners = expirationListeners;
+        this.expirationBatchSize = builder.expirationBatchSize;
+        if (builder.expirationExecutor != null) {
+            this.expirationExecutor = builder.expirationExecutor;
+            this.ownedExecutor = null;
+        } else {
+            // 有界队列，队列满时由 tick 线程自己执行，形成背压，不会无限制的创建线程和任务
+            this.ownedExecutor = new ThreadPoolExecutor(builder.expirationThreads, builder.expirationThreads,
+                    60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(builder.expirationQueueCapacity),
+                    new DefaultThreadFactory(name + "-expiration", true), new ThreadPoolExecutor.CallerRunsPolicy());
+            this.expirationExecutor = ownedExecutor;
+        }
+        if (builder.expirationListeners != null && builder.expirationListeners.length > 0) {
+            this.expirationListeners = builder.expirationListeners;
         }
     }
 
+    private static <E> Slot<E>[][] createWheels(int levels, int wheelSize) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Slot<E>[][] wheels = new Slot[levels][wheelSize];
+        for (Slot<E>[] wheel : wheels) {
+            for (int i = 0; i < wheel.length; i++) {
+                wheel[i] = new Slot<>();
+            }
+        }
+        return wheels;
+    }
+
     public void addExpireListener(ExpirationListener<E> expirationListener) {
-        synchronized (TimingWheel.class) {
+        synchronized (this) {
             this.expirationListeners = ArrayUtils.add(this.expirationListeners, expirationListener);
         }
     }
@@ -77,21 +159,12 @@ public class TimingWheel<E> {
             throw new IllegalStateException("Cannot be started once stopped");
         }
 
-        if (!workerThread.isAlive()) {
+        if (started.compareAndSet(false, true)) {
             workerThread.start();
         }
     }
 
     public boolean stop(boolean expire) {
-        Set<E> objs = indicator.keySet();
-        for (E e : objs) {
-            indicator.remove(e);
-            if (expire && expirationListeners != null) {
-                for (ExpirationListener<E> listener : expirationListeners) {
-                    expirationExecutor.execute(() -> listener.expired(e));
-                }
-            }
-        }
         if (!shutdown.compareAndSet(false, true)) {
             return false;
         }
@@ -104,10 +177,22 @@ public class TimingWheel<E> {
                 interrupted = true;
             }
         }
+        List<E> remaining = new ArrayList<>();
+        for (Entry<E> entry : indicator.values()) {
+            if (entry.expire() && expire) {
+                remaining.add(entry.element);
+            }
+        }
+        indicator.clear();
+        for (int i = 0; i < remaining.size(); i += expirationBatchSize) {
+            notifyExpired(remaining.subList(i, Math.min(i + expirationBatchSize, remaining.size())));
+        }
         if (interrupted) {
             Thread.currentThread().interrupt();
         }
-        expirationExecutor.shutdownNow();
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
         return true;
     }
 
@@ -118,51 +203,63 @@ public class TimingWheel<E> {
      * @return remain time to be expired in millisecond.
      */
     public long add(E e) {
+        return add(e, defaultTimeout, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 添加元素，元素已经存在时更新其超时时间
+     *
+     * @return remain time to be expired in millisecond.
+     */
+    public long add(E e, long timeout, TimeUnit unit) {
         if (e == null) {
             return -1;
         }
-        synchronized (e) {
-            checkAdd(e);
-
-            int previousTickIndex = getPreviousTickIndex();
-            Slot<E> slot = wheel.get(previousTickIndex);
-            slot.add(e);
-            indicator.put(e, slot);
+        long timeoutNanos = Math.max(unit.toNanos(timeout), 0);
+        long deadline = System.nanoTime() - startTime + timeoutNanos;
+
+        Entry<E> existing = indicator.get(e);
+        if (existing != null && deadline >= existing.deadline) {
+            // 只延后截止时间，tick 线程处理到原来的槽时再重新放置
+            existing.timeout = timeoutNanos;
+            existing.deadline = deadline;
+            if (existing.isActive()) {
+                return TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+            }
+        }
 
-            return (ticksPerWheel - 1) * tickDuration;
+        Entry<E> entry = new Entry<>(e, timeoutNanos, deadline);
+        Entry<E> old = indicator.put(e, entry);
+        if (old != null) {
+            cancel(old);
         }
+        pendingEntries.offer(entry);
+        return TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
     }
 
-    private void checkAdd(E e) {
+    /**
+     * 按元素上一次添加时的超时时间重新开始计时
+     *
+     * @return 元素不存在时返回 false
+     */
+    public boolean touch(E e) {
         if (e == null) {
-            return;
+            return false;
         }
-        Slot<E> slot = indicator.get(e);
-        if (slot != null) {
-            slot.remove(e);
+        Entry<E> entry = indicator.get(e);
+        if (entry == null) {
+            return false;
         }
+        entry.deadline = System.nanoTime() - startTime + entry.timeout;
+        return entry.isActive();
     }
 
     public boolean exists(E e) {
         if (e == null) {
             return false;
         }
-        Slot<E> slot = indicator.get(e);
-        return slot != null && slot.elements.contains(e);
-    }
-
-    private int getPreviousTickIndex() {
-        lock.readLock().lock();
-        try {
-            int cti = currentTickIndex;
-            if (cti == 0) {
-                return ticksPerWheel - 1;
-            }
-
-            return cti - 1;
-        } finally {
-            lock.readLock().unlock();
-        }
+        Entry<E> entry = indicator.get(e);
+        return entry != null && entry.isActive();
     }
 
     /**
@@ -175,119 +272,405 @@ public class TimingWheel<E> {
         if (e == null) {
             return false;
         }
-        synchronized (e) {
-            Slot<E> slot = indicator.get(e);
-            if (slot == null) {
-                return false;
-            }
-            indicator.remove(e);
-            return slot.remove(e);
+        Entry<E> entry = indicator.remove(e);
+        return entry != null && cancel(entry);
+    }
+
+    /**
+     * 时间轮中的元素数量
+     */
+    public int size() {
+        return indicator.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private boolean cancel(Entry<E> entry) {
+        if (entry.cancel()) {
+            cancelledEntries.offer(entry);
+            return true;
         }
+        return false;
     }
 
-    private void notifyExpired(int idx) {
-        Slot<E> slot = wheel.get(idx);
-        final Set<E> elements = slot.elements;
-        for (final E e : elements) {
-            if (e == null) {
-                continue;
-            }
+    /**
+     * 已经过期的元素总数
+     */
+    public long getExpiredCount() {
+        return expiredCount.sum();
+    }
 
-            slot.remove(e);
-            synchronized (e) {
-                Slot<E> latestSlot = indicator.get(e);
-                if (latestSlot.equals(slot)) {
-                    indicator.remove(e);
-                }
-            }
-            if (this.expirationListeners != null && this.expirationListeners.length > 0) {
-                for (final ExpirationListener<E> listener : expirationListeners) {
-                    expirationExecutor.execute(() -> listener.expired(e));
+    /**
+     * 元素从截止时间到被 tick 线程发现过期的平均延迟(ms)
+     */
+    public double getAverageExpiryLagMillis() {
+        long count = expiredCount.sum();
+        return count == 0 ? 0 : expiryLagNanos.sum() / (double) count / 1_000_000;
+    }
+
+    /**
+     * 元素从截止时间到被 tick 线程发现过期的最大延迟(ms)
+     */
+    public long getMaxExpiryLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxExpiryLagNanos.get());
+    }
+
+    /**
+     * 一批过期元素从提交到监听器开始执行的平均延迟(ms)
+     */
+    public double getAverageDispatchLagMillis() {
+        long batches = dispatchedBatches.sum();
+        return batches == 0 ? 0 : dispatchLagNanos.sum() / (double) batches / 1_000_000;
+    }
+
+    /**
+     * 内部线程池中等待执行的批次数，使用外部线程池时返回 -1
+     */
+    public int getPendingExpirationBatches() {
+        return ownedExecutor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) ownedExecutor).getQueue().size() : -1;
+    }
+
+    /**
+     * 通知一批过期元素，elements 在之后不能再被修改
+     */
+    private void notifyExpired(List<E> elements) {
+        ExpirationListener<E>[] listeners = this.expirationListeners;
+        if (listeners == null || elements.isEmpty()) {
+            return;
+        }
+        List<E> batch = Collections.unmodifiableList(elements);
+        long submitTime = System.nanoTime();
+        expirationExecutor.execute(() -> {
+            dispatchLagNanos.add(System.nanoTime() - submitTime);
+            dispatchedBatches.increment();
+            for (ExpirationListener<E> listener : listeners) {
+                try {
+                    listener.expired(batch);
+                } catch (Exception ex) {
+                    LOGGER.error("{} expiration listener exception", name, ex);
                 }
             }
-        }
+        });
     }
 
     private class TickWorker implements Runnable {
-        private long startTime;
-        private long tick;
+        /**
+         * 已经处理过的 tick，只在 tick 线程中访问
+         */
+        private long currentTick;
+        private final List<Entry<E>> expired = new ArrayList<>();
 
         @Override
         public void run() {
-            startTime = System.currentTimeMillis();
-            tick = 1;
-            for (int i = 0; !shutdown.get(); i++) {
-                if (i == wheel.size()) {
-                    // wheel 列表循环
-                    i = 0;
+            while (!shutdown.get()) {
+                long deadline = tickDuration * (currentTick + 1);
+                long sleepTime = TimeUnit.NANOSECONDS.toMillis(deadline - (System.nanoTime() - startTime) + 999_999);
+                if (sleepTime > 0) {
+                    try {
+                        Thread.sleep(sleepTime);
+                    } catch (InterruptedException e) {
+                        if (shutdown.get()) {
+                            return;
+                        }
+                    }
+                    continue;
                 }
-                lock.writeLock().lock();
-                try {
-                    currentTickIndex = i;
-                } finally {
-                    lock.writeLock().unlock();
+                long targetTick = (System.nanoTime() - startTime) / tickDuration;
+                while (currentTick < targetTick) {
+                    currentTick++;
+                    tick();
                 }
+            }
+        }
 
-                waitForNextTick();
+        private void tick() {
+            removeCancelled();
+            cascade();
+            transferPending();
+
+            Slot<E> slot = wheels[0][(int) (currentTick & wheelMask)];
+            Entry<E> entry = slot.head;
+            slot.clear();
+            while (entry != null) {
+                Entry<E> next = entry.next;
+                entry.next = null;
+                entry.prev = null;
+                entry.slot = null;
+                place(entry);
+                entry = next;
             }
+
+            if (expired.isEmpty()) {
+                return;
+            }
+            long now = System.nanoTime() - startTime;
+            List<E> batch = new ArrayList<>(Math.min(expired.size(), expirationBatchSize));
+            for (Entry<E> e : expired) {
+                if (deadlineTick(e) > currentTick) {
+                    // 放入 expired 之后被 touch 延后了截止时间
+                    place(e);
+                    continue;
+                }
+                if (!e.expire()) {
+                    continue;
+                }
+                if (deadlineTick(e) > currentTick) {
+                    // add/touch 在上面的检查之后延后了截止时间，并且可能已经看到 ACTIVE 状态返回，用新的条目代替；
+                    // 替换失败说明之后又有 add/remove 修改了这个元素，以它们的结果为准
+                    Entry<E> fresh = new Entry<>(e.element, e.timeout, e.deadline);
+                    if (indicator.replace(e.element, e, fresh)) {
+                        place(fresh);
+                    }
+                    continue;
+                }
+                indicator.remove(e.element, e);
+                long lag = Math.max(now - e.deadline, 0);
+                expiryLagNanos.add(lag);
+                if (lag > maxExpiryLagNanos.get()) {
+                    maxExpiryLagNanos.set(lag);
+                }
+                expiredCount.increment();
+                batch.add(e.element);
+                if (batch.size() == expirationBatchSize) {
+                    notifyExpired(batch);
+                    batch = new ArrayList<>(expirationBatchSize);
+                }
+            }
+            notifyExpired(batch);
+            expired.clear();
         }
 
-        private void waitForNextTick() {
-            for (; ; ) {
-                // 计算得到的睡眠的时间会<=tickDuration，这样计算更准确，考虑了代码中其他部分的执行时间
-                long sleepTime = tickDuration * tick - (System.currentTimeMillis() - startTime);
-                if (sleepTime <= 0) {
+        /**
+         * 上层时间轮转到新的槽时，把槽中的元素重新分配到下层
+         */
+        private void cascade() {
+            for (int level = 1; level < levels; level++) {
+                int shift = wheelBits * level;
+                if ((currentTick & ((1L << shift) - 1)) != 0) {
                     break;
                 }
-                try {
-                    Thread.sleep(sleepTime);
-                } catch (InterruptedException e) {
-                    return;
+                Slot<E> slot = wheels[level][(int) ((currentTick >>> shift) & wheelMask)];
+                Entry<E> entry = slot.head;
+                slot.clear();
+                while (entry != null) {
+                    Entry<E> next = entry.next;
+                    entry.next = null;
+                    entry.prev = null;
+                    entry.slot = null;
+                    place(entry);
+                    entry = next;
+                }
+            }
+        }
+
+        private void transferPending() {
+            Entry<E> entry;
+            while ((entry = pendingEntries.poll()) != null) {
+                place(entry);
+            }
+        }
+
+        private void removeCancelled() {
+            Entry<E> entry;
+            while ((entry = cancelledEntries.poll()) != null) {
+                if (entry.slot != null) {
+                    entry.slot.remove(entry);
                 }
             }
+        }
 
-            tick++;
+        /**
+         * 截止时间所在的 tick，向上取整
+         */
+        private long deadlineTick(Entry<E> entry) {
+            return (entry.deadline + tickDuration - 1) / tickDuration;
+        }
+
+        /**
+         * 根据截止时间放入对应层的槽，已经到期的放入 expired
+         */
+        private void place(Entry<E> entry) {
+            if (!entry.isActive()) {
+                return;
+            }
+            long deadlineTick = deadlineTick(entry);
+            long delta = deadlineTick - currentTick;
+            if (delta <= 0) {
+                expired.add(entry);
+                return;
+            }
+            for (int level = 0; level < levels; level++) {
+                int shift = wheelBits * (level + 1);
+                if (level == levels - 1 || delta < (1L << shift)) {
+                    if (level == levels - 1 && delta >= (1L << shift)) {
+                        // 超出时间轮范围，放在最远的槽，到时再重新放置
+                        deadlineTick = currentTick + (1L << shift) - 1;
+                    }
+                    wheels[level][(int) ((deadlineTick >>> (wheelBits * level)) & wheelMask)].add(entry);
+                    return;
+                }
+            }
         }
     }
 
-    private static class Slot<E> {
-        private int id;
-        private final Set<E> elements = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    /**
+     * 时间轮中的一个元素，prev/next/slot 只在 tick 线程中访问
+     */
+    private static final class Entry<E> {
+        private static final int ST_ACTIVE = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Entry> STATE_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+        private final E element;
+        private volatile long timeout;
+        /**
+         * 相对于 startTime 的截止时间(ns)
+         */
+        private volatile long deadline;
+        private volatile int state = ST_ACTIVE;
+
+        private Entry<E> prev;
+        private Entry<E> next;
+        private Slot<E> slot;
+
+        Entry(E element, long timeout, long deadline) {
+            this.element = element;
+            this.timeout = timeout;
+            this.deadline = deadline;
+        }
 
-        public Slot(int id) {
-            this.id = id;
+        boolean isActive() {
+            return state == ST_ACTIVE;
         }
 
-        public void add(E e) {
-            elements.add(e);
+        boolean cancel() {
+            return STATE_UPDATER.compareAndSet(this, ST_ACTIVE, ST_CANCELLED);
         }
 
-        public Boolean remove(E e) {
-            return elements.remove(e);
+        boolean expire() {
+            return STATE_UPDATER.compareAndSet(this, ST_ACTIVE, ST_EXPIRED);
         }
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
+    /**
+     * 槽，双向链表，只在 tick 线程中访问
+     */
+    private static final class Slot<E> {
+        private Entry<E> head;
+        private Entry<E> tail;
+
+        void add(Entry<E> entry) {
+            entry.slot = this;
+            if (head == null) {
+                head = tail = entry;
+            } else {
+                tail.next = entry;
+                entry.prev = tail;
+                tail = entry;
+            }
+        }
+
+        void remove(Entry<E> entry) {
+            Entry<E> next = entry.next;
+            if (entry.prev != null) {
+                entry.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = entry.prev;
+            }
+            if (entry == head) {
+                head = next;
             }
-            if (o == null || getClass() != o.getClass()) {
-                return false;
+            if (entry == tail) {
+                tail = entry.prev;
             }
-            return id == ((Slot<?>) o).id;
+            entry.prev = null;
+            entry.next = null;
+            entry.slot = null;
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(id);
+        void clear() {
+            head = null;
+            tail = null;
         }
+    }
 
-        @Override
-        public String toString() {
-            return "Slot{" +
-                    "id=" + id +
-                    ", elements=" + elements +
-                    '}';
+    public static class Builder<E> {
+        private String name;
+        private long tickDuration = TimeUnit.SECONDS.toNanos(1);
+        private int ticksPerWheel = 64;
+        private Executor expirationExecutor;
+        private int expirationThreads = 1;
+        private int expirationQueueCapacity = 1024;
+        private int expirationBatchSize = 1024;
+        private ExpirationListener<E>[] expirationListeners;
+
+        public static <E> Builder<E> newBuilder() {
+            return new Builder<>();
+        }
+
+        public Builder<E> name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder<E> tickDuration(long tickDuration, TimeUnit timeUnit) {
+            Objects.requireNonNull(timeUnit, "timeUnit");
+            this.tickDuration = timeUnit.toNanos(tickDuration);
+            return this;
+        }
+
+        public Builder<E> ticksPerWheel(int ticksPerWheel) {
+            this.ticksPerWheel = ticksPerWheel;
+            return this;
+        }
+
+        /**
+         * 执行过期通知的线程池，指定后 expirationThreads、expirationQueueCapacity 不再生效，stop 时也不会关闭
+         */
+        public Builder<E> expirationExecutor(Executor expirationExecutor) {
+            this.expirationExecutor = expirationExecutor;
+            return this;
+        }
+
+        public Builder<E> expirationThreads(int expirationThreads) {
+            this.expirationThreads = expirationThreads;
+            return this;
+        }
+
+        /**
+         * 等待执行的批次上限，超过后由 tick 线程自己执行
+         */
+        public Builder<E> expirationQueueCapacity(int expirationQueueCapacity) {
+            this.expirationQueueCapacity = expirationQueueCapacity;
+            return this;
+        }
+
+        /**
+         * 每次通知的最大元素数
+         */
+        public Builder<E> expirationBatchSize(int expirationBatchSize) {
+            this.expirationBatchSize = expirationBatchSize;
+            return this;
+        }
+
+        @SafeVarargs
+        @SuppressWarnings("varargs")
+        public final Builder<E> expirationListeners(ExpirationListener<E>... expirationListeners) {
+            this.expirationListeners = expirationListeners;
+            return this;
+        }
+
+        public TimingWheel<E> build() {
+            return new TimingWheel<>(this);
+        }
+
+        private Builder() {
         }
     }
 }
@@ -0,0 +1,132 @@
+package org.test.message.server.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageCommandType;
+import org.test.message.server.netty.handler.codec.Messages;
+import org.test.message.server.netty.handler.codec.proto.Forward;
+import org.test.message.server.netty.handler.codec.proto.NodeChallenge;
+import org.test.message.server.netty.handler.codec.proto.NodeHello;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+class ClusterMessagesTest {
+    private final UnpooledByteBufAllocator alloc = UnpooledByteBufAllocator.DEFAULT;
+
+    @Test
+    void challenge() throws Exception {
+        byte[] nonce = {1, 2, 3};
+        Message message = ClusterMessages.challenge(alloc, nonce);
+        try {
+            assertEquals(MessageCommandType.NODE_CHALLENGE, message.getHeader().getType());
+            assertArrayEquals(nonce, Messages.parse(message, NodeChallenge.parser()).getNonce().toByteArray());
+        } finally {
+            message.release();
+        }
+    }
+
+    @Test
+    void hello() throws Exception {
+        byte[] mac = {4, 5, 6};
+        Message message = ClusterMessages.hello(alloc, "127.0.0.1:8779", mac);
+        try {
+            assertEquals(MessageCommandType.NODE_HELLO, message.getHeader().getType());
+            NodeHello hello = Messages.parse(message, NodeHello.parser());
+            assertEquals("127.0.0.1:8779", hello.getAddress());
+            assertArrayEquals(mac, hello.getMac().toByteArray());
+        } finally {
+            message.release();
+        }
+    }
+
+    @Test
+    void forwardUins() throws Exception {
+        ByteBuf payload = payload("hello");
+        Message message = ClusterMessages.forward(alloc, Arrays.asList("u1", "u2"), null, payload);
+        try {
+            // 消息持有 payload 的一个引用
+            assertEquals(2, payload.refCnt());
+            assertEquals(MessageCommandType.FORWARD, message.getHeader().getType());
+            assertEquals(message.content().readableBytes(), message.getHeader().getRemainingLength());
+
+            ClusterMessages.Forwarded forwarded = ClusterMessages.forward(message);
+            assertEquals(Arrays.asList("u1", "u2"), forwarded.uins);
+            assertNull(forwarded.topic);
+            assertEquals("hello", forwarded.payload.toString(StandardCharsets.UTF_8));
+            assertEquals(0, message.content().readerIndex());
+        } finally {
+            message.release();
+            payload.release();
+        }
+        assertEquals(0, payload.refCnt());
+    }
+
+    /**
+     * 编码结果与 protobuf 生成的代码一致
+     */
+    @Test
+    void forwardTopic() throws Exception {
+        ByteBuf payload = payload("news");
+        Message message = ClusterMessages.forward(alloc, Collections.emptyList(), "topic", payload);
+        try {
+            Forward forward = Messages.parse(message, Forward.parser());
+            assertEquals(0, forward.getUinsCount());
+            assertEquals("topic", forward.getTopic());
+            assertEquals("news", forward.getPayload().toStringUtf8());
+
+            ClusterMessages.Forwarded forwarded = ClusterMessages.forward(message);
+            assertEquals("topic", forwarded.topic);
+            assertEquals(Collections.emptyList(), forwarded.uins);
+            assertEquals("news", forwarded.payload.toString(StandardCharsets.UTF_8));
+        } finally {
+            message.release();
+            payload.release();
+        }
+    }
+
+    @Test
+    void forwardEmptyPayload() throws Exception {
+        Message message = ClusterMessages.forward(alloc, Collections.singletonList("u1"), null, Unpooled.EMPTY_BUFFER);
+        try {
+            ClusterMessages.Forwarded forwarded = ClusterMessages.forward(message);
+            assertEquals(Collections.singletonList("u1"), forwarded.uins);
+            assertEquals(0, forwarded.payload.readableBytes());
+        } finally {
+            message.release();
+        }
+    }
+
+    /**
+     * 离线消息转发给其他节点时从保存的 PUBLISH 中取出 payload，转发的消息持有 PUBLISH 消息体的引用
+     */
+    @Test
+    void forwardStoredPublish() throws Exception {
+        ByteBuf payload = payload("backlog");
+        Message publish = Messages.publish(alloc, 42, payload);
+        payload.release();
+        Message message = ClusterMessages.forward(alloc, Collections.singletonList("u1"), null, Messages.payload(publish));
+        publish.release();
+        try {
+            ClusterMessages.Forwarded forwarded = ClusterMessages.forward(message);
+            assertEquals(Collections.singletonList("u1"), forwarded.uins);
+            assertEquals("backlog", forwarded.payload.toString(StandardCharsets.UTF_8));
+        } finally {
+            message.release();
+        }
+        assertEquals(0, publish.refCnt());
+    }
+
+    private static ByteBuf payload(String s) {
+        return Unpooled.wrappedBuffer(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,177 @@
+package org.test.message.server.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.test.message.server.config.IConfig;
+import org.test.message.server.config.PropertiesResourceLoader;
+import org.test.message.server.config.ServerConstants;
+import org.test.message.server.netty.NettyTransport;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.Messages;
+import org.test.message.server.netty.handler.codec.proto.NodeHello;
+import org.test.message.service.impl.ProtocolProcessorBootstrapper;
+import org.test.message.service.processor.ProtocolProcessor;
+import org.test.message.service.storage.impl.MemoryMessageStore;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 在同一个进程中启动两个节点
+ */
+class ClusterTest {
+    private Node a;
+    private Node b;
+
+    @AfterEach
+    void tearDown() {
+        if (a != null) {
+            a.close();
+        }
+        if (b != null) {
+            b.close();
+        }
+    }
+
+    /**
+     * 连接刚建立时其他线程不断转发，FORWARD 不会排在 NODE_HELLO 之前；
+     * 重连间隔足够长，连接一旦因为先收到 FORWARD 被关闭，对方就再也收不到转发
+     */
+    @Test
+    void forwardOnFreshLink() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        String nodes = "127.0.0.1:" + portA + ",127.0.0.1:" + portB;
+        b = new Node(portB, nodes, "k");
+        b.cluster.start();
+        a = new Node(portA, nodes, "k");
+
+        ByteBuf payload = Unpooled.copiedBuffer("news", StandardCharsets.UTF_8);
+        Thread forwarder = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted() && b.cluster.receivedForwardCount() < 100) {
+                a.cluster.forwardTopic("news", payload);
+            }
+        });
+        forwarder.start();
+        try {
+            a.cluster.start();
+            await(() -> b.cluster.receivedForwardCount() >= 100);
+        } finally {
+            forwarder.interrupt();
+            forwarder.join();
+            payload.release();
+        }
+        assertEquals(1, a.cluster.activeLinkCount());
+        assertTrue(a.cluster.forwardedMessageCount() >= b.cluster.receivedForwardCount());
+    }
+
+    /**
+     * 每个连接的随机数不同，为一个连接计算的 NODE_HELLO 不能用于其他连接；密钥或地址不对时校验失败
+     */
+    @Test
+    void helloCannotBeReplayed() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        String nodes = "127.0.0.1:" + portA + ",127.0.0.1:" + portB;
+        a = new Node(portA, nodes, "k");
+        b = new Node(portB, nodes, "k");
+
+        byte[] nonce = Cluster.newNonce();
+        NodeHello hello = hello(a.cluster, nonce);
+        assertEquals("127.0.0.1:" + portA, b.cluster.authenticate(hello, nonce));
+        assertNull(b.cluster.authenticate(hello, Cluster.newNonce()));
+        assertNull(b.cluster.authenticate(hello.toBuilder().setAddress("127.0.0.1:1").build(), nonce));
+
+        Node other = new Node(portA, nodes, "other");
+        try {
+            assertNull(b.cluster.authenticate(hello(other.cluster, nonce), nonce));
+        } finally {
+            other.close();
+        }
+    }
+
+    /**
+     * 密钥不同的节点无法建立连接，转发的消息都不会被接收
+     */
+    @Test
+    void rejectWrongSecret() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        String nodes = "127.0.0.1:" + portA + ",127.0.0.1:" + portB;
+        b = new Node(portB, nodes, "k");
+        b.cluster.start();
+        a = new Node(portA, nodes, "other");
+        a.cluster.start();
+
+        ByteBuf payload = Unpooled.copiedBuffer("news", StandardCharsets.UTF_8);
+        try {
+            long deadline = System.currentTimeMillis() + 1000;
+            while (System.currentTimeMillis() < deadline) {
+                a.cluster.forwardTopic("news", payload);
+                Thread.sleep(1);
+            }
+        } finally {
+            payload.release();
+        }
+        assertEquals(0, b.cluster.receivedForwardCount());
+        assertEquals(0, a.cluster.activeLinkCount());
+    }
+
+    private static NodeHello hello(Cluster cluster, byte[] nonce) throws Exception {
+        Message message = cluster.hello(nonce);
+        try {
+            return Messages.parse(message, NodeHello.parser());
+        } finally {
+            message.release();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "condition not met in 5s");
+            Thread.sleep(10);
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static final class Node {
+        final ProtocolProcessor processor;
+        final NettyTransport transport;
+        final Cluster cluster;
+
+        Node(int port, String nodes, String secret) {
+            IConfig config = new PropertiesResourceLoader();
+            config.setProperty(ServerConstants.NETTY_EPOLL_PROPERTY_NAME, "false");
+            config.setProperty(ServerConstants.WORKER_THREADS, "2");
+            config.setProperty(ServerConstants.STORAGE_CLASS_NAME, MemoryMessageStore.class.getName());
+            config.setProperty(ServerConstants.AUTH_ANONYMOUS, "true");
+            config.setProperty(ServerConstants.CLUSTER_NODES, nodes);
+            config.setProperty(ServerConstants.CLUSTER_SECRET, secret);
+            config.setProperty(ServerConstants.CLUSTER_RECONNECT_INTERVAL, String.valueOf(TimeUnit.MINUTES.toMillis(1)));
+            processor = new ProtocolProcessorBootstrapper().init(config);
+            transport = new NettyTransport(config);
+            cluster = new Cluster(processor, transport, config, port);
+        }
+
+        void close() {
+            cluster.close();
+            processor.close();
+            transport.close();
+        }
+    }
+}
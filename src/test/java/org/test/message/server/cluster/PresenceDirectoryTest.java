@@ -0,0 +1,92 @@
+package org.test.message.server.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class PresenceDirectoryTest {
+    /**
+     * 清除任务先保存下来，由测试控制执行时机
+     */
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final PresenceDirectory directory = new PresenceDirectory(tasks::add);
+
+    @Test
+    void onlineAndOffline() {
+        PresenceDirectory.Node a = directory.addNode("a:1");
+        PresenceDirectory.Node b = directory.addNode("b:1");
+        directory.online("u1", a);
+        directory.online("u1", b);
+        directory.online("u1", a);
+        directory.online("u2", b);
+        assertArrayEquals(new PresenceDirectory.Node[]{a, b}, directory.nodes("u1"));
+        assertEquals(2, directory.userCount());
+
+        directory.offline("u1", a);
+        assertArrayEquals(new PresenceDirectory.Node[]{b}, directory.nodes("u1"));
+        directory.offline("u1", b);
+        assertNull(directory.nodes("u1"));
+        assertEquals(1, directory.userCount());
+    }
+
+    /**
+     * 节点断开后立即标记为移除，只清除这个节点的用户
+     */
+    @Test
+    void removeNode() {
+        PresenceDirectory.Node a = directory.addNode("a:1");
+        PresenceDirectory.Node b = directory.addNode("b:1");
+        directory.online("u1", a);
+        directory.online("u1", b);
+        directory.online("u2", a);
+
+        directory.removeNode(a);
+        assertTrue(a.isRemoved());
+        assertFalse(b.isRemoved());
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertArrayEquals(new PresenceDirectory.Node[]{b}, directory.nodes("u1"));
+        assertNull(directory.nodes("u2"));
+        assertEquals(1, directory.userCount());
+
+        // 移除之后同步的用户不再记录
+        directory.online("u3", a);
+        assertNull(directory.nodes("u3"));
+    }
+
+    /**
+     * 节点重新连接时旧连接同步的用户作废，新连接同步的用户不受旧连接的清除影响
+     */
+    @Test
+    void reconnect() {
+        PresenceDirectory.Node old = directory.addNode("a:1");
+        directory.online("u1", old);
+        directory.online("u2", old);
+
+        PresenceDirectory.Node node = directory.addNode("a:1");
+        assertTrue(old.isRemoved());
+        directory.online("u1", node);
+        runTasks();
+        assertArrayEquals(new PresenceDirectory.Node[]{node}, directory.nodes("u1"));
+        assertNull(directory.nodes("u2"));
+
+        // 旧连接随后断开，不影响新连接
+        directory.removeNode(old);
+        assertTrue(tasks.isEmpty());
+        assertFalse(node.isRemoved());
+    }
+
+    private void runTasks() {
+        for (Runnable task : tasks) {
+            task.run();
+        }
+        tasks.clear();
+    }
+}
@@ -0,0 +1,105 @@
+package org.test.message.server.netty.channel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageCommandType;
+import org.test.message.server.netty.handler.codec.MessageHeader;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.local.LocalChannel;
+import io.netty.util.concurrent.Future;
+
+class MessageBroadcasterTest {
+    private final MessageBroadcaster broadcaster = new MessageBroadcaster();
+
+    /**
+     * 每个连接收到相同的编码结果，全部写完后完成，不改变消息的引用计数
+     */
+    @Test
+    void broadcast() {
+        Message message = message("hello");
+        EmbeddedChannel a = new EmbeddedChannel();
+        EmbeddedChannel b = new EmbeddedChannel();
+        EmbeddedChannel closed = new EmbeddedChannel();
+        closed.close();
+        List<Channel> notified = new ArrayList<>();
+        Future<MessageBroadcaster.BroadcastResult> future = broadcaster.broadcast(message, Arrays.asList(a, b, closed),
+                (channel, m) -> notified.add(channel));
+        // 三个连接使用各自的 EmbeddedEventLoop，分成三组
+        assertFalse(future.isDone());
+        a.runPendingTasks();
+        b.runPendingTasks();
+        closed.runPendingTasks();
+
+        assertTrue(future.isSuccess());
+        assertEquals(3, future.getNow().getRecipients());
+        assertEquals(2, future.getNow().getWritten());
+        assertEquals(Arrays.asList(a, b), notified);
+        assertFrame(a);
+        assertFrame(b);
+        assertNull(closed.readOutbound());
+        assertEquals(1, message.refCnt());
+        message.release();
+        assertFalse(a.finishAndReleaseAll());
+        assertFalse(b.finishAndReleaseAll());
+    }
+
+    /**
+     * EventLoop 已经关闭时跳过这一组，释放这一组持有的引用，其他组正常写出并完成
+     */
+    @Test
+    void skipRejectedEventLoop() throws Exception {
+        DefaultEventLoop eventLoop = new DefaultEventLoop();
+        LocalChannel rejected = new LocalChannel();
+        eventLoop.register(rejected).sync();
+        eventLoop.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+
+        Message message = message("hello");
+        EmbeddedChannel channel = new EmbeddedChannel();
+        List<Channel> notified = new ArrayList<>();
+        Future<MessageBroadcaster.BroadcastResult> future = broadcaster.broadcast(message, Arrays.asList(rejected, channel),
+                (c, m) -> notified.add(c));
+        assertFalse(future.isDone());
+        channel.runPendingTasks();
+
+        assertTrue(future.isSuccess());
+        assertEquals(2, future.getNow().getRecipients());
+        assertEquals(1, future.getNow().getWritten());
+        assertEquals(Arrays.asList(channel), notified);
+        assertFrame(channel);
+        assertEquals(1, message.refCnt());
+        message.release();
+        assertFalse(channel.finishAndReleaseAll());
+    }
+
+    private static Message message(String payload) {
+        ByteBuf body = Unpooled.copiedBuffer(payload, StandardCharsets.UTF_8);
+        return new Message(new MessageHeader(MessageCommandType.PUBLISH, 0, 0, body.readableBytes()), body);
+    }
+
+    private static void assertFrame(EmbeddedChannel channel) {
+        ByteBuf frame = channel.readOutbound();
+        try {
+            assertEquals(MessageCommandType.PUBLISH.getValue(), frame.getByte(0));
+            assertEquals("hello", new String(ByteBufUtil.getBytes(frame, 3, frame.readableBytes() - 3), StandardCharsets.UTF_8));
+        } finally {
+            frame.release();
+        }
+    }
+}
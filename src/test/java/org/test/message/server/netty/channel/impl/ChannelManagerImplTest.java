@@ -0,0 +1,107 @@
+package org.test.message.server.netty.channel.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+class ChannelManagerImplTest {
+    private final ChannelManagerImpl manager = new ChannelManagerImpl(4);
+    private final List<String> presence = new ArrayList<>();
+
+    ChannelManagerImplTest() {
+        manager.setPresenceListener((uin, online) -> presence.add(uin + (online ? "+" : "-")));
+    }
+
+    @Test
+    void registerMultipleDevices() {
+        EmbeddedChannel phone = new EmbeddedChannel();
+        EmbeddedChannel pad = new EmbeddedChannel();
+        assertNull(manager.register("1001", "phone", phone));
+        assertNull(manager.register("1001", "pad", pad));
+
+        assertEquals(Arrays.asList(phone, pad), manager.getChannels("1001"));
+        assertTrue(manager.isOnline("1001"));
+        assertEquals(1, manager.onlineUserCount());
+        assertEquals(2, manager.onlineChannelCount());
+        // 只有第一个连接注册时回调上线
+        assertEquals(Arrays.asList("1001+"), presence);
+    }
+
+    /**
+     * 同一个设备重新连接时踢掉旧连接，旧连接关闭不会注销新连接
+     */
+    @Test
+    void reRegisterSameDeviceKicksOldChannel() {
+        EmbeddedChannel old = new EmbeddedChannel();
+        EmbeddedChannel current = new EmbeddedChannel();
+        manager.register("1001", "phone", old);
+
+        assertSame(old, manager.register("1001", "phone", current));
+        assertFalse(old.isOpen());
+        old.runPendingTasks();
+        assertFalse(manager.unregister(old));
+
+        assertEquals(Arrays.asList(current), manager.getChannels("1001"));
+        assertEquals(1, manager.onlineChannelCount());
+        assertEquals(Arrays.asList("1001+"), presence);
+    }
+
+    @Test
+    void registerSameChannelTwice() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        manager.register("1001", "phone", channel);
+        assertNull(manager.register("1001", "phone", channel));
+        assertTrue(channel.isOpen());
+        assertEquals(1, manager.onlineChannelCount());
+    }
+
+    @Test
+    void closeUnregistersChannel() {
+        EmbeddedChannel phone = new EmbeddedChannel();
+        EmbeddedChannel pad = new EmbeddedChannel();
+        manager.register("1001", "phone", phone);
+        manager.register("1001", "pad", pad);
+
+        phone.close();
+        assertEquals(Arrays.asList(pad), manager.getChannels("1001"));
+        assertEquals(Arrays.asList("1001+"), presence);
+
+        pad.close();
+        assertFalse(manager.isOnline("1001"));
+        assertTrue(manager.getChannels("1001").isEmpty());
+        assertEquals(0, manager.onlineUserCount());
+        assertEquals(0, manager.onlineChannelCount());
+        assertEquals(Arrays.asList("1001+", "1001-"), presence);
+    }
+
+    @Test
+    void unregisterUnknownChannel() {
+        assertFalse(manager.unregister(new EmbeddedChannel()));
+        Channel channel = new EmbeddedChannel();
+        manager.register("1001", null, channel);
+        assertTrue(manager.unregister(channel));
+        assertFalse(manager.unregister(channel));
+    }
+
+    @Test
+    void forEachUserVisitsAllShards() {
+        for (int i = 0; i < 100; i++) {
+            manager.register(String.valueOf(i), "d", new EmbeddedChannel());
+        }
+        List<String> users = new ArrayList<>();
+        manager.forEachUser(users::add);
+        assertEquals(100, users.size());
+        assertEquals(100, manager.onlineUserCount());
+    }
+}
@@ -0,0 +1,165 @@
+package org.test.message.server.netty.channel.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+class SubscriptionManagerImplTest {
+    private final List<EmbeddedChannel> channels = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    void subscribeAndUnsubscribe() {
+        SubscriptionManagerImpl manager = new SubscriptionManagerImpl();
+        EmbeddedChannel a = newChannel();
+        EmbeddedChannel b = newChannel();
+        assertTrue(manager.subscribe("news", a));
+        assertFalse(manager.subscribe("news", a));
+        assertTrue(manager.subscribe("news", b));
+        assertTrue(manager.subscribe("sports", a));
+        assertEquals(2, manager.subscriberCount("news"));
+        assertEquals(2, manager.topicCount());
+        assertEquals(3, manager.subscriptionCount());
+
+        assertTrue(manager.unsubscribe("news", a));
+        assertFalse(manager.unsubscribe("news", a));
+        assertFalse(manager.unsubscribe("weather", a));
+        assertEquals(1, manager.subscriberCount("news"));
+        assertTrue(manager.getSubscribers("news").contains(b));
+
+        assertTrue(manager.unsubscribe("news", b));
+        assertEquals(0, manager.subscriberCount("news"));
+        assertTrue(manager.getSubscribers("news").isEmpty());
+        assertEquals(1, manager.topicCount());
+        assertEquals(1, manager.subscriptionCount());
+    }
+
+    /**
+     * 返回的订阅者是快照，之后的变化不可见
+     */
+    @Test
+    void subscribersSnapshot() {
+        SubscriptionManagerImpl manager = new SubscriptionManagerImpl();
+        EmbeddedChannel a = newChannel();
+        manager.subscribe("news", a);
+        Collection<Channel> subscribers = manager.getSubscribers("news");
+        manager.subscribe("news", newChannel());
+        manager.unsubscribe("news", a);
+        assertEquals(1, subscribers.size());
+        assertTrue(subscribers.contains(a));
+        assertThrows(UnsupportedOperationException.class, () -> subscribers.add(a));
+    }
+
+    /**
+     * 订阅者超过 64 个后分段存储，分段前后的订阅、取消订阅和快照结果一致，全部取消后移除主题
+     */
+    @Test
+    void stripedTopic() {
+        SubscriptionManagerImpl manager = new SubscriptionManagerImpl();
+        List<EmbeddedChannel> subscribed = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            EmbeddedChannel channel = newChannel();
+            assertTrue(manager.subscribe("news", channel));
+            subscribed.add(channel);
+            assertEquals(i + 1, manager.subscriberCount("news"));
+        }
+        assertFalse(manager.subscribe("news", subscribed.get(500)));
+        assertEquals(1000, manager.subscriptionCount());
+        assertSubscribers(manager, "news", subscribed);
+
+        Collection<Channel> snapshot = manager.getSubscribers("news");
+        for (int i = 0; i < 1000; i += 2) {
+            assertTrue(manager.unsubscribe("news", subscribed.get(i)));
+        }
+        assertEquals(1000, snapshot.size());
+        List<EmbeddedChannel> remaining = new ArrayList<>();
+        for (int i = 1; i < 1000; i += 2) {
+            remaining.add(subscribed.get(i));
+        }
+        assertEquals(500, manager.subscriberCount("news"));
+        assertSubscribers(manager, "news", remaining);
+
+        for (EmbeddedChannel channel : remaining) {
+            assertTrue(manager.unsubscribe("news", channel));
+        }
+        assertEquals(0, manager.subscriberCount("news"));
+        assertEquals(0, manager.topicCount());
+        assertEquals(0, manager.subscriptionCount());
+    }
+
+    /**
+     * 连接关闭时取消它的所有订阅，包括分段存储的主题
+     */
+    @Test
+    void unsubscribeAllOnClose() {
+        SubscriptionManagerImpl manager = new SubscriptionManagerImpl();
+        List<EmbeddedChannel> others = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            EmbeddedChannel channel = newChannel();
+            manager.subscribe("big", channel);
+            others.add(channel);
+        }
+        EmbeddedChannel channel = newChannel();
+        manager.subscribe("big", channel);
+        manager.subscribe("small", channel);
+        assertEquals(102, manager.subscriptionCount());
+
+        channel.close();
+        assertEquals(100, manager.subscriberCount("big"));
+        assertSubscribers(manager, "big", others);
+        assertEquals(0, manager.subscriberCount("small"));
+        assertEquals(1, manager.topicCount());
+        assertEquals(100, manager.subscriptionCount());
+
+        // 已经关闭的连接不能再订阅
+        assertFalse(manager.subscribe("small", channel));
+        assertFalse(manager.unsubscribe("big", channel));
+    }
+
+    @Test
+    void maxTopicsPerChannel() {
+        SubscriptionManagerImpl manager = new SubscriptionManagerImpl(2);
+        EmbeddedChannel channel = newChannel();
+        assertTrue(manager.subscribe("t1", channel));
+        assertTrue(manager.subscribe("t2", channel));
+        assertFalse(manager.subscribe("t3", channel));
+        assertEquals(0, manager.subscriberCount("t3"));
+
+        // 取消订阅后可以订阅新的主题
+        assertTrue(manager.unsubscribe("t1", channel));
+        assertTrue(manager.subscribe("t3", channel));
+        assertEquals(2, manager.subscriptionCount());
+
+        assertThrows(IllegalArgumentException.class, () -> new SubscriptionManagerImpl(0));
+    }
+
+    private EmbeddedChannel newChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channels.add(channel);
+        return channel;
+    }
+
+    private static void assertSubscribers(SubscriptionManagerImpl manager, String topic, List<EmbeddedChannel> expected) {
+        Collection<Channel> subscribers = manager.getSubscribers(topic);
+        assertEquals(expected.size(), subscribers.size());
+        assertEquals(new HashSet<Channel>(expected), new HashSet<>(subscribers));
+    }
+}
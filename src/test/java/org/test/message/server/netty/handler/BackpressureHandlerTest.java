@@ -0,0 +1,180 @@
+package org.test.message.server.netty.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+class BackpressureHandlerTest {
+    /**
+     * 高水位线 32 字节，先写出 40 字节不 flush，连接变为不可写
+     */
+    private static EmbeddedChannel unwritableChannel(WriteBackpressure backpressure) {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(16, 32));
+        channel.pipeline().addLast(backpressure.newHandler());
+        channel.write(buffer(0, 40));
+        assertFalse(channel.isWritable());
+        return channel;
+    }
+
+    @Test
+    void writeThroughWhenWritable() {
+        WriteBackpressure backpressure = new WriteBackpressure(SlowConsumerPolicy.DROP_NEWEST, 25);
+        EmbeddedChannel channel = new EmbeddedChannel(backpressure.newHandler());
+        channel.writeAndFlush(buffer(1, 10));
+        assertEquals(1, readId(channel));
+        assertEquals(0, backpressure.queuedMessages());
+        assertFalse(channel.finishAndReleaseAll());
+    }
+
+    /**
+     * 不可写时进入队列，恢复可写后按顺序写出
+     */
+    @Test
+    void queueUntilWritable() {
+        WriteBackpressure backpressure = new WriteBackpressure(SlowConsumerPolicy.DROP_NEWEST, 25);
+        EmbeddedChannel channel = unwritableChannel(backpressure);
+        channel.write(buffer(1, 10));
+        channel.write(buffer(2, 10));
+        assertEquals(2, backpressure.queuedMessages());
+        assertEquals(20, backpressure.queuedBytes());
+
+        channel.flush();
+        assertEquals(listOf(0, 1, 2), readIds(channel));
+        assertEquals(0, backpressure.queuedMessages());
+        assertEquals(0, backpressure.queuedBytes());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void dropNewest() {
+        WriteBackpressure backpressure = new WriteBackpressure(SlowConsumerPolicy.DROP_NEWEST, 25);
+        EmbeddedChannel channel = unwritableChannel(backpressure);
+        channel.write(buffer(1, 10));
+        channel.write(buffer(2, 10));
+        ByteBuf dropped = buffer(3, 10);
+        ChannelFuture future = channel.write(dropped);
+
+        assertTrue(future.cause() instanceof BackpressureHandler.DroppedWriteException);
+        assertEquals(0, dropped.refCnt());
+        assertEquals(1, backpressure.droppedMessages());
+        channel.flush();
+        assertEquals(listOf(0, 1, 2), readIds(channel));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void dropOldest() {
+        WriteBackpressure backpressure = new WriteBackpressure(SlowConsumerPolicy.DROP_OLDEST, 25);
+        EmbeddedChannel channel = unwritableChannel(backpressure);
+        ChannelFuture oldest = channel.write(buffer(1, 10));
+        channel.write(buffer(2, 10));
+        channel.write(buffer(3, 10));
+
+        assertTrue(oldest.cause() instanceof BackpressureHandler.DroppedWriteException);
+        assertEquals(1, backpressure.droppedMessages());
+        assertEquals(20, backpressure.queuedBytes());
+        channel.flush();
+        assertEquals(listOf(0, 2, 3), readIds(channel));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void coalesce() {
+        WriteBackpressure backpressure = new WriteBackpressure(SlowConsumerPolicy.COALESCE, 25);
+        EmbeddedChannel channel = unwritableChannel(backpressure);
+        channel.write(buffer(1, 10));
+        channel.write(buffer(2, 10));
+        channel.write(buffer(3, 10));
+
+        assertEquals(2, backpressure.droppedMessages());
+        assertEquals(1, backpressure.queuedMessages());
+        channel.flush();
+        assertEquals(listOf(0, 3), readIds(channel));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void disconnect() {
+        WriteBackpressure backpressure = new WriteBackpressure(SlowConsumerPolicy.DISCONNECT, 25);
+        EmbeddedChannel channel = unwritableChannel(backpressure);
+        ByteBuf queued = buffer(1, 10);
+        channel.write(queued);
+        channel.write(buffer(2, 10));
+        channel.write(buffer(3, 10));
+
+        assertFalse(channel.isOpen());
+        assertEquals(1, backpressure.disconnects());
+        // 关闭时释放队列中的消息
+        assertEquals(0, queued.refCnt());
+        assertEquals(0, backpressure.queuedMessages());
+        assertEquals(0, backpressure.queuedBytes());
+        assertEquals(3, backpressure.droppedMessages());
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * 单条消息超过队列上限时，除 DROP_NEWEST 和 DISCONNECT 外仍然入队，避免永远无法发送
+     */
+    @Test
+    void oversizedMessageWithDropOldest() {
+        WriteBackpressure backpressure = new WriteBackpressure(SlowConsumerPolicy.DROP_OLDEST, 25);
+        EmbeddedChannel channel = unwritableChannel(backpressure);
+        channel.write(buffer(1, 10));
+        channel.write(buffer(2, 30));
+        assertEquals(1, backpressure.droppedMessages());
+        channel.flush();
+        assertEquals(listOf(0, 2), readIds(channel));
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * 第一个字节是编号，其余填充到指定长度
+     */
+    private static ByteBuf buffer(int id, int length) {
+        ByteBuf buf = Unpooled.buffer(length);
+        buf.writeByte(id);
+        buf.writeZero(length - 1);
+        return buf;
+    }
+
+    private static int readId(EmbeddedChannel channel) {
+        ByteBuf buf = channel.readOutbound();
+        try {
+            return buf.getByte(0);
+        } finally {
+            buf.release();
+        }
+    }
+
+    private static List<Integer> readIds(EmbeddedChannel channel) {
+        List<Integer> ids = new ArrayList<>();
+        ByteBuf buf;
+        while ((buf = channel.readOutbound()) != null) {
+            ids.add((int) buf.getByte(0));
+            buf.release();
+        }
+        assertNull(channel.readOutbound());
+        return ids;
+    }
+
+    private static List<Integer> listOf(Integer... ids) {
+        List<Integer> list = new ArrayList<>();
+        for (Integer id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+}
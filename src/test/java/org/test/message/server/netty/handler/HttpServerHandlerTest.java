@@ -0,0 +1,106 @@
+package org.test.message.server.netty.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.test.message.server.config.IConfig;
+import org.test.message.server.config.PropertiesResourceLoader;
+import org.test.message.server.config.ServerConstants;
+import org.test.message.server.metrics.MetricsRegistry;
+import org.test.message.service.impl.ProtocolProcessorBootstrapper;
+import org.test.message.service.processor.ProtocolProcessor;
+import org.test.message.service.storage.impl.MemoryMessageStore;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+class HttpServerHandlerTest {
+    private ProtocolProcessor processor;
+
+    @BeforeEach
+    void setUp() {
+        IConfig config = new PropertiesResourceLoader();
+        config.setProperty(ServerConstants.STORAGE_CLASS_NAME, MemoryMessageStore.class.getName());
+        config.setProperty(ServerConstants.AUTH_ANONYMOUS, "true");
+        processor = new ProtocolProcessorBootstrapper().init(config);
+    }
+
+    @AfterEach
+    void tearDown() {
+        processor.close();
+    }
+
+    @Test
+    void publishRequiresSecret() {
+        EmbeddedChannel channel = newChannel("k");
+        assertEquals(HttpResponseStatus.UNAUTHORIZED, send(channel, post("/publish?topic=news", null)));
+        assertEquals(HttpResponseStatus.UNAUTHORIZED, send(channel, post("/publish?topic=news", "Bearer x")));
+        assertEquals(HttpResponseStatus.UNAUTHORIZED, send(channel, post("/publish?topic=news", "k")));
+        assertEquals(HttpResponseStatus.OK, send(channel, post("/publish?topic=news", "Bearer k")));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void pushRequiresSecret() {
+        EmbeddedChannel channel = newChannel("k");
+        assertEquals(HttpResponseStatus.UNAUTHORIZED, send(channel, post("/push?uin=u1", null)));
+        assertEquals(HttpResponseStatus.UNAUTHORIZED, send(channel, post("/push?uin=u1", "Bearer kk")));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void metricsRequiresSecret() {
+        EmbeddedChannel channel = newChannel("k");
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/metrics");
+        assertEquals(HttpResponseStatus.UNAUTHORIZED, send(channel, request));
+        request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/metrics");
+        request.headers().set(HttpHeaderNames.AUTHORIZATION, "Bearer k");
+        assertEquals(HttpResponseStatus.OK, send(channel, request));
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * 没有配置密钥时拒绝所有调用
+     */
+    @Test
+    void rejectWithoutSecret() {
+        EmbeddedChannel channel = newChannel(null);
+        assertEquals(HttpResponseStatus.UNAUTHORIZED, send(channel, post("/publish?topic=news", "Bearer ")));
+        assertEquals(HttpResponseStatus.OK, send(channel, new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/")));
+        channel.finishAndReleaseAll();
+    }
+
+    private EmbeddedChannel newChannel(String secret) {
+        return new EmbeddedChannel(new HttpServerHandler(processor, new MetricsRegistry(), secret));
+    }
+
+    private static FullHttpRequest post(String uri, String authorization) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, uri,
+                Unpooled.copiedBuffer("hello", StandardCharsets.UTF_8));
+        if (authorization != null) {
+            request.headers().set(HttpHeaderNames.AUTHORIZATION, authorization);
+        }
+        return request;
+    }
+
+    private static HttpResponseStatus send(EmbeddedChannel channel, FullHttpRequest request) {
+        channel.writeInbound(request);
+        FullHttpResponse response = channel.readOutbound();
+        try {
+            return response.status();
+        } finally {
+            response.release();
+        }
+    }
+}
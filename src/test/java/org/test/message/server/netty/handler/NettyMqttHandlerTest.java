@@ -0,0 +1,129 @@
+package org.test.message.server.netty.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.test.message.server.config.IConfig;
+import org.test.message.server.config.PropertiesResourceLoader;
+import org.test.message.server.config.ServerConstants;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageCommandType;
+import org.test.message.server.netty.handler.codec.MessageHeader;
+import org.test.message.server.netty.handler.codec.Messages;
+import org.test.message.server.netty.handler.codec.proto.Connect;
+import org.test.message.service.impl.ProtocolProcessorBootstrapper;
+import org.test.message.service.processor.ProtocolProcessor;
+import org.test.message.service.security.Authenticator;
+import org.test.message.service.storage.impl.MemoryMessageStore;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * 认证一直等到测试结束才返回，连接始终处于认证中的状态
+ */
+class NettyMqttHandlerTest {
+    private static volatile CountDownLatch authenticating;
+
+    private ProtocolProcessor processor;
+    private EmbeddedChannel channel;
+
+    @BeforeEach
+    void setUp() {
+        authenticating = new CountDownLatch(1);
+        IConfig config = new PropertiesResourceLoader();
+        config.setProperty(ServerConstants.STORAGE_CLASS_NAME, MemoryMessageStore.class.getName());
+        config.setProperty(ServerConstants.AUTH_CLASS_NAME, BlockingAuthenticator.class.getName());
+        processor = new ProtocolProcessorBootstrapper().init(config);
+        channel = new EmbeddedChannel(new NettyMqttHandler(processor));
+    }
+
+    @AfterEach
+    void tearDown() {
+        channel.finishAndReleaseAll();
+        authenticating.countDown();
+        processor.close();
+    }
+
+    /**
+     * 第一条消息必须是 CONNECT
+     */
+    @Test
+    void closeOnMessageBeforeConnect() {
+        Message subscribe = message(MessageCommandType.SUBSCRIBE);
+        channel.writeInbound(subscribe);
+        assertFalse(channel.isActive());
+        assertEquals(0, subscribe.refCnt());
+    }
+
+    @Test
+    void closeOnDuplicateConnect() {
+        channel.writeInbound(connect("u1"));
+        assertTrue(channel.isActive());
+        assertTrue(processor.connectReceived(channel));
+
+        channel.writeInbound(connect("u1"));
+        assertFalse(channel.isActive());
+    }
+
+    /**
+     * 认证过程中最多暂存 16 条消息，再收到消息时断开连接并释放暂存的消息
+     */
+    @Test
+    void closeWhenTooManyPending() {
+        channel.writeInbound(connect("u1"));
+        List<Message> pending = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            Message subscribe = message(MessageCommandType.SUBSCRIBE);
+            pending.add(subscribe);
+            channel.writeInbound(subscribe);
+            assertTrue(channel.isActive());
+            assertEquals(1, subscribe.refCnt());
+        }
+        Message subscribe = message(MessageCommandType.SUBSCRIBE);
+        pending.add(subscribe);
+        channel.writeInbound(subscribe);
+        assertFalse(channel.isActive());
+        for (Message message : pending) {
+            assertEquals(0, message.refCnt());
+        }
+    }
+
+    private static Message connect(String uin) {
+        Connect connect = Connect.newBuilder()
+                .setVersion(Messages.PROTOCOL_VERSION)
+                .setUin(uin)
+                .setDeviceId("d1")
+                .setToken("t1")
+                .build();
+        ByteBuf body = Messages.serialize(UnpooledByteBufAllocator.DEFAULT, connect);
+        return new Message(new MessageHeader(MessageCommandType.CONNECT, 0, 0, body.readableBytes()), body);
+    }
+
+    private static Message message(MessageCommandType type) {
+        return new Message(new MessageHeader(type, 0, 0, 0), Unpooled.buffer(0));
+    }
+
+    public static class BlockingAuthenticator implements Authenticator {
+        @Override
+        public boolean authenticate(String uin, String deviceId, String token) {
+            try {
+                authenticating.await();
+            } catch (InterruptedException e) {
+                // 测试结束时关闭认证线程池
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.test.message.server.netty.handler.codec;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+
+class MessageDecoderTest {
+    private static final int MAX_LENGTH = 1 << 24;
+
+    /**
+     * 可变长度 1~4 字节的边界值
+     */
+    @Test
+    void decodeVariableLengthBoundaries() {
+        for (int length : new int[]{0, 1, 127, 128, 16383, 16384, 2097151, 2097152}) {
+            EmbeddedChannel channel = new EmbeddedChannel(new MessageDecoder(MAX_LENGTH));
+            byte[] body = randomBytes(length);
+            channel.writeInbound(encode(MessageCommandType.PUBLISH, 3, 5, body));
+            assertMessage(channel.readInbound(), MessageCommandType.PUBLISH, 3, 5, body);
+            assertFalse(channel.finishAndReleaseAll());
+        }
+    }
+
+    @Test
+    void decodeByteByByte() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MessageDecoder(MAX_LENGTH));
+        byte[] body = randomBytes(300);
+        ByteBuf frame = encode(MessageCommandType.PUBLISH, 0, 0, body);
+        while (frame.isReadable()) {
+            assertNull(channel.readInbound());
+            channel.writeInbound(frame.readRetainedSlice(1));
+        }
+        frame.release();
+        assertMessage(channel.readInbound(), MessageCommandType.PUBLISH, 0, 0, body);
+        assertFalse(channel.finishAndReleaseAll());
+    }
+
+    /**
+     * 不超过 {@link MessageDecoder#PREALLOCATE_LIMIT} 的消息一次分配完整缓冲区，更大的消息分多次扩容
+     */
+    @Test
+    void decodeFragmentedSmallAndLargeFrames() {
+        for (int length : new int[]{4096, MessageDecoder.PREALLOCATE_LIMIT, MessageDecoder.PREALLOCATE_LIMIT * 4}) {
+            EmbeddedChannel channel = new EmbeddedChannel(new MessageDecoder(MAX_LENGTH));
+            byte[] body = randomBytes(length);
+            ByteBuf frame = encode(MessageCommandType.PUBLISH, 1, 0, body);
+            while (frame.isReadable()) {
+                channel.writeInbound(frame.readRetainedSlice(Math.min(1460, frame.readableBytes())));
+            }
+            frame.release();
+            assertMessage(channel.readInbound(), MessageCommandType.PUBLISH, 1, 0, body);
+            assertFalse(channel.finishAndReleaseAll());
+        }
+    }
+
+    @Test
+    void decodeMultipleFramesInOneBuffer() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MessageDecoder(MAX_LENGTH));
+        byte[] body = randomBytes(200);
+        ByteBuf last = encode(MessageCommandType.PUBLISH, 0, 0, body);
+        ByteBuf frames = Unpooled.wrappedBuffer(
+                encode(MessageCommandType.PING, 0, 0, new byte[0]),
+                encode(MessageCommandType.PUBLISH, 2, 0, body),
+                // 最后一条消息只有一部分，等待后续数据
+                last.readRetainedSlice(10));
+        last.release();
+        channel.writeInbound(frames);
+        assertMessage(channel.readInbound(), MessageCommandType.PING, 0, 0, new byte[0]);
+        assertMessage(channel.readInbound(), MessageCommandType.PUBLISH, 2, 0, body);
+        assertNull(channel.readInbound());
+        assertFalse(channel.finishAndReleaseAll());
+    }
+
+    @Test
+    void rejectUnknownCommandType() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MessageDecoder(MAX_LENGTH));
+        ByteBuf in = Unpooled.wrappedBuffer(new byte[]{(byte) 0x7F, 0, 0});
+        assertThrows(CorruptedFrameException.class, () -> channel.writeInbound(in));
+        // 之后收到的数据全部丢弃
+        channel.writeInbound(encode(MessageCommandType.PING, 0, 0, new byte[0]));
+        assertNull(channel.readInbound());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void rejectTooManyLengthDigits() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MessageDecoder(Integer.MAX_VALUE));
+        byte[] header = {(byte) MessageCommandType.PUBLISH.getValue(), 0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1};
+        assertThrows(CorruptedFrameException.class, () -> channel.writeInbound(Unpooled.wrappedBuffer(header)));
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * 头部中的长度超过限制时不等待消息体，立即拒绝
+     */
+    @Test
+    void rejectTooLargeLengthBeforeBody() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MessageDecoder(1000));
+        ByteBuf frame = encode(MessageCommandType.PUBLISH, 0, 0, new byte[1001]);
+        ByteBuf header = frame.retainedSlice(0, 4);
+        frame.release();
+        assertThrows(TooLongFrameException.class, () -> channel.writeInbound(header));
+        channel.finishAndReleaseAll();
+    }
+
+    private static ByteBuf encode(MessageCommandType type, int retryCount, int reserved, byte[] body) {
+        Message message = new Message(new MessageHeader(type, retryCount, reserved, body.length), body);
+        ByteBuf encoded = MessageEncoder.encode(ByteBufAllocator.DEFAULT, message);
+        message.release();
+        return encoded;
+    }
+
+    private static void assertMessage(Message message, MessageCommandType type, int retryCount, int reserved, byte[] body) {
+        try {
+            assertEquals(type, message.getHeader().getType());
+            assertEquals(retryCount, message.getHeader().getRetryCount());
+            assertEquals(reserved, message.getHeader().getReserved());
+            assertEquals(body.length, message.getHeader().getRemainingLength());
+            assertArrayEquals(body, ByteBufUtil.getBytes(message.content()));
+        } finally {
+            message.release();
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return bytes;
+    }
+}
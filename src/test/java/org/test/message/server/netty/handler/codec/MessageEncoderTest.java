@@ -0,0 +1,153 @@
+package org.test.message.server.netty.handler.codec;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+class MessageEncoderTest {
+    private static final int MAX_LENGTH = 1 << 24;
+
+    /**
+     * 可变长度 1~4 字节的边界值，编码结果经过 {@link MessageDecoder} 还原
+     */
+    @Test
+    void roundTripVariableLengthBoundaries() {
+        int[] lengths = {0, 1, 127, 128, 16383, 16384, 2097151, 2097152};
+        int[] digits = {1, 1, 1, 2, 2, 3, 3, 4};
+        for (int i = 0; i < lengths.length; i++) {
+            assertEquals(digits[i], MessageEncoder.getVariableLengthInt(lengths[i]));
+            byte[] body = randomBytes(lengths[i]);
+            Message message = new Message(new MessageHeader(MessageCommandType.PUBLISH, 1, 0, body.length), body);
+            EmbeddedChannel encoder = new EmbeddedChannel(new MessageEncoder());
+            encoder.writeOutbound(message);
+            ByteBuf encoded = encoder.readOutbound();
+            assertEquals(2 + digits[i] + body.length, encoded.readableBytes());
+
+            EmbeddedChannel decoder = new EmbeddedChannel(new MessageDecoder(MAX_LENGTH));
+            decoder.writeInbound(encoded);
+            assertMessage(decoder.readInbound(), MessageCommandType.PUBLISH, 1, 0, body);
+            assertFalse(encoder.finishAndReleaseAll());
+            assertFalse(decoder.finishAndReleaseAll());
+            if (body.length > 0) {
+                // 编码结果持有的消息体引用随解码的输入一起释放
+                assertEquals(0, message.refCnt());
+            }
+        }
+    }
+
+    /**
+     * 消息体不拷贝，编码结果持有消息体的一个引用
+     */
+    @Test
+    void encodeWithoutCopy() {
+        byte[] body = randomBytes(100);
+        Message message = new Message(new MessageHeader(MessageCommandType.PUBLISH, 0, 0, body.length), body);
+        ByteBuf content = message.content();
+        ByteBuf encoded = MessageEncoder.encode(ByteBufAllocator.DEFAULT, message);
+        assertEquals(2, content.refCnt());
+        message.release();
+        assertEquals(1, content.refCnt());
+        assertArrayEquals(body, ByteBufUtil.getBytes(encoded, 3, body.length));
+        encoded.release();
+        assertEquals(0, content.refCnt());
+    }
+
+    /**
+     * 第二个字节高 4 位是重传次数，低 4 位是保留位
+     */
+    @Test
+    void packRetryCountAndReserved() {
+        byte[] body = {1, 2, 3};
+        for (int retryCount = 0; retryCount <= 15; retryCount++) {
+            for (int reserved = 0; reserved <= 15; reserved++) {
+                ByteBuf encoded = encode(MessageCommandType.PUBLISH, retryCount, reserved, body);
+                try {
+                    assertEquals(MessageCommandType.PUBLISH.getValue(), encoded.getByte(0));
+                    assertEquals((byte) (retryCount << 4 | reserved), encoded.getByte(1));
+                    assertEquals(body.length, encoded.getByte(2));
+                } finally {
+                    encoded.release();
+                }
+            }
+        }
+
+        EmbeddedChannel decoder = new EmbeddedChannel(new MessageDecoder(MAX_LENGTH));
+        decoder.writeInbound(encode(MessageCommandType.PUBLISH, 15, 15, body));
+        assertMessage(decoder.readInbound(), MessageCommandType.PUBLISH, 15, 15, body);
+        assertFalse(decoder.finishAndReleaseAll());
+    }
+
+    /**
+     * 没有消息体的消息直接使用预先编码好的帧，不分配内存，多次写出互不影响，不能被释放或修改
+     */
+    @Test
+    void fixedFrames() {
+        for (MessageCommandType type : MessageCommandType.values()) {
+            if (type == MessageCommandType.UNKNOWN) {
+                continue;
+            }
+            Message message = new Message(new MessageHeader(type, 0, 0, 0));
+            ByteBuf first = MessageEncoder.encode(null, message);
+            ByteBuf second = MessageEncoder.encode(null, message);
+            assertArrayEquals(new byte[]{(byte) type.getValue(), 0, 0}, ByteBufUtil.getBytes(first));
+            assertTrue(first.isReadOnly());
+            assertThrows(Exception.class, () -> first.setByte(0, 0));
+
+            first.skipBytes(first.readableBytes());
+            first.release();
+            first.release();
+            assertEquals(3, second.readableBytes());
+            assertArrayEquals(ByteBufUtil.getBytes(second), ByteBufUtil.getBytes(MessageEncoder.fixedFrame(type)));
+        }
+    }
+
+    /**
+     * 带重传次数或保留位的空消息不能使用预先编码好的帧
+     */
+    @Test
+    void emptyBodyWithFlags() {
+        ByteBuf encoded = encode(MessageCommandType.PUBLISH_ACK, 2, 1, new byte[0]);
+        try {
+            assertFalse(encoded.isReadOnly());
+            assertArrayEquals(new byte[]{(byte) MessageCommandType.PUBLISH_ACK.getValue(), 0x21, 0}, ByteBufUtil.getBytes(encoded));
+        } finally {
+            encoded.release();
+        }
+    }
+
+    private static ByteBuf encode(MessageCommandType type, int retryCount, int reserved, byte[] body) {
+        Message message = new Message(new MessageHeader(type, retryCount, reserved, body.length), body);
+        ByteBuf encoded = MessageEncoder.encode(ByteBufAllocator.DEFAULT, message);
+        message.release();
+        return encoded;
+    }
+
+    private static void assertMessage(Message message, MessageCommandType type, int retryCount, int reserved, byte[] body) {
+        try {
+            assertEquals(type, message.getHeader().getType());
+            assertEquals(retryCount, message.getHeader().getRetryCount());
+            assertEquals(reserved, message.getHeader().getReserved());
+            assertEquals(body.length, message.getHeader().getRemainingLength());
+            assertArrayEquals(body, ByteBufUtil.getBytes(message.content()));
+        } finally {
+            message.release();
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return bytes;
+    }
+}
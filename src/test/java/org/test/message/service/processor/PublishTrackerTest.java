@@ -0,0 +1,254 @@
+package org.test.message.service.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.MessageCommandType;
+import org.test.message.server.netty.handler.codec.Messages;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+/**
+ * 定时任务由测试触发；确认超时和最大退避都是 1ms，每次触发前等待 2ms，触发时所有消息都已超时
+ */
+class PublishTrackerTest {
+    private final ManualTimer timer = new ManualTimer();
+    private final List<Message> deadLetters = new ArrayList<>();
+    private final PublishTracker tracker = new PublishTracker(timer, 1, 1, (channel, message) -> deadLetters.add(message.retain()));
+    private final EmbeddedChannel channel = new EmbeddedChannel();
+    private final List<Message> messages = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        channel.finishAndReleaseAll();
+        deadLetters.forEach(Message::release);
+        messages.forEach(Message::release);
+    }
+
+    @Test
+    void ack() {
+        Message m1 = publish(1);
+        Message m2 = publish(2);
+        tracker.track(channel, 1, m1);
+        tracker.track(channel, 2, m2);
+        assertEquals(2, tracker.inflightCount());
+        assertEquals(2, m1.refCnt());
+        assertEquals(1, timer.pending());
+
+        assertTrue(tracker.ack(channel, 1));
+        assertFalse(tracker.ack(channel, 1));
+        assertFalse(tracker.ack(channel, 3));
+        assertEquals(1, tracker.inflightCount());
+        assertEquals(1, m1.refCnt());
+        assertEquals(1, timer.pending());
+
+        // 窗口为空时取消定时任务
+        assertTrue(tracker.ack(channel, 2));
+        assertEquals(0, tracker.inflightCount());
+        assertEquals(1, m2.refCnt());
+        assertEquals(0, timer.pending());
+        assertEquals(2, tracker.ackLatency().count());
+
+        fire();
+        assertNull(channel.readOutbound());
+        assertEquals(0, tracker.retransmitCount());
+    }
+
+    /**
+     * 每次重传的消息头带上重传次数，第 15 次重传之后仍未确认时交给死信处理
+     */
+    @Test
+    void retransmitThenDeadLetter() {
+        Message message = publish(1);
+        tracker.track(channel, 1, message);
+        for (int retryCount = 1; retryCount <= PublishTracker.MAX_RETRY_COUNT; retryCount++) {
+            fire();
+            Message retransmitted = channel.readOutbound();
+            try {
+                assertEquals(MessageCommandType.PUBLISH, retransmitted.getHeader().getType());
+                assertEquals(retryCount, retransmitted.getHeader().getRetryCount());
+                assertEquals(1, Messages.messageId(retransmitted));
+            } finally {
+                retransmitted.release();
+            }
+            assertNull(channel.readOutbound());
+            assertEquals(1, timer.pending());
+        }
+        assertEquals(PublishTracker.MAX_RETRY_COUNT, tracker.retransmitCount());
+        assertTrue(deadLetters.isEmpty());
+
+        fire();
+        assertNull(channel.readOutbound());
+        assertEquals(Collections.singletonList(message), deadLetters);
+        assertEquals(1, tracker.deadLetterCount());
+        assertEquals(0, tracker.inflightCount());
+        assertEquals(0, timer.pending());
+        // 死信处理 retain 的一次
+        assertEquals(2, message.refCnt());
+        assertFalse(tracker.ack(channel, 1));
+    }
+
+    /**
+     * 连接关闭时所有等待确认的消息只交给死信处理一次，之后触发的定时任务和跟踪的消息都被忽略
+     */
+    @Test
+    void deadLetterOnClose() {
+        Message m1 = publish(1);
+        Message m2 = publish(2);
+        Message m3 = publish(3);
+        tracker.track(channel, 1, m1);
+        tracker.track(channel, 2, m2);
+        tracker.track(channel, 3, m3);
+        assertTrue(tracker.ack(channel, 2));
+        fire();
+        channel.releaseOutbound();
+
+        channel.close();
+        channel.runPendingTasks();
+        assertEquals(2, deadLetters.size());
+        assertTrue(deadLetters.contains(m1));
+        assertTrue(deadLetters.contains(m3));
+        assertEquals(2, tracker.deadLetterCount());
+        assertEquals(0, tracker.inflightCount());
+        assertEquals(0, timer.pending());
+
+        fire();
+        tracker.track(channel, 4, publish(4));
+        channel.close();
+        channel.runPendingTasks();
+        assertEquals(2, deadLetters.size());
+        assertEquals(0, tracker.inflightCount());
+        assertFalse(tracker.ack(channel, 1));
+        for (Message message : messages) {
+            assertEquals(deadLetters.contains(message) ? 2 : 1, message.refCnt());
+        }
+    }
+
+    private Message publish(long messageId) {
+        ByteBuf payload = Unpooled.copiedBuffer("m" + messageId, StandardCharsets.UTF_8);
+        try {
+            Message message = Messages.publish(UnpooledByteBufAllocator.DEFAULT, messageId, payload);
+            messages.add(message);
+            return message;
+        } finally {
+            payload.release();
+        }
+    }
+
+    /**
+     * 等待消息超时，触发定时任务，再执行它提交到 EventLoop 的检查
+     */
+    private void fire() {
+        try {
+            Thread.sleep(2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        timer.fire();
+        channel.runPendingTasks();
+    }
+
+    /**
+     * 只记录定时任务，由 {@link #fire()} 触发
+     */
+    private static final class ManualTimer implements Timer {
+        private final List<ManualTimeout> timeouts = new ArrayList<>();
+
+        @Override
+        public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+            ManualTimeout timeout = new ManualTimeout(this, task);
+            timeouts.add(timeout);
+            return timeout;
+        }
+
+        @Override
+        public Set<Timeout> stop() {
+            timeouts.clear();
+            return Collections.emptySet();
+        }
+
+        int pending() {
+            int count = 0;
+            for (ManualTimeout timeout : timeouts) {
+                if (!timeout.cancelled) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        void fire() {
+            List<ManualTimeout> fired = new ArrayList<>(timeouts);
+            timeouts.clear();
+            for (ManualTimeout timeout : fired) {
+                if (!timeout.cancelled) {
+                    timeout.expired = true;
+                    try {
+                        timeout.task.run(timeout);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class ManualTimeout implements Timeout {
+        private final Timer timer;
+        private final TimerTask task;
+        private boolean expired;
+        private boolean cancelled;
+
+        ManualTimeout(Timer timer, TimerTask task) {
+            this.timer = timer;
+            this.task = task;
+        }
+
+        @Override
+        public Timer timer() {
+            return timer;
+        }
+
+        @Override
+        public TimerTask task() {
+            return task;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return expired;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (expired || cancelled) {
+                return false;
+            }
+            cancelled = true;
+            return true;
+        }
+    }
+}
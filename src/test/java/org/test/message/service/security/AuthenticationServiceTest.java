@@ -0,0 +1,85 @@
+package org.test.message.service.security;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class AuthenticationServiceTest {
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private AuthenticationService service;
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        if (service != null) {
+            service.close();
+        }
+    }
+
+    /**
+     * 认证通过的 token 被缓存，之后直接返回已完成的 future；认证失败的不缓存
+     */
+    @Test
+    void cacheSuccess() throws Exception {
+        service = new AuthenticationService((uin, deviceId, token) -> "ok".equals(token), new TokenCache(100, 60_000), 1, 10);
+        assertTrue(service.authenticate("u1", "d1", "ok").get(5, TimeUnit.SECONDS));
+        assertFalse(service.authenticate("u2", "d1", "bad").get(5, TimeUnit.SECONDS));
+        assertEquals(2, service.cacheMisses());
+
+        CompletableFuture<Boolean> cached = service.authenticate("u1", "d1", "ok");
+        assertTrue(cached.isDone());
+        assertTrue(cached.get());
+        assertEquals(1, service.cacheHits());
+        assertFalse(service.authenticate("u2", "d1", "bad").get(5, TimeUnit.SECONDS));
+        assertEquals(3, service.cacheMisses());
+    }
+
+    @Test
+    void authenticatorException() throws Exception {
+        service = new AuthenticationService((uin, deviceId, token) -> {
+            throw new IllegalStateException("backend down");
+        }, new TokenCache(100, 60_000), 1, 10);
+        CompletableFuture<Boolean> future = service.authenticate("u1", "d1", "t1");
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertEquals(0, service.getCache().size());
+    }
+
+    /**
+     * 线程和队列都被占满时立即返回异常完成的 future，不阻塞调用方
+     */
+    @Test
+    void rejectWhenPoolFull() throws Exception {
+        service = new AuthenticationService((uin, deviceId, token) -> {
+            started.countDown();
+            release.await();
+            return true;
+        }, new TokenCache(100, 60_000), 1, 1);
+        CompletableFuture<Boolean> running = service.authenticate("u1", "d1", "t1");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Boolean> queued = service.authenticate("u2", "d1", "t2");
+
+        CompletableFuture<Boolean> rejected = service.authenticate("u3", "d1", "t3");
+        assertTrue(rejected.isCompletedExceptionally());
+        ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+        assertEquals(1, service.rejectedCount());
+
+        release.countDown();
+        assertTrue(running.get(5, TimeUnit.SECONDS));
+        assertTrue(queued.get(5, TimeUnit.SECONDS));
+        assertEquals(1, service.rejectedCount());
+        assertEquals(2, service.getCache().size());
+    }
+}
@@ -0,0 +1,77 @@
+package org.test.message.service.security;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class TokenCacheTest {
+    @Test
+    void containsToken() {
+        TokenCache cache = new TokenCache(100, 60_000);
+        cache.put("u1", "d1", "t1");
+        assertTrue(cache.contains("u1", "d1", "t1"));
+        assertFalse(cache.contains("u1", "d1", "t2"));
+        assertFalse(cache.contains("u1", "d2", "t1"));
+        assertFalse(cache.contains("u1", null, "t1"));
+
+        // 只缓存最近一次认证通过的 token
+        cache.put("u1", "d1", "t2");
+        assertFalse(cache.contains("u1", "d1", "t1"));
+        assertTrue(cache.contains("u1", "d1", "t2"));
+        assertEquals(1, cache.size());
+
+        cache.invalidate("u1", "d1");
+        assertFalse(cache.contains("u1", "d1", "t2"));
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * 过期的条目查询时移除
+     */
+    @Test
+    void expireAfterTtl() throws Exception {
+        TokenCache cache = new TokenCache(100, 50);
+        cache.put("u1", "d1", "t1");
+        assertTrue(cache.contains("u1", "d1", "t1"));
+        Thread.sleep(100);
+        assertEquals(1, cache.size());
+        assertFalse(cache.contains("u1", "d1", "t1"));
+        assertEquals(0, cache.size());
+
+        // 重新认证通过后再次缓存
+        cache.put("u1", "d1", "t1");
+        assertTrue(cache.contains("u1", "d1", "t1"));
+    }
+
+    /**
+     * 段满时淘汰最久没有访问的条目
+     */
+    @Test
+    void evictLeastRecentlyUsed() {
+        TokenCache cache = new TokenCache(2, 60_000, 1);
+        cache.put("u1", "d", "t1");
+        cache.put("u2", "d", "t2");
+        assertTrue(cache.contains("u1", "d", "t1"));
+        cache.put("u3", "d", "t3");
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains("u1", "d", "t1"));
+        assertFalse(cache.contains("u2", "d", "t2"));
+        assertTrue(cache.contains("u3", "d", "t3"));
+    }
+
+    /**
+     * 容量平均分到每个段，每个段单独淘汰
+     */
+    @Test
+    void evictPerSegment() {
+        TokenCache cache = new TokenCache(8, 60_000, 4);
+        for (int i = 0; i < 100; i++) {
+            cache.put("u" + i, "d", "t" + i);
+            assertTrue(cache.contains("u" + i, "d", "t" + i));
+            assertTrue(cache.size() <= 8);
+        }
+        assertEquals(8, cache.size());
+    }
+}
@@ -0,0 +1,215 @@
+package org.test.message.service.storage.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.test.message.server.config.IConfig;
+import org.test.message.server.config.PropertiesResourceLoader;
+import org.test.message.server.config.ServerConstants;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.Messages;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+/**
+ * 过期时间足够长，时间轮不会触发，由测试直接调用 {@link MemoryMessageStore#expire} 控制哪些消息过期，
+ * 这些消息仍然留在时间轮中
+ */
+class MemoryMessageStoreTest {
+    private MemoryMessageStore store;
+
+    @AfterEach
+    void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    void overflowDropsOldest() throws Exception {
+        store = open(3, Long.MAX_VALUE);
+        for (long id = 1; id <= 5; id++) {
+            assertTrue(store(store, "u1", id));
+        }
+        assertEquals(3, store.size());
+        assertEquals(2, store.overflowCount());
+        assertEquals(3, store.pendingExpirations());
+        assertDrained(store, "u1", 3, 4, 5);
+        assertEmpty(store);
+        assertEquals(0, store.pendingExpirations());
+    }
+
+    /**
+     * 中间的消息过期后留下空位，队列满时先回收空位，不挤出有效消息
+     */
+    @Test
+    void refillAfterMiddleExpiry() throws Exception {
+        store = open(3, Long.MAX_VALUE);
+        for (long id = 1; id <= 3; id++) {
+            store(store, "u1", id);
+        }
+        expire(store, "u1", 1);
+        assertEquals(2, store.size());
+        assertEquals(1, store.expiredCount());
+
+        store(store, "u1", 4);
+        assertEquals(0, store.overflowCount());
+        assertEquals(3, store.size());
+        // 回收空位之后再次写满，挤出最早的消息
+        store(store, "u1", 5);
+        assertEquals(1, store.overflowCount());
+        assertDrained(store, "u1", 3, 4, 5);
+        assertEmpty(store);
+    }
+
+    /**
+     * 队头的消息过期后直接移出，后面的消息成为新的队头
+     */
+    @Test
+    void expireHead() throws Exception {
+        store = open(3, Long.MAX_VALUE);
+        for (long id = 1; id <= 3; id++) {
+            store(store, "u1", id);
+        }
+        expire(store, "u1", 0);
+        store(store, "u1", 4);
+        assertEquals(0, store.overflowCount());
+        assertDrained(store, "u1", 2, 3, 4);
+
+        // 全部过期后用户被移除，重复的过期通知被忽略
+        store(store, "u2", 5);
+        List<MemoryMessageStore.Pending> pending = store.pending("u2");
+        store.expire(pending);
+        store.expire(pending);
+        assertEquals(2, store.expiredCount());
+        assertEquals(0, store.bytes());
+        assertTrue(store.pending("u2").isEmpty());
+        assertDrained(store, "u2");
+    }
+
+    /**
+     * 超过总字节数时淘汰最久没有新消息的用户，最新保存的用户不会被淘汰
+     */
+    @Test
+    void evictLeastRecentUser() throws Exception {
+        long length = length(1);
+        store = open(10, 4 * length);
+        store(store, "u1", 1);
+        store(store, "u2", 2);
+        store(store, "u3", 3);
+        store(store, "u1", 4);
+        assertEquals(0, store.evictedCount());
+
+        store(store, "u4", 5);
+        assertEquals(1, store.evictedCount());
+        assertEquals(4, store.size());
+        assertEquals(4 * length, store.bytes());
+        assertEquals(4, store.pendingExpirations());
+        assertDrained(store, "u2");
+
+        // u3 是现在最久没有新消息的用户
+        store(store, "u1", 6);
+        assertEquals(2, store.evictedCount());
+        assertDrained(store, "u3");
+        assertDrained(store, "u1", 1, 4, 6);
+        assertDrained(store, "u4", 5);
+        assertEmpty(store);
+        assertEquals(0, store.pendingExpirations());
+    }
+
+    /**
+     * 部分消息过期后取出剩余消息，顺序不变，计数归零
+     */
+    @Test
+    void drainAfterPartialExpiry() throws Exception {
+        store = open(8, Long.MAX_VALUE);
+        for (long id = 1; id <= 5; id++) {
+            store(store, "u1", id);
+        }
+        List<MemoryMessageStore.Pending> pending = store.pending("u1");
+        store.expire(Arrays.asList(pending.get(1), pending.get(3)));
+        assertEquals(3, store.size());
+        assertEquals(3 * length(1), store.bytes());
+
+        assertDrained(store, "u1", 1, 3, 5);
+        assertEmpty(store);
+        // 已经取出的消息再过期不影响计数
+        store.expire(pending);
+        assertEquals(2, store.expiredCount());
+        assertEmpty(store);
+    }
+
+    private static MemoryMessageStore open(int userCapacity, long maxBytes) {
+        IConfig config = new PropertiesResourceLoader();
+        config.setProperty(ServerConstants.STORAGE_MEMORY_USER_CAPACITY, String.valueOf(userCapacity));
+        config.setProperty(ServerConstants.STORAGE_MEMORY_MAX_BYTES, String.valueOf(maxBytes));
+        config.setProperty(ServerConstants.STORAGE_MEMORY_TTL, String.valueOf(TimeUnit.HOURS.toMillis(1)));
+        MemoryMessageStore store = new MemoryMessageStore();
+        store.init(config);
+        return store;
+    }
+
+    private static void expire(MemoryMessageStore store, String uin, int index) {
+        store.expire(Collections.singletonList(store.pending(uin).get(index)));
+    }
+
+    private static void assertEmpty(MemoryMessageStore store) {
+        assertEquals(0, store.size());
+        assertEquals(0, store.bytes());
+    }
+
+    private static long length(long messageId) {
+        Message message = publish(messageId);
+        try {
+            return message.content().readableBytes();
+        } finally {
+            message.release();
+        }
+    }
+
+    private static boolean store(MemoryMessageStore store, String uin, long messageId) throws Exception {
+        Message message = publish(messageId);
+        try {
+            return store.store(uin, message).get(5, TimeUnit.SECONDS);
+        } finally {
+            message.release();
+        }
+    }
+
+    private static Message publish(long messageId) {
+        ByteBuf buf = Unpooled.copiedBuffer("m" + messageId, StandardCharsets.UTF_8);
+        try {
+            return Messages.publish(UnpooledByteBufAllocator.DEFAULT, messageId, buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    private static void assertDrained(MemoryMessageStore store, String uin, long... expected) throws Exception {
+        List<Message> messages = store.drain(uin).get(5, TimeUnit.SECONDS);
+        try {
+            List<Long> ids = new ArrayList<>();
+            for (long id : expected) {
+                ids.add(id);
+            }
+            List<Long> actual = new ArrayList<>();
+            for (Message message : messages) {
+                actual.add(Messages.messageId(message));
+            }
+            assertEquals(ids, actual);
+        } finally {
+            messages.forEach(Message::release);
+        }
+    }
+}
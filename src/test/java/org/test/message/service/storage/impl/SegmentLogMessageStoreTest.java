@@ -0,0 +1,206 @@
+package org.test.message.service.storage.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.test.message.server.config.IConfig;
+import org.test.message.server.config.PropertiesResourceLoader;
+import org.test.message.server.config.ServerConstants;
+import org.test.message.server.netty.handler.codec.Message;
+import org.test.message.server.netty.handler.codec.Messages;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+class SegmentLogMessageStoreTest {
+    @TempDir
+    File dir;
+
+    private SegmentLogMessageStore store;
+
+    @AfterEach
+    void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    void storeAndDrainInOrder() throws Exception {
+        store = open(1000, 60_000);
+        assertTrue(store(store, "u1", 1, "a"));
+        assertTrue(store(store, "u2", 2, "b"));
+        assertTrue(store(store, "u1", 3, "c"));
+        assertEquals(3, store.size());
+
+        assertDrained(store, "u1", 1, "a", 3, "c");
+        assertDrained(store, "u1");
+        assertEquals(1, store.size());
+    }
+
+    /**
+     * 保存请求在组提交的 fsync 之后才完成
+     */
+    @Test
+    void storeCompletesAfterFlush() throws Exception {
+        store = open(300, 60_000);
+        Message message = publish(1, "a");
+        CompletableFuture<Boolean> future;
+        try {
+            future = store.store("u1", message);
+        } finally {
+            message.release();
+        }
+        Thread.sleep(50);
+        assertFalse(future.isDone());
+        assertTrue(future.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void recoverAfterRestart() throws Exception {
+        store = open(10, 60_000);
+        store(store, "u1", 1, "a");
+        store(store, "u2", 2, "b");
+        store(store, "u1", 3, "c");
+        assertDrained(store, "u2", 2, "b");
+        store.close();
+
+        store = open(10, 60_000);
+        assertEquals(2, store.size());
+        assertDrained(store, "u2");
+        assertDrained(store, "u1", 1, "a", 3, "c");
+    }
+
+    /**
+     * 写入一半的记录校验失败，恢复时忽略它和之后的数据，新的记录从这里开始覆盖
+     */
+    @Test
+    void recoverStopsAtCorruptedRecord() throws Exception {
+        store = open(10, 60_000);
+        store(store, "u1", 1, "a");
+        store(store, "u1", 2, "b");
+        store.close();
+
+        File segment = new File(dir, String.format("%020d.log", 0));
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            int second = Segment.RECORD_HEADER_LENGTH + file.readInt();
+            file.seek(second);
+            int length = file.readInt();
+            // 破坏第二条记录消息体的最后一个字节
+            long last = second + Segment.RECORD_HEADER_LENGTH + length - 1;
+            file.seek(last);
+            byte b = file.readByte();
+            file.seek(last);
+            file.writeByte(b ^ 0xFF);
+        }
+
+        store = open(10, 60_000);
+        assertEquals(1, store.size());
+        store(store, "u1", 3, "c");
+        store.close();
+
+        store = open(10, 60_000);
+        assertDrained(store, "u1", 1, "a", 3, "c");
+    }
+
+    /**
+     * 最早的日志段中剩余的消息搬到当前日志段之后删除，重启后依然可以恢复
+     */
+    @Test
+    void compactMovesRemainingMessages() throws Exception {
+        store = open(10, 50, 4096);
+        store(store, "keep", 0, "k");
+        long id = 1;
+        while (new File(dir, String.format("%020d.log", 3)).length() == 0) {
+            store(store, "drop", id++, "payload-payload-payload-payload");
+        }
+        store.drain("drop").get(5, TimeUnit.SECONDS).forEach(Message::release);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (new File(dir, String.format("%020d.log", 0)).exists()) {
+            assertTrue(System.currentTimeMillis() < deadline, "first segment not compacted");
+            Thread.sleep(10);
+        }
+        store.close();
+
+        store = open(10, 60_000, 4096);
+        assertEquals(1, store.size());
+        assertDrained(store, "keep", 0, "k");
+    }
+
+    private SegmentLogMessageStore open(int flushInterval, int compactInterval) throws Exception {
+        return open(flushInterval, compactInterval, 1024 * 1024);
+    }
+
+    private SegmentLogMessageStore open(int flushInterval, int compactInterval, int segmentSize) throws Exception {
+        IConfig config = new PropertiesResourceLoader();
+        config.setProperty(ServerConstants.STORAGE_DIR, dir.getAbsolutePath());
+        config.setProperty(ServerConstants.STORAGE_SEGMENT_SIZE, String.valueOf(segmentSize));
+        config.setProperty(ServerConstants.STORAGE_FLUSH_INTERVAL, String.valueOf(flushInterval));
+        config.setProperty(ServerConstants.STORAGE_COMPACT_INTERVAL, String.valueOf(compactInterval));
+        SegmentLogMessageStore store = new SegmentLogMessageStore();
+        store.init(config);
+        return store;
+    }
+
+    private static boolean store(SegmentLogMessageStore store, String uin, long messageId, String payload) throws Exception {
+        Message message = publish(messageId, payload);
+        try {
+            return store.store(uin, message).get(5, TimeUnit.SECONDS);
+        } finally {
+            message.release();
+        }
+    }
+
+    private static Message publish(long messageId, String payload) {
+        ByteBuf buf = Unpooled.copiedBuffer(payload, StandardCharsets.UTF_8);
+        try {
+            return Messages.publish(UnpooledByteBufAllocator.DEFAULT, messageId, buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    /**
+     * @param expected 依次为消息id和内容
+     */
+    private static void assertDrained(SegmentLogMessageStore store, String uin, Object... expected) throws Exception {
+        List<Message> messages = store.drain(uin).get(5, TimeUnit.SECONDS);
+        try {
+            List<Long> ids = new ArrayList<>();
+            for (int i = 0; i < expected.length; i += 2) {
+                ids.add(((Number) expected[i]).longValue());
+            }
+            List<Long> actual = new ArrayList<>();
+            for (Message message : messages) {
+                actual.add(Messages.messageId(message));
+            }
+            assertEquals(ids, actual);
+            for (int i = 0; i < messages.size(); i++) {
+                Message message = publish(ids.get(i), (String) expected[i * 2 + 1]);
+                try {
+                    assertArrayEquals(ByteBufUtil.getBytes(message.content()), ByteBufUtil.getBytes(messages.get(i).content()));
+                } finally {
+                    message.release();
+                }
+            }
+        } finally {
+            messages.forEach(Message::release);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.test.message.timewheel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+    /**
+     * 元素 -> 过期时间(ns)
+     */
+    private final Map<Integer, Long> expired = new ConcurrentHashMap<>();
+    private TimingWheel<Integer> wheel;
+
+    @AfterEach
+    void tearDown() {
+        if (wheel != null) {
+            wheel.stop(false);
+        }
+    }
+
+    /**
+     * 每层 4 个槽，超时时间覆盖 3 层，上层的元素逐层下放后在截止时间之后过期
+     */
+    @Test
+    void cascadeAcrossLevels() throws Exception {
+        wheel = newWheel(1, 4);
+        long[] timeouts = {2, 3, 5, 17, 40, 70, 130};
+        long start = System.nanoTime();
+        for (int i = 0; i < timeouts.length; i++) {
+            wheel.add(i, timeouts[i], TimeUnit.MILLISECONDS);
+        }
+        awaitExpired(timeouts.length, 5000);
+        for (int i = 0; i < timeouts.length; i++) {
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(expired.get(i) - start);
+            assertTrue(elapsedMillis >= timeouts[i], "element " + i + " expired after " + elapsedMillis + "ms");
+        }
+        assertEquals(0, wheel.size());
+        assertEquals(timeouts.length, wheel.getExpiredCount());
+    }
+
+    /**
+     * 超出所有层范围的超时时间先放在最远的槽，到时重新放置
+     */
+    @Test
+    void timeoutBeyondWheelRange() throws Exception {
+        wheel = TimingWheel.Builder.<Integer>newBuilder()
+                .tickDuration(1, TimeUnit.MILLISECONDS)
+                .ticksPerWheel(2)
+                .expirationListeners(listener())
+                .build();
+        wheel.start();
+        // 2 个槽时最多 31 层，这里只验证不会提前过期
+        long start = System.nanoTime();
+        wheel.add(1, 50, TimeUnit.MILLISECONDS);
+        awaitExpired(1, 5000);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(expired.get(1) - start) >= 50);
+    }
+
+    @Test
+    void removeBeforeExpiry() throws Exception {
+        wheel = newWheel(1, 8);
+        wheel.add(1, 20, TimeUnit.MILLISECONDS);
+        wheel.add(2, 20, TimeUnit.MILLISECONDS);
+        assertTrue(wheel.remove(1));
+        assertFalse(wheel.remove(1));
+        awaitExpired(1, 5000);
+        Thread.sleep(50);
+        assertEquals(Collections.singleton(2), expired.keySet());
+        assertFalse(wheel.exists(2));
+    }
+
+    @Test
+    void touchDelaysExpiry() throws Exception {
+        wheel = newWheel(1, 8);
+        long start = System.nanoTime();
+        wheel.add(1, 30, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(10);
+            assertTrue(wheel.touch(1));
+        }
+        awaitExpired(1, 5000);
+        // 最后一次 touch 在 50ms 之后
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(expired.get(1) - start) >= 80);
+    }
+
+    /**
+     * 已存在的元素再次 add 时按新的超时时间计算，缩短也立即生效
+     */
+    @Test
+    void addExistingUpdatesTimeout() throws Exception {
+        wheel = newWheel(1, 8);
+        long start = System.nanoTime();
+        wheel.add(1, 10_000, TimeUnit.MILLISECONDS);
+        wheel.add(1, 10, TimeUnit.MILLISECONDS);
+        awaitExpired(1, 5000);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(expired.get(1) - start) < 5000);
+        assertEquals(0, wheel.size());
+    }
+
+    /**
+     * 多个线程同时 add/remove 同一批元素，最后全部 remove 之后时间轮为空，也不会再有过期通知
+     */
+    @Test
+    void concurrentAddAndRemove() throws Exception {
+        wheel = newWheel(1, 16);
+        int threads = 4;
+        int elements = 64;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 20_000; i++) {
+                    int e = random.nextInt(elements);
+                    if (random.nextBoolean()) {
+                        wheel.add(e, random.nextInt(1, 30), TimeUnit.MILLISECONDS);
+                    } else {
+                        wheel.remove(e);
+                    }
+                }
+                done.countDown();
+            });
+            worker.start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        for (int e = 0; e < elements; e++) {
+            wheel.remove(e);
+        }
+        assertEquals(0, wheel.size());
+        // 等待已经在通知中的批次执行完
+        Thread.sleep(100);
+        expired.clear();
+        Thread.sleep(100);
+        assertTrue(expired.isEmpty(), "expired after remove: " + expired.keySet());
+    }
+
+    @Test
+    void stopExpiresRemaining() {
+        wheel = newWheel(1000, 8);
+        wheel.add(1);
+        wheel.add(2);
+        assertTrue(wheel.stop(true));
+        assertFalse(wheel.stop(true));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (expired.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(2, expired.size());
+        wheel = null;
+    }
+
+    private TimingWheel<Integer> newWheel(int tickMillis, int ticksPerWheel) {
+        TimingWheel<Integer> wheel = TimingWheel.Builder.<Integer>newBuilder()
+                .tickDuration(tickMillis, TimeUnit.MILLISECONDS)
+                .ticksPerWheel(ticksPerWheel)
+                .expirationListeners(listener())
+                .build();
+        wheel.start();
+        return wheel;
+    }
+
+    private ExpirationListener<Integer> listener() {
+        return e -> expired.put(e, System.nanoTime());
+    }
+
+    private void awaitExpired(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (expired.size() < count) {
+            assertTrue(System.currentTimeMillis() < deadline, "only " + expired.size() + " of " + count + " expired");
+            Thread.sleep(1);
+        }
+    }
+}